@@ -1,5 +1,26 @@
 package com.sshtools.forker.plugin.api;
 
 public enum InstallMode {
-	COPY, LINK, AUTO
+	/**
+	 * Copy archives into the local repository.
+	 */
+	COPY,
+	/**
+	 * Symbolically link to archives that are on the local filesystem.
+	 */
+	LINK,
+	/**
+	 * Link when possible, otherwise copy.
+	 */
+	AUTO,
+	/**
+	 * Hard link to archives that are on the same local filesystem, otherwise copy
+	 * them without passing their content through the heap, copying the files of
+	 * directories in parallel. A hard linked archive takes no extra space, and
+	 * survives the source being deleted or replaced by a new file, but it shares
+	 * its content with the source, so if the source is modified in place the
+	 * installed archive changes too. Only copied archives are fully independent
+	 * of where they came from.
+	 */
+	CLONE
 }
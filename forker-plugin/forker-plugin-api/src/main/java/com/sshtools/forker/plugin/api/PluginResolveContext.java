@@ -1,7 +1,19 @@
 package com.sshtools.forker.plugin.api;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
 public abstract class PluginResolveContext {
 
+	/**
+	 * The Maven dependency scopes that are not resolved by default.
+	 */
+	public final static Set<String> DEFAULT_EXCLUDED_SCOPES = Collections
+			.unmodifiableSet(new LinkedHashSet<>(Arrays.asList("test", "provided", "system")));
+
 	private boolean failOnError = true;
 	private boolean resolveOptional = false;
 	private boolean download = false;
@@ -10,6 +22,8 @@ public abstract class PluginResolveContext {
 	private boolean resolvePlugins = true;
 	private String[] arguments = new String[0];
 	private ConflictStrategy conflictStrategy;
+	private ForkJoinPool scanPool;
+	private Set<String> excludedScopes = DEFAULT_EXCLUDED_SCOPES;
 
 	public PluginResolveContext() {
 	}
@@ -51,6 +65,57 @@ public abstract class PluginResolveContext {
 		return this;
 	}
 
+	/**
+	 * Get the pool used to examine the root classpath elements in parallel, i.e.
+	 * to open each one, read its POM and hash it. The resolution passes that
+	 * follow always run on the calling thread. When <code>null</code>, the
+	 * elements are also examined on the calling thread.
+	 * 
+	 * @return pool
+	 */
+	public ForkJoinPool scanPool() {
+		return scanPool;
+	}
+
+	public PluginResolveContext scanPool(ForkJoinPool scanPool) {
+		this.scanPool = scanPool;
+		return this;
+	}
+
+	/**
+	 * Get the Maven dependency scopes that are not resolved when the dependencies
+	 * of a POM are followed. By default these are {@link #DEFAULT_EXCLUDED_SCOPES}.
+	 * 
+	 * @return excluded scopes
+	 */
+	public Set<String> excludedScopes() {
+		return excludedScopes;
+	}
+
+	/**
+	 * Set the Maven dependency scopes that are not resolved when the dependencies
+	 * of a POM are followed. A dependency without a scope has the scope
+	 * <code>compile</code>.
+	 * 
+	 * @param excludedScopes excluded scopes
+	 * @return this for chaining
+	 */
+	public PluginResolveContext excludedScopes(Set<String> excludedScopes) {
+		this.excludedScopes = Collections.unmodifiableSet(new LinkedHashSet<>(excludedScopes));
+		return this;
+	}
+
+	/**
+	 * Get if a Maven dependency scope is excluded from resolution.
+	 * 
+	 * @param scope scope, or <code>null</code> for the default scope
+	 *              (<code>compile</code>)
+	 * @return excluded
+	 */
+	public boolean isScopeExcluded(String scope) {
+		return excludedScopes.contains(scope == null || scope.equals("") ? "compile" : scope);
+	}
+
 	public boolean resolveOptional() {
 		return resolveOptional;
 	}
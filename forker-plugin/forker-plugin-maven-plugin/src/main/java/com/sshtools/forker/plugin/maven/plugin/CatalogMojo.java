@@ -0,0 +1,112 @@
+package com.sshtools.forker.plugin.maven.plugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import com.sshtools.forker.plugin.FeatureCatalog;
+import com.sshtools.forker.plugin.FeatureDescriptor;
+
+/**
+ * Writes an aggregated catalog of a feature repository, containing every
+ * feature, archive, plugin and plugin dependency in it. Features are those
+ * listed in <code>features.txt</code>, along with any other
+ * <code>@FEATURE.xml</code> files in the repository directory. Remotes that
+ * find a catalog use it instead of fetching each feature separately.
+ */
+@Mojo(inheritByDefault = false, name = "catalog", aggregator = true)
+public class CatalogMojo extends AbstractForkerPluginMojo {
+
+	/**
+	 * The directory of the feature repository to catalog, and where the catalog
+	 * will be written.
+	 */
+	@Parameter(defaultValue = "${project.build.directory}/feature", required = true)
+	private File repositoryDirectory;
+
+	/**
+	 * Gzip compress the catalog.
+	 */
+	@Parameter(defaultValue = "true")
+	private boolean compress;
+
+	public void execute() throws MojoExecutionException {
+		if (!repositoryDirectory.isDirectory()) {
+			getLog().debug("No repository in " + repositoryDirectory + ", skipping catalog");
+			return;
+		}
+
+		try {
+			Map<String, FeatureDescriptor> features = new LinkedHashMap<>();
+			for (String location : getLocations()) {
+				File file = new File(repositoryDirectory, location.replace('/', File.separatorChar));
+				if (!file.isFile()) {
+					getLog().warn("Feature " + location + " is listed, but does not exist.");
+					continue;
+				}
+				verboseLog("Adding feature " + location);
+				try (InputStream in = new FileInputStream(file)) {
+					features.put(location, FeatureDescriptor.parse(in));
+				}
+			}
+
+			File file = new File(repositoryDirectory, compress ? FeatureCatalog.COMPRESSED_PATH : FeatureCatalog.PATH);
+			File tmp = new File(repositoryDirectory, file.getName() + ".tmp");
+			try (OutputStream out = new FileOutputStream(tmp)) {
+				FeatureCatalog.write(out, features, compress);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+			/* Remotes prefer the compressed catalog, so don't leave a stale one */
+			File other = new File(repositoryDirectory, compress ? FeatureCatalog.PATH : FeatureCatalog.COMPRESSED_PATH);
+			if (other.exists() && !other.delete())
+				throw new IOException("Failed to delete old catalog " + other);
+
+			getLog().info("Catalogued " + features.size() + " features in " + file);
+		} catch (IOException e) {
+			throw new MojoExecutionException("Failed to write catalog.", e);
+		}
+	}
+
+	@Override
+	protected File getWorkDirectory() {
+		return repositoryDirectory;
+	}
+
+	private Set<String> getLocations() throws IOException {
+		Set<String> locations = new LinkedHashSet<>();
+		File featuresFile = new File(repositoryDirectory, "features.txt");
+		if (featuresFile.exists()) {
+			try (BufferedReader reader = new BufferedReader(new FileReader(featuresFile))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (!line.startsWith("#") && line.length() > 0)
+						locations.add(line);
+				}
+			}
+		}
+		String[] names = repositoryDirectory.list((dir, name) -> name.endsWith("@FEATURE.xml"));
+		if (names != null) {
+			Arrays.sort(names);
+			locations.addAll(Arrays.asList(names));
+		}
+		return locations;
+	}
+}
@@ -11,10 +11,10 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -164,11 +164,10 @@ public class MakeFeatureMojo extends AbstractForkerPluginMojo {
 
 		// The hash for the feature is a hash of all the hashes of the packaged
 		// artifacts
-		List<String> hashes = new LinkedList<String>();
-		for (Artifact s : packagedArchives) {
-			String sha1 = Hashing.sha1(s.getFile());
-			hashes.add(sha1);
-		}
+		List<File> files = new ArrayList<File>();
+		for (Artifact s : packagedArchives)
+			files.add(s.getFile());
+		List<String> hashes = Hashing.hash(files, Hashing.SHA1, ForkJoinPool.commonPool(), null);
 		String featureHash = Hashing.hash(String.join(":", hashes));
 
 		// Feature
@@ -208,10 +207,10 @@ public class MakeFeatureMojo extends AbstractForkerPluginMojo {
 				new AnnotationFinder(loader, s.getFile().toURI().toURL()) {
 
 					@Override
-					protected void onPlugin(Class<?> clazz, Plugin plugin) throws IOException {
-						verboseLog("Found plugin " + clazz);
+					protected void onPlugin(String className, Plugin plugin) throws IOException {
+						verboseLog("Found plugin " + className);
 						Element pluginEl = doc.createElement("plugin");
-						pluginEl.setAttribute("class", clazz.getName());
+						pluginEl.setAttribute("class", className);
 						pluginEl.setAttribute("staticLoad", String.valueOf(plugin.staticLoad()));
 						pluginEl.setAttribute("start", plugin.start().name());
 						if (StringUtils.isNotBlank(plugin.name()))
@@ -0,0 +1,83 @@
+package com.sshtools.forker.plugin.maven.plugin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import com.sshtools.forker.plugin.AnnotationFinder;
+import com.sshtools.forker.plugin.PluginIndex;
+import com.sshtools.forker.plugin.api.Plugin;
+import com.sshtools.forker.plugin.api.PluginProgressMonitor;
+
+/**
+ * Scans the compiled classes of the project for {@link Plugin} annotations, and
+ * writes an index of them to <code>META-INF/plugins</code> so they are packaged
+ * with the jar. At runtime the index is read instead of scanning every class.
+ * An index is always written, so jars that contain no plugins can be skipped.
+ */
+@Mojo(name = "plugin-index", defaultPhase = LifecyclePhase.PROCESS_CLASSES, threadSafe = true)
+public class PluginIndexMojo extends AbstractForkerPluginMojo {
+
+	/**
+	 * The directory containing the compiled classes to scan, and where the index
+	 * will be written.
+	 */
+	@Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+	private File outputDirectory;
+
+	public void execute() throws MojoExecutionException {
+		if (!outputDirectory.isDirectory()) {
+			getLog().debug("No classes in " + outputDirectory + ", skipping plugin index");
+			return;
+		}
+
+		PluginIndex index = new PluginIndex();
+		try {
+			new AnnotationFinder(getClass().getClassLoader(), outputDirectory.toURI().toURL()) {
+				@Override
+				protected void onPlugin(String className, Plugin plugin) throws IOException {
+					verboseLog("Found plugin " + className);
+					index.add(className, plugin);
+				}
+			}.find(new PluginProgressMonitor() {
+				@Override
+				public void message(MessageType type, String message) {
+					switch (type) {
+					case INFO:
+						getLog().info(message);
+						break;
+					case DEBUG:
+						getLog().debug(message);
+						break;
+					case ERROR:
+						getLog().error(message);
+						break;
+					case WARNING:
+						getLog().warn(message);
+						break;
+					}
+				}
+			});
+
+			File file = new File(outputDirectory, PluginIndex.PATH.replace('/', File.separatorChar));
+			Util.makeDirectoryIfNecessary(file.getParentFile());
+			try (OutputStream out = new FileOutputStream(file)) {
+				index.write(out);
+			}
+			getLog().info("Indexed " + index.getPlugins().size() + " plugins in " + file);
+		} catch (IOException | ClassNotFoundException e) {
+			throw new MojoExecutionException("Failed to write plugin index.", e);
+		}
+	}
+
+	@Override
+	protected File getWorkDirectory() {
+		return outputDirectory;
+	}
+}
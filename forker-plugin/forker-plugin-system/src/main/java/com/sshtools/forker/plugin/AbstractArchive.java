@@ -1,14 +1,22 @@
 package com.sshtools.forker.plugin;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
 
 import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
 
@@ -33,7 +41,7 @@ public abstract class AbstractArchive extends AbstractContainer<PluginManager, P
 	private boolean pluginsResolved;
 	private long size;
 	private Set<PluginSpec> specs = new LinkedHashSet<>();
-	private ClassLoader classLoader;
+	private volatile ClassLoader classLoader;
 
 	public AbstractArchive(PluginManager manager, URL archive) {
 		this(manager, archive, PluginComponentId.fromURL(archive));
@@ -65,8 +73,13 @@ public abstract class AbstractArchive extends AbstractContainer<PluginManager, P
 	@Override
 	public boolean addChild(PluginSpec... child) {
 		boolean added = false;
-		for (PluginSpec c : child)
-			added = specs.add(c) || added;
+		for (PluginSpec c : child) {
+			if (specs.add(c)) {
+				added = true;
+				for (DefaultPluginDependencyTree tree : getTrees())
+					tree.childAdded(this, c);
+			}
+		}
 		if (added)
 			dirtyState();
 		return added;
@@ -76,7 +89,11 @@ public abstract class AbstractArchive extends AbstractContainer<PluginManager, P
 	public boolean removeChild(PluginSpec... child) {
 		boolean removed = false;
 		for (PluginSpec c : child) {
-			removed = specs.remove(c) || removed;
+			if (specs.remove(c)) {
+				removed = true;
+				for (DefaultPluginDependencyTree tree : getTrees())
+					tree.childRemoved(this, c);
+			}
 		}
 		if (removed)
 			dirtyState();
@@ -121,24 +138,35 @@ public abstract class AbstractArchive extends AbstractContainer<PluginManager, P
 			return ecl;
 		}
 
-		if (classLoader == null) {
-			switch (getScope()) {
-			case SYSTEM:
-				classLoader = getManager().getClassLoader();
-				break;
-			case INSTALLED:
-				// ArchiveClassLoader jarLoader = new
-				// ArchiveClassLoader(getManager().getClassLoader(), this);
-				PluginClassLoader jarLoader = new PluginClassLoader(this, getManager().getClassLoader());
-				classLoader = jarLoader;
-				break;
-			default:
-				// Unreal, not attached to anything
-				classLoader = getManager().getClassLoader();
-				break;
+		ClassLoader cl = classLoader;
+		if (cl == null) {
+			/*
+			 * Plugin threads may ask for the loader concurrently, make sure only one is
+			 * ever created
+			 */
+			synchronized (this) {
+				cl = classLoader;
+				if (cl == null) {
+					switch (getScope()) {
+					case SYSTEM:
+						cl = getManager().getClassLoader();
+						break;
+					case INSTALLED:
+						// ArchiveClassLoader jarLoader = new
+						// ArchiveClassLoader(getManager().getClassLoader(), this);
+						PluginClassLoader jarLoader = new PluginClassLoader(this, getManager().getClassLoader());
+						cl = jarLoader;
+						break;
+					default:
+						// Unreal, not attached to anything
+						cl = getManager().getClassLoader();
+						break;
+					}
+					classLoader = cl;
+				}
 			}
 		}
-		return classLoader;
+		return cl;
 	}
 
 	@Override
@@ -223,6 +251,7 @@ public abstract class AbstractArchive extends AbstractContainer<PluginManager, P
 			ClassLoader cl = getClassLoader();
 			if (cl instanceof PluginClassLoader)
 				try {
+					((PluginClassLoader) cl).invalidate();
 					((PluginClassLoader) cl).close();
 				} catch (IOException e) {
 				}
@@ -233,6 +262,26 @@ public abstract class AbstractArchive extends AbstractContainer<PluginManager, P
 		for (PluginSpec spec : getChildren())
 			spec.resetClassLoader();
 
+		/*
+		 * Anything that could see classes through this archive may now have stale
+		 * knowledge of what is (or is not) available
+		 */
+		invalidateDependents(new HashSet<>(Collections.singleton(getComponentId())));
+	}
+
+	private void invalidateDependents(Set<PluginComponentId> visited) {
+		PluginResolveContext ctx = getManager().getResolutionContext();
+		for (PluginComponentId id : getDependents()) {
+			if (visited.add(id)) {
+				PluginArchive arc = ctx.getDependencyTree().get(id, PluginArchive.class);
+				if (arc instanceof AbstractArchive) {
+					ClassLoader cl = ((AbstractArchive) arc).classLoader;
+					if (cl instanceof PluginClassLoader)
+						((PluginClassLoader) cl).invalidate();
+					((AbstractArchive) arc).invalidateDependents(visited);
+				}
+			}
+		}
 	}
 
 	@Override
@@ -247,6 +296,46 @@ public abstract class AbstractArchive extends AbstractContainer<PluginManager, P
 
 	}
 
+	/**
+	 * Write any state needed to restore this archive from a resolution snapshot
+	 * without examining the archive itself.
+	 * 
+	 * @param out      output
+	 * @param archives index of other archives in the snapshot
+	 * @throws IOException on error
+	 */
+	protected void writeSnapshot(DataOutput out, ToIntFunction<PluginArchive> archives) throws IOException {
+		ResolutionSnapshot.writeString(out, hash);
+		out.writeLong(size);
+		out.writeInt(classpath == null ? -1 : classpath.size());
+		if (classpath != null) {
+			for (URL url : classpath)
+				out.writeUTF(url.toExternalForm());
+		}
+		out.writeBoolean(pluginsResolved);
+	}
+
+	/**
+	 * Restore state written by {@link #writeSnapshot(DataOutput, ToIntFunction)}.
+	 * 
+	 * @param in       input
+	 * @param archives other archives in the snapshot
+	 * @throws IOException on error
+	 */
+	protected void readSnapshot(DataInput in, IntFunction<PluginArchive> archives) throws IOException {
+		hash = ResolutionSnapshot.readString(in);
+		size = in.readLong();
+		int cp = in.readInt();
+		if (cp != -1) {
+			List<URL> urls = new ArrayList<>();
+			for (int i = 0; i < cp; i++)
+				urls.add(new URL(in.readUTF()));
+			classpath = urls;
+		}
+		pluginsResolved = in.readBoolean();
+		dirtyState();
+	}
+
 	public final void setArchive(URL archive) {
 		this.archive = archive;
 		dirtyState();
@@ -301,15 +390,50 @@ public abstract class AbstractArchive extends AbstractContainer<PluginManager, P
 				: ResolutionState.UNRESOLVED;
 	}
 
-	protected void resolveArchive(PluginProgressMonitor progress) {
+	/**
+	 * Get if the next attempt to resolve this archive will download it, so the
+	 * download may be started ahead of time.
+	 * 
+	 * @return download required
+	 */
+	protected boolean isDownloadRequired() {
+		return calcBaseState().isResolved() && !calcArchiveState().isResolved() && isDownloadable();
+	}
+
+	/**
+	 * If the hash of this archive is already known (e.g. from a feature), let the
+	 * download scheduler know so the download can be verified.
+	 */
+	protected final void expectHash() {
+		if (hash != null && !hash.equals("") && getManager() instanceof DefaultPluginManager)
+			((DefaultPluginManager) getManager()).getDownloadScheduler().expectHash(getComponentId().asOptional(false),
+					hash);
+	}
+
+	private void recordHash(URL url) throws IOException {
+		if (getManager() instanceof DefaultPluginManager && url.getProtocol().equals("file")) {
+			DefaultPluginManager mgr = (DefaultPluginManager) getManager();
+			String downloadedHash = mgr.getHashCache().get(new File(url.getPath()), mgr.getHashAlgorithm());
+			if (downloadedHash != null)
+				setHash(downloadedHash);
+		}
+	}
 
-		if (getComponentId().isValid() && getManager().getResolutionContext().download()
+	protected final boolean isDownloadable() {
+		return getComponentId().isValid() && getManager().getResolutionContext().download()
 				&& (!getComponentId().isOptional()
-						|| (getComponentId().isOptional() && getManager().getResolutionContext().resolveOptional()))) {
+						|| (getComponentId().isOptional() && getManager().getResolutionContext().resolveOptional()));
+	}
+
+	protected void resolveArchive(PluginProgressMonitor progress) {
+
+		if (isDownloadable()) {
 			try {
+				expectHash();
 				URL url = getManager().downloadArchive(progress, getComponentId().asOptional(false));
 				if (url != null) {
 					setArchive(url);
+					recordHash(url);
 					for (PluginComponentId par : getDependents()) {
 						PluginArchive arc = getManager().getResolutionContext().getDependencyTree().get(par,
 								PluginArchive.class);
@@ -331,8 +455,7 @@ public abstract class AbstractArchive extends AbstractContainer<PluginManager, P
 		if (strategy == null)
 			strategy = getManager().getConflictStrategy();
 
-		// TODO temp ... stop resolving plugins at runtime?
-		if (!ctx.resolvePlugins() || true) {
+		if (!ctx.resolvePlugins()) {
 			/*
 			 * If the classpath is empty, this is a list for available plugins, so we are
 			 * not actually loading plugins
@@ -341,6 +464,29 @@ public abstract class AbstractArchive extends AbstractContainer<PluginManager, P
 			return;
 		}
 
+		/*
+		 * Plugins are discovered using the index written at build time, reading a
+		 * single small entry per archive rather than scanning every class. Archives
+		 * without an index, or with an empty one, have no plugins.
+		 */
+		Map<String, Plugin> indexed = new LinkedHashMap<>();
+		try {
+			for (URL url : getClasspath()) {
+				PluginIndex index = PluginIndex.find(getManager(), url);
+				if (index != null)
+					indexed.putAll(index.getPlugins());
+			}
+		} catch (IOException ioe) {
+			if (ctx.failOnError())
+				throw new IllegalStateException(String.format("Cannot read plugin index. %s", getComponentId()), ioe);
+			else if (progress != null)
+				progress.message(MessageType.INFO, ioe.getMessage());
+		}
+		if (indexed.isEmpty()) {
+			pluginsResolved = true;
+			return;
+		}
+
 		/**
 		 * If there is more than one version of an archive, plugins may only be loaded
 		 * from the highest version.
@@ -349,13 +495,13 @@ public abstract class AbstractArchive extends AbstractContainer<PluginManager, P
 		 * cleaning up providing no other archives explicitly depend on them.
 		 */
 		PluginArchive newest = null;
-		DefaultArtifactVersion thisVersion = new DefaultArtifactVersion(getComponentId().getVersion());
+		DefaultArtifactVersion thisVersion = versionOf(getComponentId());
 		DefaultArtifactVersion newestVersion = null;
 
 		Set<PluginArchive> otherArchives = ctx.getDependencyTree().list(getComponentId().idAndGroup(),
 				PluginArchive.class);
 		for (PluginArchive other : otherArchives) {
-			DefaultArtifactVersion otherVersion = new DefaultArtifactVersion(other.getComponentId().getVersion());
+			DefaultArtifactVersion otherVersion = versionOf(other.getComponentId());
 			if (otherVersion.compareTo(thisVersion) > 0) {
 				newest = other;
 				newestVersion = otherVersion;
@@ -414,43 +560,49 @@ public abstract class AbstractArchive extends AbstractContainer<PluginManager, P
 			if (process) {
 				progress.message(MessageType.INFO, String.format("Looking for plugins in %s", getComponentId()));
 				Set<PluginSpec> l = new LinkedHashSet<>();
-				new AnnotationFinder(getClassLoader(), getClasspath()) {
-					@Override
-					protected void onPlugin(Class<?> clazz, Plugin plugin) throws IOException {
-						DefaultPluginSpec spec = new DefaultPluginSpec(AbstractArchive.this, clazz.getName(),
-								plugin.dependencies(), plugin.name(), plugin.description());
-						switch (plugin.start()) {
-						case AUTO:
-							spec.setAutostart(true);
-							break;
-						case MANUAL:
-							spec.setAutostart(false);
-							break;
-						case DEFAULT:
-							spec.setAutostart(getParent().isAutostart());
-							break;
-						}
-						l.add(spec);
+				Set<String> existing = new HashSet<>();
+				for (PluginSpec spec : getChildren())
+					existing.add(spec.getComponentId().getPlugin());
+				for (Map.Entry<String, Plugin> en : indexed.entrySet()) {
+					if (existing.contains(en.getKey()))
+						continue;
+					Plugin plugin = en.getValue();
+					DefaultPluginSpec spec = new DefaultPluginSpec(AbstractArchive.this, en.getKey(),
+							plugin.dependencies(), plugin.name(), plugin.description());
+					spec.setStatic(plugin.staticLoad());
+					switch (plugin.start()) {
+					case AUTO:
+						spec.setAutostart(true);
+						break;
+					case MANUAL:
+						spec.setAutostart(false);
+						break;
+					case DEFAULT:
+						spec.setAutostart(getParent().isAutostart());
+						break;
 					}
-				}.stopOnClassNotFound(false).stopOnOtherErrors(false).find(progress);
+					l.add(spec);
+				}
 				addChild(l.toArray(new PluginSpec[0]));
 				progress.message(MessageType.INFO, String.format("Found %d plugins in %s", l.size(), getComponentId()));
 			}
 
 			pluginsResolved = true;
-		} catch (ClassNotFoundException | RuntimeException ise) {
+		} catch (RuntimeException ise) {
 			// Cannot index this jar for some reason
 //			pluginsResolved = true;
 			if (ctx.failOnError()) {
-				if (ise instanceof RuntimeException)
-					throw (RuntimeException) ise;
-				else
-					throw new IllegalStateException(String.format("Cannot find plugins. %s", getComponentId()), ise);
+				throw ise;
 			} else if (progress != null)
 				progress.message(MessageType.INFO, ise.getMessage());
 		}
 	}
 
+	private static DefaultArtifactVersion versionOf(PluginComponentId id) {
+		/* Plain archives may not have a version */
+		return new DefaultArtifactVersion(id.hasVersion() ? id.getVersion() : "0");
+	}
+
 	private boolean matches(List<String> patterns, String string) {
 		for (String p : patterns) {
 			if (string.matches("^" + p + ".*"))
@@ -1,8 +1,10 @@
 package com.sshtools.forker.plugin;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.WeakHashMap;
 
 import com.sshtools.forker.plugin.api.PluginComponent;
 import com.sshtools.forker.plugin.api.PluginComponentId;
@@ -19,6 +21,8 @@ public abstract class AbstractComponent<P extends PluginComponent<?>> implements
 	private String name;
 	private ResolutionState cachedState;
 	private ThreadLocal<Boolean> calculatingState = new ThreadLocal<>();
+	private final Set<DefaultPluginDependencyTree> trees = Collections
+			.newSetFromMap(new WeakHashMap<DefaultPluginDependencyTree, Boolean>());
 
 	public AbstractComponent(PluginComponentId component) {
 		this.component = component;
@@ -140,6 +144,9 @@ public abstract class AbstractComponent<P extends PluginComponent<?>> implements
 
 	public final void setComponent(PluginComponentId component) {
 		this.component = component;
+		/* Any tree that has indexed this component must now re-index it */
+		for (DefaultPluginDependencyTree tree : getTrees())
+			tree.reindex(this);
 		dirtyState();
 	}
 
@@ -151,6 +158,18 @@ public abstract class AbstractComponent<P extends PluginComponent<?>> implements
 		this.name = name;
 	}
 
+	final Set<DefaultPluginDependencyTree> getTrees() {
+		return trees.isEmpty() ? Collections.emptySet() : new HashSet<>(trees);
+	}
+
+	final void attachTree(DefaultPluginDependencyTree tree) {
+		trees.add(tree);
+	}
+
+	final void detachTree(DefaultPluginDependencyTree tree) {
+		trees.remove(tree);
+	}
+
 	protected final ResolutionState calcBaseState() {
 		if (getComponentId() != null && getComponentId().isValid()) {
 			return ResolutionState.RESOLVED;
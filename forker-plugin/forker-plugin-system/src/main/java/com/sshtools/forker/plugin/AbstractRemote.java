@@ -1,33 +1,76 @@
 package com.sshtools.forker.plugin;
 
+import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 import java.util.Set;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.SystemUtils;
 
+import com.sshtools.forker.plugin.RemoteTransport.Response;
 import com.sshtools.forker.plugin.api.InstallMode;
 import com.sshtools.forker.plugin.api.PluginArchive;
 import com.sshtools.forker.plugin.api.PluginComponentId;
 import com.sshtools.forker.plugin.api.PluginManager;
 import com.sshtools.forker.plugin.api.PluginProgressMonitor;
+import com.sshtools.forker.plugin.api.PluginProgressMonitor.MessageType;
 import com.sshtools.forker.plugin.api.PluginRemote;
 
 public abstract class AbstractRemote implements PluginRemote {
 
+	/**
+	 * Suffix of the file an archive is downloaded to before it is complete.
+	 */
+	public final static String PART_SUFFIX = ".part";
+
+	private final static int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	private final static MetadataCache DEFAULT_METADATA_CACHE = new MetadataCache(
+			new File(System.getProperty("java.io.tmpdir"), "sps-metadata"), 0);
+
+	/**
+	 * Maximum bytes to transfer between channels at once, so progress can be
+	 * reported for large files.
+	 */
+	private final static long TRANSFER_CHUNK = 8 * 1024 * 1024;
+
 	protected PluginManager manager;
 
 	private String id;
 	private int weight;
 	private boolean enabled = true;
+	private int retries = 3;
+	private RemoteTransport transport;
 
 	protected AbstractRemote(String id) {
 		this(id, 0);
@@ -78,6 +121,50 @@ public abstract class AbstractRemote implements PluginRemote {
 		this.enabled = enabled;
 	}
 
+	/**
+	 * Get the transport used to fetch content. Unless one has been set for this
+	 * remote, this is the transport shared by all remotes of the manager.
+	 * 
+	 * @return transport
+	 */
+	public RemoteTransport getTransport() {
+		if (transport != null)
+			return transport;
+		if (manager instanceof DefaultPluginManager)
+			return ((DefaultPluginManager) manager).getTransport();
+		return DefaultPluginManager.DEFAULT_TRANSPORT;
+	}
+
+	public void setTransport(RemoteTransport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Get the cache used for metadata fetched from this remote.
+	 * 
+	 * @return metadata cache
+	 */
+	public MetadataCache getMetadataCache() {
+		if (manager instanceof DefaultPluginManager)
+			return ((DefaultPluginManager) manager).getMetadataCache();
+		return DEFAULT_METADATA_CACHE;
+	}
+
+	public int getRetries() {
+		return retries;
+	}
+
+	/**
+	 * Set how many times a download that fails part way through is resumed (or
+	 * restarted if the server does not support resuming) before giving up. The
+	 * default is 3.
+	 * 
+	 * @param retries retries
+	 */
+	public void setRetries(int retries) {
+		this.retries = retries;
+	}
+
 	@Override
 	public String getId() {
 		return id;
@@ -121,6 +208,28 @@ public abstract class AbstractRemote implements PluginRemote {
 
 	protected boolean download(PluginProgressMonitor progress, String message, URL url, File outFile)
 			throws IOException, FileNotFoundException {
+		return download(progress, message, url, outFile, null);
+	}
+
+	/**
+	 * Download (or link) a URL to a local file. When the content is copied, it is
+	 * hashed as it arrives. If an expected hash is supplied it must match, or the
+	 * download is discarded. The hash is also recorded in the managers
+	 * {@link HashCache}, so the file does not have to be read again to hash it.
+	 *
+	 * @param progress     progress monitor
+	 * @param message      progress message
+	 * @param url          URL to download
+	 * @param outFile      file to download to
+	 * @param expectedHash hex encoded hash the content must have, or
+	 *                     <code>null</code> to not check it. The algorithm is
+	 *                     determined from the length of the hash.
+	 * @return downloaded
+	 * @throws IOException           on error, including if the hash does not match
+	 * @throws FileNotFoundException if there is nothing at the URL
+	 */
+	protected boolean download(PluginProgressMonitor progress, String message, URL url, File outFile,
+			String expectedHash) throws IOException, FileNotFoundException {
 		InstallMode mode = manager.getInstallMode();
 		if (((SystemUtils.IS_OS_UNIX && mode == InstallMode.AUTO) || mode == InstallMode.LINK)
 				&& url.getProtocol().equals("file")) {
@@ -136,44 +245,424 @@ public abstract class AbstractRemote implements PluginRemote {
 				return false;
 		}
 
-		if (mode == InstallMode.COPY || mode == InstallMode.AUTO || (!url.getProtocol().equals("file"))) {
+		if (mode == InstallMode.COPY || mode == InstallMode.AUTO || mode == InstallMode.CLONE
+				|| (!url.getProtocol().equals("file"))) {
 
 			if (url.getProtocol().equals("file")) {
 				File f = new File(url.getPath()).getAbsoluteFile();
-				if (f.isDirectory()) {
-					// TODO progress
-					FileUtils.copyDirectory(f, outFile);
-					return true;
+				if (!f.exists())
+					throw new FileNotFoundException(f.toString());
+				boolean link = mode == InstallMode.CLONE;
+				if (f.isDirectory())
+					cloneDirectory(progress, message, f, outFile, link);
+				else {
+					if (progress != null)
+						progress.start(f.length());
+					try {
+						cloneFile(progress, message, f, outFile, link, new AtomicLong());
+					} finally {
+						if (progress != null)
+							progress.end();
+					}
+					verifyCopy(progress, url, outFile, expectedHash);
+				}
+				return true;
+			}
+
+			return transfer(progress, message, url, outFile, expectedHash);
+		}
+
+		throw new IllegalStateException(String.format("Install mode %s is not supported on this platform for this URL. Cannot install %s", mode, url));
+	}
+
+	/**
+	 * Copy a directory, copying (or linking) its files in parallel. The copy is
+	 * made next to the target, and replaces it once complete.
+	 */
+	private void cloneDirectory(PluginProgressMonitor progress, String message, File dir, File outDir, boolean link)
+			throws IOException {
+		File part = new File(outDir.getAbsoluteFile().getParentFile(), outDir.getName() + PART_SUFFIX);
+		if (part.exists())
+			FileUtils.forceDelete(part);
+		Path from = dir.toPath();
+		Path to = part.toPath();
+		List<Path> files = new ArrayList<>();
+		long total = 0;
+		try (Stream<Path> paths = Files.walk(from)) {
+			for (Path path : (Iterable<Path>) paths::iterator) {
+				if (Files.isDirectory(path))
+					Files.createDirectories(to.resolve(from.relativize(path)));
+				else {
+					files.add(path);
+					total += Files.size(path);
 				}
 			}
+		}
 
-			URLConnection conx = url.openConnection();
-			long len = conx.getContentLengthLong();
-			if (len == -1) {
-				throw new IOException(String.format("No content length for %s", url));
+		if (progress != null)
+			progress.start(total);
+		try {
+			AtomicLong done = new AtomicLong();
+			List<ForkJoinTask<?>> tasks = new ArrayList<>();
+			for (Path path : files) {
+				tasks.add(ForkJoinPool.commonPool().submit(() -> {
+					try {
+						cloneFile(progress, message, path.toFile(), to.resolve(from.relativize(path)).toFile(), link,
+								done);
+					} catch (IOException ioe) {
+						throw new UncheckedIOException(ioe);
+					}
+				}));
+			}
+			IOException error = null;
+			for (ForkJoinTask<?> task : tasks) {
+				try {
+					task.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(String.format("Interrupted copying %s.", dir), e);
+				} catch (ExecutionException e) {
+					IOException ioe = e.getCause() instanceof UncheckedIOException
+							? ((UncheckedIOException) e.getCause()).getCause()
+							: new IOException(String.format("Failed to copy %s.", dir), e.getCause());
+					if (error == null)
+						error = ioe;
+					else
+						error.addSuppressed(ioe);
+				}
 			}
+			if (error != null) {
+				FileUtils.deleteQuietly(part);
+				throw error;
+			}
+		} finally {
 			if (progress != null)
-				progress.start(len);
-			try (InputStream in = conx.getInputStream()) {
-				byte[] buf = new byte[1024 * 1024];
-				long t = 0;
-				try (OutputStream out = new FileOutputStream(outFile)) {
-					int r;
-					while ((r = in.read(buf)) != -1) {
-						t += r;
-						out.write(buf, 0, r);
-						if (progress != null)
-							progress.progress(t, message);
+				progress.end();
+		}
+
+		if (outDir.exists())
+			FileUtils.forceDelete(outDir);
+		Files.move(to, outDir.toPath());
+	}
+
+	/**
+	 * Copy a single file, either by hard linking to it if it is on the same
+	 * filesystem and linking is allowed, or by transferring between channels so
+	 * the content does not pass through the heap.
+	 */
+	private void cloneFile(PluginProgressMonitor progress, String message, File file, File outFile, boolean link,
+			AtomicLong done) throws IOException {
+		if (outFile.exists() && !outFile.delete())
+			throw new IOException(String.format("Could not delete %s to replace it with %s.", outFile, file));
+		long size = file.length();
+		if (link) {
+			try {
+				Files.createLink(outFile.toPath(), file.toPath());
+				reportCopied(progress, message, done, size);
+				return;
+			} catch (IOException | UnsupportedOperationException e) {
+				/* Different filesystem or links not supported, copy instead */
+			}
+		}
+
+		File part = new File(outFile.getAbsoluteFile().getParentFile(), outFile.getName() + PART_SUFFIX);
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(part.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long pos = 0;
+			while (pos < size) {
+				long t = in.transferTo(pos, Math.min(TRANSFER_CHUNK, size - pos), out);
+				if (t <= 0)
+					throw new EOFException(String.format("%s was truncated while being copied.", file));
+				pos += t;
+				reportCopied(progress, message, done, t);
+			}
+		}
+		Files.move(part.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static void reportCopied(PluginProgressMonitor progress, String message, AtomicLong done, long bytes) {
+		long total = done.addAndGet(bytes);
+		if (progress != null) {
+			synchronized (progress) {
+				progress.progress(total, message);
+			}
+		}
+	}
+
+	/**
+	 * Copy the content of a URL to a file. The content is first written to a
+	 * <code>.part</code> file next to the target, which is only moved into place
+	 * once complete. If the connection drops, the download is resumed using an
+	 * HTTP <code>Range</code> request if the server supports it. A
+	 * <code>.part</code> file left by an earlier failed download is also resumed,
+	 * as long as the server says (using <code>If-Range</code>) the content has not
+	 * changed since.
+	 */
+	private boolean transfer(PluginProgressMonitor progress, String message, URL url, File outFile,
+			String expectedHash) throws IOException {
+		String verifyAlgorithm = expectedHash == null || expectedHash.equals("") ? null
+				: Hashing.algorithmFor(expectedHash);
+		if (expectedHash != null && !expectedHash.equals("") && verifyAlgorithm == null && progress != null)
+			progress.message(MessageType.WARNING,
+					String.format("Cannot verify %s, the hash %s is of an unknown type.", url, expectedHash));
+		String recordAlgorithm = manager instanceof DefaultPluginManager
+				? ((DefaultPluginManager) manager).getHashAlgorithm()
+				: null;
+		Map<String, MessageDigest> digests = new LinkedHashMap<>();
+
+		File dir = outFile.getAbsoluteFile().getParentFile();
+		File part = new File(dir, outFile.getName() + PART_SUFFIX);
+		File partValidator = new File(dir, part.getName() + ".id");
+		String validator = partValidator.exists() && part.exists()
+				? new String(Files.readAllBytes(partValidator.toPath()), StandardCharsets.UTF_8)
+				: null;
+		boolean started = false;
+		int failures = 0;
+		try {
+			while (true) {
+				long have = part.exists() ? part.length() : 0;
+				Map<String, String> headers = new LinkedHashMap<>();
+				if (have > 0 && validator != null) {
+					headers.put("Range", "bytes=" + have + "-");
+					headers.put("If-Range", validator);
+				}
+
+				boolean http = false;
+				try (Response response = getTransport().get(url, headers, false)) {
+					long len;
+					boolean append = false;
+					int code = response.getStatus();
+					http = code != -1;
+					if (code == HttpURLConnection.HTTP_PARTIAL) {
+						long[] range = parseContentRange(response.getHeader("Content-Range"));
+						if (range == null || range[0] != have) {
+							/* Not what was asked for, start again */
+							deletePart(part, partValidator);
+							validator = null;
+							if (++failures > retries)
+								throw new IOException(String.format("Invalid partial content from %s.", url));
+							continue;
+						}
+						append = true;
+						len = range[1];
+					} else if (code == HTTP_RANGE_NOT_SATISFIABLE) {
+						/* Part file doesn't match the resource any more */
+						deletePart(part, partValidator);
+						validator = null;
+						if (++failures > retries)
+							throw new IOException(String.format("Could not resume download of %s.", url));
+						continue;
+					} else if (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_GONE) {
+						throw new FileNotFoundException(url.toString());
+					} else if (code >= HttpURLConnection.HTTP_BAD_REQUEST) {
+						throw new IOException(String.format("Server returned HTTP response code %d for %s", code, url));
+					} else
+						len = response.getContentLength();
+					if (http) {
+						String etag = response.getHeader("ETag");
+						validator = etag == null || etag.startsWith("W/") ? response.getHeader("Last-Modified") : etag;
+					}
+
+					if (len == -1) {
+						throw new IOException(String.format("No content length for %s", url));
+					}
+					if (validator == null)
+						partValidator.delete();
+					else
+						Files.write(partValidator.toPath(), validator.getBytes(StandardCharsets.UTF_8));
+					if (progress != null) {
+						if (started)
+							progress.changeTotal(len);
+						else
+							progress.start(len);
 					}
-					out.flush();
+					started = true;
+
+					digests.clear();
+					for (String algorithm : Arrays.asList(verifyAlgorithm, recordAlgorithm)) {
+						if (algorithm != null && !digests.containsKey(algorithm))
+							digests.put(algorithm, Hashing.digest(algorithm));
+					}
+					if (append) {
+						/* Hash what was already downloaded */
+						try (InputStream in = new FileInputStream(part)) {
+							updateDigests(digests.values(), in, have);
+						}
+					}
+
+					InputStream in = response.getInputStream();
+					byte[] buf = new byte[1024 * 1024];
+					long t = append ? have : 0;
+					try (OutputStream out = new FileOutputStream(part, append)) {
+						int r;
+						while ((r = in.read(buf)) != -1) {
+							t += r;
+							out.write(buf, 0, r);
+							for (MessageDigest digest : digests.values())
+								digest.update(buf, 0, r);
+							if (progress != null)
+								progress.progress(t, message);
+						}
+						out.flush();
+					}
+					if (t != len)
+						throw new EOFException(
+								String.format("Expected %d bytes from %s, but only got %d.", len, url, t));
+					break;
+				} catch (FileNotFoundException fnfe) {
+					throw fnfe;
+				} catch (IOException ioe) {
+					if (!http || ++failures > retries)
+						throw ioe;
+					if (progress != null)
+						progress.message(MessageType.WARNING,
+								String.format("Download of %s interrupted after %d bytes, retrying. %s", url,
+										part.exists() ? part.length() : 0, ioe.getMessage()));
 				}
-				return true;
-			} finally {
+			}
+
+			Map<String, String> hashes = new LinkedHashMap<>();
+			for (Map.Entry<String, MessageDigest> en : digests.entrySet())
+				hashes.put(en.getKey(), Hashing.bytesToHex(en.getValue().digest()));
+			if (verifyAlgorithm != null && !hashes.get(verifyAlgorithm).equalsIgnoreCase(expectedHash)) {
+				deletePart(part, partValidator);
+				throw new IOException(String.format("%s hash of %s is %s, but expected %s.", verifyAlgorithm, url,
+						hashes.get(verifyAlgorithm), expectedHash));
+			}
+
+			try {
+				Files.move(part.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException amnse) {
+				Files.move(part.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			partValidator.delete();
+			if (recordAlgorithm != null)
+				recordHash(outFile, recordAlgorithm, hashes.get(recordAlgorithm));
+			return true;
+		} finally {
+			if (started && progress != null)
 				progress.end();
+		}
+	}
+
+	/**
+	 * Check a file copied (or linked) from a <code>file:</code> URL has the
+	 * expected hash, as {@link #transfer} does for content it downloads. If it
+	 * does not, the copy is deleted. The hash is then recorded in the managers
+	 * {@link HashCache}.
+	 */
+	private void verifyCopy(PluginProgressMonitor progress, URL url, File outFile, String expectedHash)
+			throws IOException {
+		String verifyAlgorithm = expectedHash == null || expectedHash.equals("") ? null
+				: Hashing.algorithmFor(expectedHash);
+		if (expectedHash != null && !expectedHash.equals("") && verifyAlgorithm == null && progress != null)
+			progress.message(MessageType.WARNING,
+					String.format("Cannot verify %s, the hash %s is of an unknown type.", url, expectedHash));
+		String recordAlgorithm = manager instanceof DefaultPluginManager
+				? ((DefaultPluginManager) manager).getHashAlgorithm()
+				: null;
+		String verifyHash = null;
+		if (verifyAlgorithm != null) {
+			verifyHash = Hashing.hash(outFile, verifyAlgorithm);
+			if (!verifyHash.equalsIgnoreCase(expectedHash)) {
+				if (!outFile.delete())
+					throw new IOException(String.format(
+							"%s hash of %s is %s, but expected %s. Could not delete %s.", verifyAlgorithm, url,
+							verifyHash, expectedHash, outFile));
+				throw new IOException(String.format("%s hash of %s is %s, but expected %s.", verifyAlgorithm, url,
+						verifyHash, expectedHash));
 			}
 		}
+		if (recordAlgorithm != null)
+			recordHash(outFile, recordAlgorithm, recordAlgorithm.equalsIgnoreCase(verifyAlgorithm) ? verifyHash
+					: Hashing.hash(outFile, recordAlgorithm));
+	}
 
-		throw new IllegalStateException(String.format("Install mode %s is not supported on this platform for this URL. Cannot install %s", mode, url));
+	private void recordHash(File file, String algorithm, String hash) throws IOException {
+		((DefaultPluginManager) manager).getHashCache().put(file, algorithm, hash);
 	}
 
+	/**
+	 * Get the hash an archive is expected to have, if the archive that asked for it
+	 * to be downloaded knows it.
+	 *
+	 * @param id component ID of archive
+	 * @return hex encoded hash or <code>null</code> if not known
+	 */
+	protected String getExpectedHash(PluginComponentId id) {
+		return manager instanceof DefaultPluginManager
+				? ((DefaultPluginManager) manager).getDownloadScheduler().getExpectedHash(id)
+				: null;
+	}
+
+	/**
+	 * Get the hash a remote publishes alongside some content, as a
+	 * <code>.sha1</code> or <code>.sha256</code> file.
+	 *
+	 * @param url URL of content
+	 * @return hex encoded hash or <code>null</code> if none is published
+	 */
+	protected String getPublishedHash(URL url) {
+		for (String ext : new String[] { ".sha1", ".sha256" }) {
+			try {
+				try (Response response = getTransport().get(new URL(url.toExternalForm() + ext), null, true);
+						BufferedReader reader = new BufferedReader(
+								new InputStreamReader(response.getInputStream(), StandardCharsets.US_ASCII))) {
+					String line = reader.readLine();
+					if (line != null) {
+						/* Some tools write the file name after the hash */
+						String hash = line.trim().split("\\s+")[0];
+						if (Hashing.algorithmFor(hash) != null)
+							return hash;
+					}
+				}
+			} catch (IOException ioe) {
+				// Try the next one
+			}
+		}
+		return null;
+	}
+
+	private static void updateDigests(Collection<MessageDigest> digests, InputStream in, long len)
+			throws IOException {
+		byte[] buf = new byte[65536];
+		long t = 0;
+		int r;
+		while (t < len && (r = in.read(buf, 0, (int) Math.min(buf.length, len - t))) != -1) {
+			t += r;
+			for (MessageDigest digest : digests)
+				digest.update(buf, 0, r);
+		}
+	}
+
+	private static void deletePart(File part, File partValidator) throws IOException {
+		if (part.exists() && !part.delete())
+			throw new IOException(String.format("Could not delete partial download %s.", part));
+		partValidator.delete();
+	}
+
+	/**
+	 * Parse a <code>Content-Range</code> header of the form
+	 * <code>bytes start-end/total</code>.
+	 * 
+	 * @return start offset and total length, or <code>null</code> if invalid or
+	 *         the total is not known
+	 */
+	static long[] parseContentRange(String header) {
+		if (header == null || !header.startsWith("bytes "))
+			return null;
+		try {
+			String spec = header.substring(6).trim();
+			int dash = spec.indexOf('-');
+			int slash = spec.indexOf('/');
+			if (dash == -1 || slash < dash || spec.endsWith("/*"))
+				return null;
+			return new long[] { Long.parseLong(spec.substring(0, dash).trim()),
+					Long.parseLong(spec.substring(slash + 1).trim()) };
+		} catch (NumberFormatException nfe) {
+			return null;
+		}
+	}
 }
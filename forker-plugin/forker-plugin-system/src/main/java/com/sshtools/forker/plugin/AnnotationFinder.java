@@ -1,8 +1,11 @@
 package com.sshtools.forker.plugin;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.Collection;
@@ -22,6 +25,7 @@ public abstract class AnnotationFinder {
 	private Collection<URL> classpath;
 	private boolean stopOnClassNotFound = false;
 	private boolean stopOnOtherErrors = false;
+	private boolean bytecode = true;
 	private Set<String> ignores = new HashSet<>();
 
 	public AnnotationFinder(Collection<URL> classpath) {
@@ -59,27 +63,13 @@ public abstract class AnnotationFinder {
 									String cp = zipEntry.getName().replace('/', '.');
 									cp = cp.substring(0, cp.length() - 6);
 									if (!ignores.contains(cp)) {
-										try {
-											Class<?> clazz = classLoader.loadClass(cp);
-											Plugin plugin = clazz.getAnnotation(Plugin.class);
-											if (plugin != null)
-												onPlugin(clazz, plugin);
-										} catch (ClassNotFoundException e) {
-											missing.add(cp);
-											if (stopOnClassNotFound) {
-												throw new ClassNotFoundException(cp);
+										if (bytecode) {
+											try (InputStream in = new BufferedInputStream(
+													zipfile.getInputStream(zipEntry))) {
+												inspect(missing, cp, in, monitor);
 											}
-											if (monitor != null)
-												monitor.message(MessageType.DEBUG, String
-														.format("Cannot locate class %s to inspect annotations.", cp));
-										} catch (SecurityException | LinkageError | IllegalArgumentException ucve) {
-											missing.add(cp);
-											if (stopOnOtherErrors)
-												throw new ClassNotFoundException(cp);
-											else
-												monitor.message(MessageType.DEBUG,
-														String.format("Cannot load %s.", cp));
-										}
+										} else
+											inspect(missing, cp, monitor);
 									}
 								}
 							}
@@ -99,6 +89,24 @@ public abstract class AnnotationFinder {
 		return missing;
 	}
 
+	public boolean bytecode() {
+		return bytecode;
+	}
+
+	/**
+	 * When <code>true</code> (the default), classes are examined by reading their
+	 * bytecode directly, and only those annotated with {@link Plugin} are ever
+	 * loaded. When <code>false</code>, every class is loaded and its annotations
+	 * inspected using reflection.
+	 *
+	 * @param bytecode scan bytecode
+	 * @return this for chaining
+	 */
+	public AnnotationFinder bytecode(boolean bytecode) {
+		this.bytecode = bytecode;
+		return this;
+	}
+
 	public boolean stopOnClassNotFound() {
 		return stopOnClassNotFound;
 	}
@@ -124,7 +132,32 @@ public abstract class AnnotationFinder {
 		return plugin;
 	}
 
-	protected abstract void onPlugin(Class<?> clazz, Plugin plugin) throws IOException;
+	/**
+	 * Invoked when a plugin class has been found by reading its bytecode. The
+	 * default implementation loads the class and passes it to
+	 * {@link #onPlugin(Class, Plugin)}. Subclasses that only need the class name
+	 * and annotation attributes may override this to avoid loading the class at
+	 * all.
+	 *
+	 * @param className class name
+	 * @param plugin    plugin annotation
+	 * @throws IOException            on error
+	 * @throws ClassNotFoundException if the class cannot be loaded
+	 */
+	protected void onPlugin(String className, Plugin plugin) throws IOException, ClassNotFoundException {
+		onPlugin(classLoader.loadClass(className), plugin);
+	}
+
+	/**
+	 * Invoked when a plugin class has been found. Subclasses should override either
+	 * this or {@link #onPlugin(String, Plugin)}.
+	 *
+	 * @param clazz  class
+	 * @param plugin plugin annotation
+	 * @throws IOException on error
+	 */
+	protected void onPlugin(Class<?> clazz, Plugin plugin) throws IOException {
+	}
 
 	protected void scanDir(Set<String> missing, File base, File file, PluginProgressMonitor monitor)
 			throws IOException, ClassNotFoundException {
@@ -141,29 +174,79 @@ public abstract class AnnotationFinder {
 				String cp = rel.replace(File.separatorChar, '.');
 				cp = cp.substring(0, cp.length() - 6);
 				if (!ignores.contains(cp)) {
-					try {
-						Class<?> clazz = classLoader.loadClass(cp);
-						onClass(clazz);
-					} catch (ClassNotFoundException e) {
-						missing.add(cp);
-						if (stopOnClassNotFound) {
-							throw new ClassNotFoundException(cp);
+					if (bytecode) {
+						try (InputStream in = new BufferedInputStream(new FileInputStream(f))) {
+							inspect(missing, cp, in, monitor);
 						}
-						if (monitor != null)
-							monitor.message(MessageType.WARNING,
-									String.format("Cannot locate class %s to inspect annotations.", cp));
-					} catch (NoClassDefFoundError | UnsupportedClassVersionError ucve) {
-						missing.add(cp);
-						if (stopOnOtherErrors)
-							throw new ClassNotFoundException(cp);
-						else
-							monitor.message(MessageType.DEBUG, String.format("Cannot load %s.", cp));
-					}
+					} else
+						inspect(missing, cp, monitor);
 				}
 			}
 		}
 	}
 
+	/**
+	 * Inspect a class by reading its bytecode. The class is only loaded if it is
+	 * annotated with {@link Plugin}.
+	 */
+	private void inspect(Set<String> missing, String cp, InputStream in, PluginProgressMonitor monitor)
+			throws IOException, ClassNotFoundException {
+		PluginClassReader reader;
+		try {
+			reader = new PluginClassReader(in);
+		} catch (IOException | RuntimeException e) {
+			missing.add(cp);
+			if (stopOnOtherErrors)
+				throw new ClassNotFoundException(cp, e);
+			else if (monitor != null)
+				monitor.message(MessageType.DEBUG, String.format("Cannot read %s. %s", cp, e.getMessage()));
+			return;
+		}
+		Plugin plugin = reader.getPlugin();
+		if (plugin != null) {
+			try {
+				onPlugin(reader.getClassName(), plugin);
+			} catch (ClassNotFoundException e) {
+				classNotFound(missing, cp, monitor);
+			} catch (SecurityException | LinkageError | IllegalArgumentException ucve) {
+				otherError(missing, cp, monitor);
+			}
+		}
+	}
+
+	/**
+	 * Inspect a class by loading it and examining its annotations.
+	 */
+	private void inspect(Set<String> missing, String cp, PluginProgressMonitor monitor)
+			throws IOException, ClassNotFoundException {
+		try {
+			onClass(classLoader.loadClass(cp));
+		} catch (ClassNotFoundException e) {
+			classNotFound(missing, cp, monitor);
+		} catch (SecurityException | LinkageError | IllegalArgumentException ucve) {
+			otherError(missing, cp, monitor);
+		}
+	}
+
+	private void classNotFound(Set<String> missing, String cp, PluginProgressMonitor monitor)
+			throws ClassNotFoundException {
+		missing.add(cp);
+		if (stopOnClassNotFound) {
+			throw new ClassNotFoundException(cp);
+		}
+		if (monitor != null)
+			monitor.message(MessageType.DEBUG, String.format("Cannot locate class %s to inspect annotations.", cp));
+	}
+
+	private void otherError(Set<String> missing, String cp, PluginProgressMonitor monitor)
+			throws ClassNotFoundException {
+		missing.add(cp);
+		if (stopOnOtherErrors)
+			throw new ClassNotFoundException(cp);
+		else if (monitor != null)
+			monitor.message(MessageType.DEBUG, String.format("Cannot load %s.", cp));
+	}
+
 	public AnnotationFinder addIgnores(Set<String> ignores) {
 		this.ignores.addAll(ignores);
 		return this;
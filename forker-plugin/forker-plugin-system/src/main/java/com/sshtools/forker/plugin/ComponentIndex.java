@@ -0,0 +1,240 @@
+package com.sshtools.forker.plugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sshtools.forker.plugin.api.ArchiveType;
+import com.sshtools.forker.plugin.api.PluginArchive;
+import com.sshtools.forker.plugin.api.PluginComponent;
+import com.sshtools.forker.plugin.api.PluginComponentId;
+import com.sshtools.forker.plugin.api.PluginSpec;
+
+/**
+ * Multi-level hash index over the archives (and their plugins) held by a
+ * {@link DefaultPluginDependencyTree}. Components are indexed by group and id,
+ * by group, id and version (both partitioned by {@link ArchiveType}) and by
+ * plugin class name.
+ * <p>
+ * Each entry remembers the position its archive had when it was added to the
+ * tree, so results are returned in exactly the same order as a scan of the
+ * resolved archives (and their children) would produce.
+ */
+class ComponentIndex {
+
+	interface Matcher {
+		boolean match(PluginComponentId id, boolean child);
+	}
+
+	final static class Entry {
+		private final PluginComponent<?> component;
+		private final Entry container;
+		private final long order;
+		private final Set<Entry> children = new LinkedHashSet<>();
+		private PluginComponentId id;
+
+		Entry(PluginComponent<?> component, Entry container, long order) {
+			this.component = component;
+			this.container = container;
+			this.order = order;
+		}
+
+		boolean isChild() {
+			return container != null;
+		}
+
+		long archiveOrder() {
+			return container == null ? order : container.order;
+		}
+
+		long childOrder() {
+			return container == null ? -1 : order;
+		}
+	}
+
+	private final static Comparator<Entry> ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry o1, Entry o2) {
+			int c = Long.compare(o1.archiveOrder(), o2.archiveOrder());
+			return c == 0 ? Long.compare(o1.childOrder(), o2.childOrder()) : c;
+		}
+	};
+
+	private final DefaultPluginDependencyTree tree;
+	private final Map<PluginComponent<?>, Entry> entries = new IdentityHashMap<>();
+	private final Map<PluginComponentId, Set<Entry>> groupAndId = new HashMap<>();
+	private final Map<PluginComponentId, Set<Entry>> version = new HashMap<>();
+	private final Map<String, Set<Entry>> plugin = new HashMap<>();
+	private long sequence;
+
+	ComponentIndex(DefaultPluginDependencyTree tree) {
+		this.tree = tree;
+	}
+
+	void add(PluginArchive archive) {
+		if (entries.containsKey(archive))
+			remove(archive);
+		Entry entry = new Entry(archive, null, ++sequence);
+		put(entry);
+		attach(archive);
+		for (PluginSpec spec : archive.getChildren())
+			childAdded(archive, spec);
+	}
+
+	void remove(PluginArchive archive) {
+		Entry entry = entries.get(archive);
+		if (entry == null || entry.isChild())
+			return;
+		take(entry);
+		detach(archive);
+		for (Entry child : entry.children) {
+			take(child);
+			detach(child.component);
+		}
+		entry.children.clear();
+	}
+
+	void childAdded(PluginArchive archive, PluginSpec spec) {
+		Entry container = entries.get(archive);
+		if (container == null || container.isChild() || entries.containsKey(spec))
+			return;
+		Entry entry = new Entry(spec, container, ++sequence);
+		container.children.add(entry);
+		put(entry);
+		attach(spec);
+	}
+
+	void childRemoved(PluginArchive archive, PluginSpec spec) {
+		Entry entry = entries.get(spec);
+		if (entry != null && entry.container != null && entry.container.component == archive) {
+			entry.container.children.remove(entry);
+			take(entry);
+			detach(spec);
+		}
+	}
+
+	void reindex(PluginComponent<?> component) {
+		Entry entry = entries.get(component);
+		if (entry != null) {
+			take(entry);
+			put(entry);
+		}
+	}
+
+	void clear() {
+		for (PluginComponent<?> c : entries.keySet())
+			detach(c);
+		entries.clear();
+		groupAndId.clear();
+		version.clear();
+		plugin.clear();
+	}
+
+	@SuppressWarnings("unchecked")
+	<T extends PluginComponent<?>> T first(PluginComponentId key, Matcher matcher) {
+		Entry best = null;
+		for (Entry e : candidates(key, key.getType())) {
+			if (matcher.match(e.id, e.isChild()) && (best == null || ORDER.compare(e, best) < 0))
+				best = e;
+		}
+		return best == null ? null : (T) best.component;
+	}
+
+	@SuppressWarnings("unchecked")
+	<T extends PluginComponent<?>> Set<T> list(PluginComponentId key, Matcher matcher, Set<T> collection) {
+		List<Entry> l = new ArrayList<>();
+		for (Entry e : candidates(key, null)) {
+			if (matcher.match(e.id, e.isChild()))
+				l.add(e);
+		}
+		Collections.sort(l, ORDER);
+		for (Entry e : l)
+			collection.add((T) e.component);
+		return collection;
+	}
+
+	/**
+	 * Get the smallest set of entries that could match a key. When a type is
+	 * supplied only that partition is consulted, otherwise all types are.
+	 */
+	private Collection<Entry> candidates(PluginComponentId key, ArchiveType type) {
+		if (key.hasPlugin())
+			return get(plugin, key.getPlugin());
+		Map<PluginComponentId, Set<Entry>> map = key.hasVersion() ? version : groupAndId;
+		if (type != null)
+			return get(map, indexKey(key, type, key.hasVersion()));
+		List<Entry> l = new ArrayList<>();
+		for (ArchiveType t : ArchiveType.values())
+			l.addAll(get(map, indexKey(key, t, key.hasVersion())));
+		return l;
+	}
+
+	private void put(Entry entry) {
+		PluginComponentId id = entry.component.getComponentId();
+		entry.id = id;
+		entries.put(entry.component, entry);
+		if (id == null)
+			return;
+		bucket(groupAndId, indexKey(id, id.getType(), false)).add(entry);
+		if (id.hasVersion())
+			bucket(version, indexKey(id, id.getType(), true)).add(entry);
+		if (id.hasPlugin())
+			bucket(plugin, id.getPlugin()).add(entry);
+	}
+
+	private void take(Entry entry) {
+		entries.remove(entry.component);
+		PluginComponentId id = entry.id;
+		if (id == null)
+			return;
+		unbucket(groupAndId, indexKey(id, id.getType(), false), entry);
+		if (id.hasVersion())
+			unbucket(version, indexKey(id, id.getType(), true), entry);
+		if (id.hasPlugin())
+			unbucket(plugin, id.getPlugin(), entry);
+	}
+
+	private void attach(PluginComponent<?> component) {
+		if (component instanceof AbstractComponent)
+			((AbstractComponent<?>) component).attachTree(tree);
+	}
+
+	private void detach(PluginComponent<?> component) {
+		if (component instanceof AbstractComponent)
+			((AbstractComponent<?>) component).detachTree(tree);
+	}
+
+	private static PluginComponentId indexKey(PluginComponentId id, ArchiveType type, boolean withVersion) {
+		return new PluginComponentId(id.getGroup(), id.getId(), withVersion ? id.getVersion() : null, null, type);
+	}
+
+	private static <K> Set<Entry> get(Map<K, Set<Entry>> map, K key) {
+		Set<Entry> s = map.get(key);
+		return s == null ? Collections.<Entry>emptySet() : s;
+	}
+
+	private static <K> Set<Entry> bucket(Map<K, Set<Entry>> map, K key) {
+		Set<Entry> s = map.get(key);
+		if (s == null) {
+			s = new LinkedHashSet<>();
+			map.put(key, s);
+		}
+		return s;
+	}
+
+	private static <K> void unbucket(Map<K, Set<Entry>> map, K key, Entry entry) {
+		Set<Entry> s = map.get(key);
+		if (s != null) {
+			s.remove(entry);
+			if (s.isEmpty())
+				map.remove(key);
+		}
+	}
+}
@@ -1,8 +1,13 @@
 package com.sshtools.forker.plugin;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.net.URL;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
 
+import com.sshtools.forker.plugin.api.PluginArchive;
 import com.sshtools.forker.plugin.api.PluginComponentId;
 import com.sshtools.forker.plugin.api.PluginDependencyTree;
 import com.sshtools.forker.plugin.api.PluginManager;
@@ -22,6 +27,18 @@ public class DefaultArchive extends AbstractArchive {
 		this.transformed = transformed;
 	}
 
+	@Override
+	protected void writeSnapshot(DataOutput out, ToIntFunction<PluginArchive> archives) throws IOException {
+		super.writeSnapshot(out, archives);
+		out.writeBoolean(transformed);
+	}
+
+	@Override
+	protected void readSnapshot(DataInput in, IntFunction<PluginArchive> archives) throws IOException {
+		super.readSnapshot(in, archives);
+		transformed = in.readBoolean();
+	}
+
 	@Override
 	public void delete() throws IOException {
 		throw new UnsupportedOperationException(String.format("%s is not deleteable.", getComponentId()));
@@ -4,11 +4,19 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import org.apache.maven.artifact.versioning.ArtifactVersion;
 import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
@@ -22,10 +30,12 @@ import com.sshtools.forker.plugin.api.PluginDependencyTree;
 import com.sshtools.forker.plugin.api.PluginManager;
 import com.sshtools.forker.plugin.api.PluginProgressMonitor;
 import com.sshtools.forker.plugin.api.PluginProgressMonitor.MessageType;
+import com.sshtools.forker.plugin.api.PluginResolveContext;
 import com.sshtools.forker.plugin.api.PluginSpec;
 import com.sshtools.forker.plugin.api.ResolutionState;
 import com.sshtools.forker.plugin.maven.MavenFolderArchive;
 import com.sshtools.forker.plugin.maven.MavenJarArchive;
+import com.sshtools.forker.plugin.maven.POMCache;
 
 public class DefaultPluginDependencyTree implements PluginDependencyTree {
 
@@ -38,10 +48,91 @@ public class DefaultPluginDependencyTree implements PluginDependencyTree {
 		boolean match(PluginComponentId id);
 	}
 
+	/**
+	 * The result of examining a single classpath element on a worker thread.
+	 * Messages and any archives added to the tree are recorded so they may be
+	 * replayed on the resolving thread in classpath order.
+	 */
+	final static class ScannedFile implements PluginProgressMonitor {
+		private final File file;
+		private final List<PluginArchive> added = new ArrayList<>();
+		private final List<Object[]> messages = new ArrayList<>();
+		private PluginArchive archive;
+		private Exception error;
+
+		ScannedFile(File file) {
+			this.file = file;
+		}
+
+		@Override
+		public void message(MessageType type, String message) {
+			messages.add(new Object[] { type, message });
+		}
+
+		void replay(PluginProgressMonitor monitor) {
+			for (Object[] m : messages)
+				monitor.message((MessageType) m[0], (String) m[1]);
+		}
+	}
+
+	/**
+	 * An ordered queue of archives to visit. Archives are compared by identity, as
+	 * their component IDs (and so their hash codes) may change while queued.
+	 */
+	protected final static class Worklist {
+		private final Map<PluginArchive, Boolean> queued = new IdentityHashMap<>();
+		private List<PluginArchive> items = new ArrayList<>();
+
+		boolean offer(PluginArchive archive) {
+			if (queued.put(archive, Boolean.TRUE) == null) {
+				items.add(archive);
+				return true;
+			}
+			return false;
+		}
+
+		boolean remove(PluginArchive archive) {
+			return queued.remove(archive) != null;
+		}
+
+		boolean isEmpty() {
+			return queued.isEmpty();
+		}
+
+		Set<PluginArchive> items() {
+			Set<PluginArchive> l = new LinkedHashSet<>();
+			for (PluginArchive archive : items) {
+				if (queued.containsKey(archive))
+					l.add(archive);
+			}
+			return l;
+		}
+
+		List<PluginArchive> drain() {
+			List<PluginArchive> l = new ArrayList<>(queued.size());
+			for (PluginArchive archive : items) {
+				if (queued.remove(archive) != null)
+					l.add(archive);
+			}
+			items = new ArrayList<>();
+			return l;
+		}
+	}
+
 	private PluginClasspath classpath;
 	private Set<PluginArchive> failed = new LinkedHashSet<>();
 	private PluginManager manager;
 	private Set<PluginArchive> resolved = new LinkedHashSet<>();
+	private final ComponentIndex index = new ComponentIndex(this);
+	private Worklist added;
+	private Worklist reread;
+	private File snapshot;
+	private final ThreadLocal<List<PluginArchive>> deferred = new ThreadLocal<>();
+	private int modifications;
+	private int lastPasses;
+	private int lastVisits;
+	private final Map<File, JarMetadata> jars = new ConcurrentHashMap<>();
+	private final Map<String, Set<String>> exclusions = new ConcurrentHashMap<>();
 
 	public DefaultPluginDependencyTree(PluginManager manager) {
 		this(manager, new PluginClasspath() {
@@ -68,6 +159,15 @@ public class DefaultPluginDependencyTree implements PluginDependencyTree {
 
 	@Override
 	public void add(PluginArchive archive, PluginProgressMonitor monitor) {
+		List<PluginArchive> d = deferred.get();
+		if (d == null)
+			addArchive(archive, monitor);
+		else
+			/* Examining a classpath element in parallel, add later in classpath order */
+			d.add(archive);
+	}
+
+	protected synchronized void addArchive(PluginArchive archive, PluginProgressMonitor monitor) {
 
 		ConflictStrategy strategy = manager.getResolutionContext().conflictStrategy();
 		if (strategy == null)
@@ -239,11 +339,11 @@ public class DefaultPluginDependencyTree implements PluginDependencyTree {
 
 		/* Add replacement */
 		if (original == null)
-			resolved.add(replacement);
+			addResolved(replacement);
 		else {
 			/* Remove original and merge replacement */
-			resolved.remove(original);
-			resolved.add(merge(original, replacement));
+			removeResolved(original);
+			addResolved(merge(original, replacement));
 		}
 
 		/* Just in case */
@@ -252,6 +352,13 @@ public class DefaultPluginDependencyTree implements PluginDependencyTree {
 	}
 
 	public PluginArchive addFile(PluginProgressMonitor monitor, File file) throws IOException {
+		PluginArchive arc = createArchive(monitor, file);
+		if (arc != null)
+			add(arc, monitor);
+		return arc;
+	}
+
+	protected PluginArchive createArchive(PluginProgressMonitor monitor, File file) throws IOException {
 		AbstractArchive arc;
 		URL url = file.toURI().toURL();
 		if (file.getName().equals("")) {
@@ -284,7 +391,7 @@ public class DefaultPluginDependencyTree implements PluginDependencyTree {
 //				}
 				}
 				arc.setSize(file.length());
-				arc.setHash(Hashing.sha1(file));
+				arc.setHash(hash(file));
 			} else
 				throw new IllegalArgumentException(String.format("Unknown CLASSPATH element. %s", file));
 
@@ -297,13 +404,268 @@ public class DefaultPluginDependencyTree implements PluginDependencyTree {
 			return null;
 		}
 
-		add(arc, monitor);
 		return arc;
 	}
 
-	@SuppressWarnings("unchecked")
-	protected <T extends PluginComponent<?>> T get(Set<? extends PluginComponent<?>> archives, PluginComponentId key,
-			Class<T> clazz) {
+	/**
+	 * Examine all of the root classpath elements concurrently, then add the
+	 * resulting archives to the tree in classpath order. Each worker runs in the
+	 * same resolution context as the calling thread.
+	 * 
+	 * @param monitor monitor
+	 * @param paths   classpath elements
+	 * @param pool    pool
+	 * @throws IOException on error
+	 */
+	protected void addFiles(PluginProgressMonitor monitor, String[] paths, List<List<PluginArchive>> restored,
+			ForkJoinPool pool) throws IOException {
+		DefaultPluginManager mgr = (DefaultPluginManager) manager;
+		PluginResolveContext ctx = manager.getResolutionContext();
+		List<ForkJoinTask<ScannedFile>> tasks = new ArrayList<>();
+		for (int i = 0; i < paths.length; i++) {
+			ScannedFile scanned = new ScannedFile(new File(paths[i]));
+			tasks.add(restored.get(i) == null
+					? pool.submit(() -> mgr.execTaskInResolveContext(scanned, ctx, (p, c) -> scan(scanned)))
+					: null);
+		}
+		try {
+			for (int i = 0; i < tasks.size(); i++) {
+				if (tasks.get(i) == null) {
+					restoreFile(monitor, new File(paths[i]), restored.get(i), i);
+					continue;
+				}
+				ScannedFile scanned = tasks.get(i).join();
+				monitor.message(MessageType.INFO,
+						String.format("Adding root archive %s", PluginUtils.trimFileName(scanned.file)));
+				scanned.replay(monitor);
+				if (scanned.error instanceof IOException)
+					throw (IOException) scanned.error;
+				else if (scanned.error != null)
+					throw (RuntimeException) scanned.error;
+				for (PluginArchive embedded : scanned.added)
+					add(embedded, monitor);
+				if (scanned.archive != null) {
+					add(scanned.archive, monitor);
+					monitor.progress(i + 1, scanned.archive.getComponentId().toString());
+				}
+			}
+		} finally {
+			for (ForkJoinTask<ScannedFile> task : tasks) {
+				if (task != null)
+					task.cancel(false);
+			}
+		}
+	}
+
+	protected void restoreFile(PluginProgressMonitor monitor, File file, List<PluginArchive> archives, int index) {
+		if (archives.isEmpty())
+			return;
+		monitor.message(MessageType.INFO,
+				String.format("Restoring root archive %s", PluginUtils.trimFileName(file)));
+		for (PluginArchive arc : archives) {
+			add(arc, monitor);
+			monitor.progress(index + 1, arc.getComponentId().toString());
+		}
+	}
+
+	/**
+	 * Get the file the resolved tree is snapshot to, so that archives from
+	 * unchanged classpath elements may be restored rather than examined on the
+	 * next resolution.
+	 * 
+	 * @return snapshot file or <code>null</code> if not snapshot
+	 */
+	public File getSnapshot() {
+		return snapshot;
+	}
+
+	public void setSnapshot(File snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Get the metadata of a jar, only opening it the first time it is needed
+	 * during a resolution or if it has changed since. Metadata is forgotten when
+	 * a resolution completes.
+	 *
+	 * @param file jar file
+	 * @return metadata
+	 * @throws IOException on error
+	 */
+	public JarMetadata getJarMetadata(File file) throws IOException {
+		File key = file.getAbsoluteFile();
+		JarMetadata jar = jars.get(key);
+		if (jar == null || !jar.isCurrent()) {
+			jar = JarMetadata.read(key);
+			jars.put(key, jar);
+		}
+		return jar;
+	}
+
+	/**
+	 * Get the Maven exclusions that apply to the dependencies of an artifact,
+	 * because they were declared by (or inherited by) the dependents that brought
+	 * it into this tree. Exclusions are forgotten when a resolution completes.
+	 *
+	 * @param groupId    group ID
+	 * @param artifactId artifact ID
+	 * @return exclusions, each as <code>groupId:artifactId</code>
+	 */
+	public Set<String> getExclusions(String groupId, String artifactId) {
+		Set<String> set = exclusions.get(groupId + ":" + artifactId);
+		return set == null ? Collections.emptySet() : set;
+	}
+
+	/**
+	 * Add the Maven exclusions of a dependency on an artifact. If the artifact is
+	 * the dependency of more than one dependent, only the exclusions they have in
+	 * common apply, as otherwise something one of them needs could be excluded.
+	 * If this narrows the exclusions of an artifact whose POM has already been
+	 * read, it is read again so that any dependencies it skipped are added.
+	 *
+	 * @param groupId    group ID
+	 * @param artifactId artifact ID
+	 * @param exclusions exclusions, each as <code>groupId:artifactId</code>
+	 */
+	public synchronized void addExclusions(String groupId, String artifactId, Set<String> exclusions) {
+		String key = groupId + ":" + artifactId;
+		Set<String> was = this.exclusions.get(key);
+		Set<String> now = this.exclusions.merge(key, Collections.unmodifiableSet(new LinkedHashSet<>(exclusions)),
+				(a, b) -> {
+					Set<String> common = new LinkedHashSet<>(a);
+					common.retainAll(b);
+					return Collections.unmodifiableSet(common);
+				});
+		if (was != null && now.size() < was.size())
+			exclusionsNarrowed(new PluginComponentId(groupId, artifactId));
+	}
+
+	protected void exclusionsNarrowed(PluginComponentId id) {
+		PluginArchive archive = get(id, PluginArchive.class);
+		boolean wasRead = false;
+		if (archive instanceof MavenJarArchive)
+			wasRead = ((MavenJarArchive) archive).unresolvePOM();
+		else if (archive instanceof MavenFolderArchive)
+			wasRead = ((MavenFolderArchive) archive).unresolvePOM();
+		if (wasRead && reread != null)
+			reread.offer(archive);
+	}
+
+	protected String hash(File file) throws IOException {
+		if (manager instanceof DefaultPluginManager) {
+			DefaultPluginManager mgr = (DefaultPluginManager) manager;
+			return mgr.getHashCache().hash(file, mgr.getHashAlgorithm());
+		}
+		return Hashing.sha1(file);
+	}
+
+	/**
+	 * Start downloading every archive in a pass that will need to be downloaded,
+	 * so they are downloaded in parallel. Each archive still downloads itself as
+	 * it is resolved, but will then just wait for the download already in
+	 * progress.
+	 * 
+	 * @param monitor   monitor
+	 * @param toResolve archives to be resolved this pass
+	 * @param done      archives already resolved
+	 * @param failed    archives that have failed
+	 */
+	protected void prefetch(PluginProgressMonitor monitor, List<PluginArchive> toResolve, Set<PluginArchive> done,
+			Set<PluginArchive> failed) {
+		if (!(manager instanceof DefaultPluginManager) || manager.getRemotes().isEmpty())
+			return;
+		Set<PluginComponentId> ids = new LinkedHashSet<>();
+		for (PluginArchive archive : toResolve) {
+			if (archive instanceof AbstractArchive && !done.contains(archive) && !failed.contains(archive)
+					&& ((AbstractArchive) archive).isDownloadRequired()) {
+				((AbstractArchive) archive).expectHash();
+				ids.add(archive.getComponentId().asOptional(false));
+			}
+		}
+		if (ids.size() > 1) {
+			monitor.message(MessageType.DEBUG, String.format("Prefetching %d archives", ids.size()));
+			((DefaultPluginManager) manager).getDownloadScheduler().prefetch(monitor, ids);
+		}
+	}
+
+	protected void saveHashCache(PluginProgressMonitor monitor) {
+		if (manager instanceof DefaultPluginManager) {
+			HashCache cache = ((DefaultPluginManager) manager).getHashCache();
+			try {
+				cache.save();
+			} catch (IOException | RuntimeException e) {
+				if (monitor != null)
+					monitor.message(MessageType.WARNING,
+							String.format("Failed to write hash cache %s. %s", cache.getFile(), e.getMessage()));
+			}
+		}
+	}
+
+	protected void savePOMCache(PluginProgressMonitor monitor) {
+		if (manager instanceof DefaultPluginManager) {
+			POMCache cache = ((DefaultPluginManager) manager).getPOMCache();
+			try {
+				cache.save();
+			} catch (IOException | RuntimeException e) {
+				if (monitor != null)
+					monitor.message(MessageType.WARNING,
+							String.format("Failed to write POM cache %s. %s", cache.getFile(), e.getMessage()));
+			}
+		}
+	}
+
+	protected ResolutionSnapshot loadSnapshot(PluginProgressMonitor monitor) {
+		if (snapshot != null) {
+			try {
+				return ResolutionSnapshot.load(snapshot, manager, getSnapshotSettings());
+			} catch (IOException | RuntimeException e) {
+				monitor.message(MessageType.WARNING,
+						String.format("Ignoring unreadable resolution snapshot %s. %s", snapshot, e.getMessage()));
+			}
+		}
+		return null;
+	}
+
+	protected void saveSnapshot(PluginProgressMonitor monitor, List<ResolutionSnapshot.Root> keys) {
+		try {
+			ResolutionSnapshot.save(snapshot, getSnapshotSettings(), keys, resolved);
+		} catch (IOException | RuntimeException e) {
+			monitor.message(MessageType.WARNING,
+					String.format("Failed to write resolution snapshot %s. %s", snapshot, e.getMessage()));
+		}
+	}
+
+	/**
+	 * A snapshot is only valid for the same resolution settings it was made with.
+	 */
+	private String getSnapshotSettings() {
+		PluginResolveContext ctx = manager.getResolutionContext();
+		ConflictStrategy strategy = ctx.conflictStrategy();
+		if (strategy == null)
+			strategy = manager.getConflictStrategy();
+		String algorithm = manager instanceof DefaultPluginManager
+				? ((DefaultPluginManager) manager).getHashAlgorithm()
+				: Hashing.SHA1;
+		/* Sorted, so the same scopes in a different order are the same settings */
+		Set<String> scopes = new TreeSet<>(ctx.excludedScopes());
+		return String.format("%s,%s,%s,%s,%s", strategy, ctx.resolveOptional(), ctx.resolvePlugins(), algorithm,
+				String.join(" ", scopes));
+	}
+
+	private ScannedFile scan(ScannedFile scanned) {
+		deferred.set(scanned.added);
+		try {
+			scanned.archive = createArchive(scanned, scanned.file);
+		} catch (IOException | RuntimeException e) {
+			scanned.error = e;
+		} finally {
+			deferred.remove();
+		}
+		return scanned;
+	}
+
+	@Override
+	public synchronized <T extends PluginComponent<?>> T get(PluginComponentId key, Class<T> clazz) {
 
 		if (clazz.equals(PluginSpec.class) && !key.hasPlugin())
 			throw new IllegalArgumentException(String.format(
@@ -312,32 +674,18 @@ public class DefaultPluginDependencyTree implements PluginDependencyTree {
 			throw new IllegalArgumentException(String.format(
 					"No plugin class must be present in the ID %s to be able to locate a plugin archive.", key));
 
-		boolean grpm;
-		boolean idm;
-		boolean verm;
-		boolean plugm;
-		boolean typem;
-		for (PluginComponent<?> a : archives) {
-			grpm = Objects.equals(a.getComponentId().getGroup(), key.getGroup());
-			idm = Objects.equals(a.getComponentId().getId(), key.getId());
-			verm = !key.hasVersion() || (a.getComponentId().hasVersion()
-					&& Objects.equals(a.getComponentId().getVersion(), key.getVersion()));
-			plugm = !key.hasPlugin() || Objects.equals(a.getComponentId().getPlugin(), key.getPlugin());
-			typem = Objects.equals(a.getComponentId().getType(), key.getType());
-			if (grpm && idm && verm && plugm && typem)
-				return (T) a;
-			else if (a instanceof PluginArchive) {
-				T t = get(((PluginArchive) a).getChildren(), key, clazz);
-				if (t != null)
-					return t;
-			}
-		}
-		return null;
+		return index.first(key, (id, child) -> {
+			boolean grpm = Objects.equals(id.getGroup(), key.getGroup());
+			boolean idm = Objects.equals(id.getId(), key.getId());
+			boolean verm = !key.hasVersion() || (id.hasVersion() && Objects.equals(id.getVersion(), key.getVersion()));
+			boolean plugm = !key.hasPlugin() || Objects.equals(id.getPlugin(), key.getPlugin());
+			boolean typem = Objects.equals(id.getType(), key.getType());
+			return grpm && idm && verm && plugm && typem;
+		});
 	}
 
-	protected <T extends PluginComponent<?>> Set<T> list(Set<? extends PluginComponent<?>> components,
-			PluginComponentId key, Class<T> clazz, Set<T> collection) {
-		return list(components, key, clazz, collection, new PluginComponentIdFilter() {
+	protected <T extends PluginComponent<?>> Set<T> list(PluginComponentId key, Class<T> clazz, Set<T> collection) {
+		return list(key, clazz, collection, new PluginComponentIdFilter() {
 
 			@Override
 			public void check(PluginComponentId id) {
@@ -364,29 +712,18 @@ public class DefaultPluginDependencyTree implements PluginDependencyTree {
 		});
 	}
 
-	@SuppressWarnings("unchecked")
-	protected <T extends PluginComponent<?>> Set<T> list(Set<? extends PluginComponent<?>> components,
-			PluginComponentId key, Class<T> clazz, Set<T> collection, PluginComponentIdFilter filter) {
+	protected synchronized <T extends PluginComponent<?>> Set<T> list(PluginComponentId key, Class<T> clazz,
+			Set<T> collection, PluginComponentIdFilter filter) {
 		filter.check(key);
-		for (PluginComponent<?> a : components) {
-			if (filter.match(a.getComponentId())) {
-				collection.add((T) a);
-			}
-			if (a instanceof PluginArchive && clazz.isAssignableFrom(PluginSpec.class))
-				list(((PluginArchive) a).getChildren(), key, clazz, collection);
-		}
-		return collection;
-	}
-
-	@Override
-	public <T extends PluginComponent<?>> T get(PluginComponentId key, Class<T> clazz) {
-		return get(resolved, key, clazz);
+		/* Plugins are only included if the requested class could be a plugin */
+		boolean children = clazz.isAssignableFrom(PluginSpec.class);
+		return index.list(key, (id, child) -> (!child || children) && filter.match(id), collection);
 	}
 
 	@Override
-	public <T extends PluginComponent<?>> T newest(PluginComponentId key, Class<T> clazz) {
+	public synchronized <T extends PluginComponent<?>> T newest(PluginComponentId key, Class<T> clazz) {
 		LinkedHashSet<T> comps = new LinkedHashSet<>();
-		list(resolved, key, clazz, comps);
+		list(key, clazz, comps);
 		T newest = null;
 		ArtifactVersion newestVersion = null;
 		for (T t : comps) {
@@ -403,7 +740,7 @@ public class DefaultPluginDependencyTree implements PluginDependencyTree {
 
 	@Override
 	public <T extends PluginComponent<?>> Set<T> list(PluginComponentId key, Class<T> clazz) {
-		return list(resolved, key, clazz, new LinkedHashSet<>());
+		return list(key, clazz, new LinkedHashSet<>());
 	}
 
 	@Override
@@ -416,7 +753,7 @@ public class DefaultPluginDependencyTree implements PluginDependencyTree {
 		return Collections.unmodifiableSet(resolved);
 	}
 
-	public Set<PluginSpec> getUnresolvedPlugins() {
+	public synchronized Set<PluginSpec> getUnresolvedPlugins() {
 		Set<PluginSpec> r = new LinkedHashSet<>();
 		for (PluginArchive child : resolved) {
 			for (PluginSpec spec : child.getChildren()) {
@@ -428,11 +765,71 @@ public class DefaultPluginDependencyTree implements PluginDependencyTree {
 	}
 
 	@Override
-	public void remove(PluginArchive archive) {
-		resolved.remove(archive);
+	public synchronized void remove(PluginArchive archive) {
+		removeResolved(archive);
 		failed.remove(archive);
 	}
 
+	synchronized void reindex(PluginComponent<?> component) {
+		index.reindex(component);
+	}
+
+	synchronized void childAdded(PluginArchive archive, PluginSpec spec) {
+		index.childAdded(archive, spec);
+	}
+
+	synchronized void childRemoved(PluginArchive archive, PluginSpec spec) {
+		index.childRemoved(archive, spec);
+	}
+
+	private void addResolved(PluginArchive archive) {
+		if (resolved.add(archive)) {
+			index.add(archive);
+			modifications++;
+			if (added != null)
+				added.offer(archive);
+		}
+	}
+
+	private void removeResolved(PluginArchive archive) {
+		if (resolved.remove(archive)) {
+			index.remove(archive);
+			modifications++;
+		}
+	}
+
+	/**
+	 * Get the number of passes made by the last {@link #resolve} call.
+	 * 
+	 * @return passes
+	 */
+	public int getLastPasses() {
+		return lastPasses;
+	}
+
+	/**
+	 * Get the number of times an archive was visited during the last
+	 * {@link #resolve} call.
+	 * 
+	 * @return visits
+	 */
+	public int getLastVisits() {
+		return lastVisits;
+	}
+
+	protected void archiveResolved(PluginArchive archive, Set<PluginArchive> done, Worklist next,
+			Worklist waiting) {
+		done.add(archive);
+		waiting.remove(archive);
+
+		/* Anything that depends on this archive may now be able to make progress */
+		for (PluginComponentId id : archive.getDependents()) {
+			PluginArchive dependent = get(id.hasPlugin() ? id.withoutPlugin() : id, PluginArchive.class);
+			if (dependent != null && !done.contains(dependent) && waiting.remove(dependent))
+				next.offer(dependent);
+		}
+	}
+
 	@Override
 	public Set<PluginArchive> resolve(PluginProgressMonitor monitor, boolean reset) throws IOException {
 
@@ -442,8 +839,10 @@ public class DefaultPluginDependencyTree implements PluginDependencyTree {
 		try {
 			String[] paths = getClassPath().getPath();
 
-			if (reset)
+			if (reset) {
 				resolved.clear();
+				index.clear();
+			}
 			failed.clear();
 
 			/**
@@ -457,96 +856,227 @@ public class DefaultPluginDependencyTree implements PluginDependencyTree {
 			 * will be fully resolved. Anything with dependencies will be unresolved until
 			 * it's dependencies are resolved.
 			 */
+			ResolutionSnapshot last = reset ? loadSnapshot(monitor) : null;
+			List<ResolutionSnapshot.Root> keys = new ArrayList<>();
+			List<List<PluginArchive>> restored = new ArrayList<>();
+			for (String path : paths) {
+				ResolutionSnapshot.Root key = snapshot == null ? null : ResolutionSnapshot.key(new File(path));
+				if (key != null)
+					keys.add(key);
+				restored.add(last == null ? null : last.restore(key));
+			}
+
 			if (monitor != null) {
 				monitor.progress(1, "Resolving root archives");
 				monitor.start(paths.length);
 			}
 			try {
-				for (int i = 0; i < paths.length; i++) {
-					File file = new File(paths[i]);
-					monitor.message(MessageType.INFO,
-							String.format("Adding root archive %s", PluginUtils.trimFileName(file)));
-					PluginArchive arc = addFile(monitor, file);
-					if (arc != null)
-						monitor.progress(i + 1, arc.getComponentId().toString());
+				if (last != null && last.isUnchanged(keys)) {
+					/*
+					 * No file has changed, so restore the tree exactly as it was. Only class
+					 * folders need to be examined.
+					 */
+					monitor.message(MessageType.INFO, String.format("Restoring all root archives from %s", snapshot));
+					for (PluginArchive arc : last.getArchives())
+						add(arc, monitor);
+					for (int i = 0; i < restored.size(); i++) {
+						if (restored.get(i) != null)
+							restored.set(i, Collections.emptyList());
+					}
+					last = null;
+				}
+
+				ForkJoinPool pool = manager.getResolutionContext().scanPool();
+				if (pool != null && manager instanceof DefaultPluginManager && paths.length > 1) {
+					addFiles(monitor, paths, restored, pool);
+				} else {
+					for (int i = 0; i < paths.length; i++) {
+						File file = new File(paths[i]);
+						if (restored.get(i) != null) {
+							restoreFile(monitor, file, restored.get(i), i);
+							continue;
+						}
+						monitor.message(MessageType.INFO,
+								String.format("Adding root archive %s", PluginUtils.trimFileName(file)));
+						PluginArchive arc = addFile(monitor, file);
+						if (arc != null)
+							monitor.progress(i + 1, arc.getComponentId().toString());
+					}
+				}
+
+				/*
+				 * Restore anything from the snapshot that did not come from a classpath
+				 * element, unless an examined element has since provided it.
+				 */
+				if (last != null) {
+					for (PluginArchive arc : last.getRootless()) {
+						if (get(arc.getComponentId().idAndGroup(), PluginArchive.class) == null)
+							add(arc, monitor);
+					}
+
+					/*
+					 * Archives that were examined again will not know what restored archives
+					 * depend on them, as those POMs are not read again
+					 */
+					Set<PluginArchive> wasRestored = Collections.newSetFromMap(new IdentityHashMap<>());
+					wasRestored.addAll(last.getArchives());
+					for (PluginArchive arc : last.getArchives()) {
+						for (PluginComponentId depId : arc.getDependencies()) {
+							PluginArchive dep = get(depId, PluginArchive.class);
+							if (dep != null && !wasRestored.contains(dep))
+								dep.addDependent(arc.getComponentId());
+						}
+					}
 				}
 			} finally {
 				monitor.end();
 			}
 
-			Set<PluginArchive> stopResolving = new LinkedHashSet<>();
-
 			/*
 			 * Task 2 - X
 			 * 
-			 * Now everything that wasn't completely resolved
-			 *
+			 * Now everything that wasn't completely resolved. Rather than revisiting every
+			 * archive on every pass, a worklist is kept. An archive is only visited again
+			 * if it made progress on its last visit, if something that depends on it was
+			 * resolved, or if it was newly added to the tree.
 			 **/
-
-			Set<PluginArchive> toResolve = new LinkedHashSet<>(resolved);
 			Set<PluginArchive> failed = new LinkedHashSet<>();
+			Set<PluginArchive> done = Collections.newSetFromMap(new IdentityHashMap<>());
+			Worklist next = new Worklist();
+			Worklist waiting = new Worklist();
+			Worklist wasAdded = added;
+			Worklist wasReread = reread;
+			added = new Worklist();
+			reread = new Worklist();
 			int pass = 0;
+			int visits = 0;
+			boolean sweeping = false;
+			boolean progressed = false;
 
-			failed.clear();
-			while (true) {
+			for (PluginArchive archive : resolved)
+				next.offer(archive);
 
-				/* What should we try to resolve this round */
-				toResolve.clear();
-				toResolve = new LinkedHashSet<>(resolved);
-				toResolve.removeAll(stopResolving);
-				toResolve.removeAll(failed);
+			try {
+				while (true) {
 
-				if (toResolve.isEmpty())
-					break;
+					/* Anything added to the tree since the last pass must be visited */
+					for (PluginArchive archive : added.drain()) {
+						if (!done.contains(archive))
+							next.offer(archive);
+					}
 
-				pass++;
+					/* Anything whose POM must be read again because its exclusions narrowed */
+					for (PluginArchive archive : reread.drain()) {
+						done.remove(archive);
+						waiting.remove(archive);
+						failed.remove(archive);
+						next.offer(archive);
+					}
 
-				/*
-				 * Only resolve if number of resolve archives has changed in any way, or if the
-				 * resolution state for any of those has change.
-				 * 
-				 * Do at least 2 passes as the first pass may result in no changes.
-				 */
-				if (monitor != null) {
-					monitor.changeTotal(pass + 2);
-					monitor.progress(pass + 1, "Resolve pass " + pass);
-					monitor.start(toResolve.size());
-				}
-				try {
-					if (pass > 1000) {
-						monitor.message(MessageType.ERROR, "Cycle involving "
-								+ String.join(",", PluginComponentId.toString(PluginUtils.toIds(toResolve))));
-						break;
+					if (next.isEmpty()) {
+						if (waiting.isEmpty())
+							break;
+
+						/*
+						 * Nothing is known to be able to make progress. Archives may have been
+						 * resolved as a side effect of resolving something else, so give everything
+						 * still waiting one more visit. If a whole sweep changes nothing, the rest
+						 * can never be resolved.
+						 */
+						if (sweeping && !progressed) {
+							monitor.message(MessageType.ERROR, "Cycle involving "
+									+ String.join(",", PluginComponentId.toString(PluginUtils.toIds(waiting.items()))));
+							break;
+						}
+						for (PluginArchive archive : waiting.drain())
+							next.offer(archive);
+						sweeping = true;
+						progressed = false;
 					}
 
-					int p = 0;
-					for (PluginArchive archive : toResolve) {
-
-						ResolutionState state = archive.getState();
-						monitor.message(MessageType.INFO, String.format(String.format("%s(%-10s) %s",
-								PluginUtils.spaces(pass), state, archive.getComponentId())));
-
-						if (monitor != null)
-							monitor.progress(++p, archive.getComponentId().toString());
-						if (!state.isResolved()) {
-							try {
-								archive.resolve(monitor);
-							} catch (HaltResolutionException ise) {
-								// Will not be resolvable, don't try again
-								failed.addAll(ise.getArchives());
-							} catch (ResolutionRetryException rre) {
-								// Make sure we retry
-								failed.removeAll(rre.getArchives());
+					/* What should we try to resolve this round */
+					List<PluginArchive> toResolve = next.drain();
+					toResolve.removeAll(failed);
+					if (toResolve.isEmpty())
+						continue;
+
+					pass++;
+
+					if (monitor != null) {
+						monitor.changeTotal(pass + 2);
+						monitor.progress(pass + 1, "Resolve pass " + pass);
+						monitor.start(toResolve.size());
+					}
+					try {
+						if (pass > 1000) {
+							monitor.message(MessageType.ERROR, "Cycle involving " + String.join(",",
+									PluginComponentId.toString(PluginUtils.toIds(new LinkedHashSet<>(toResolve)))));
+							break;
+						}
+
+						prefetch(monitor, toResolve, done, failed);
+
+						int p = 0;
+						for (PluginArchive archive : toResolve) {
+							if (done.contains(archive) || failed.contains(archive))
+								continue;
+
+							visits++;
+							ResolutionState state = archive.getState();
+							monitor.message(MessageType.INFO, String.format(String.format("%s(%-10s) %s",
+									PluginUtils.spaces(pass), state, archive.getComponentId())));
+
+							if (monitor != null)
+								monitor.progress(++p, archive.getComponentId().toString());
+							if (!state.isResolved()) {
+								int wasModifications = modifications;
+								boolean retry = false;
+								try {
+									archive.resolve(monitor);
+								} catch (HaltResolutionException ise) {
+									// Will not be resolvable, don't try again
+									failed.addAll(ise.getArchives());
+								} catch (ResolutionRetryException rre) {
+									// Make sure we retry
+									failed.removeAll(rre.getArchives());
+									for (PluginArchive retryArchive : rre.getArchives())
+										next.offer(retryArchive);
+									retry = true;
+								}
+
+								ResolutionState newState = archive.getState();
+								boolean changed = retry || newState != state || wasModifications != modifications;
+								if (changed)
+									progressed = true;
+								if (newState.isResolved())
+									archiveResolved(archive, done, next, waiting);
+								else if (!failed.contains(archive)) {
+									if (changed)
+										next.offer(archive);
+									else
+										waiting.offer(archive);
+								}
+							} else {
+								progressed = true;
+								archiveResolved(archive, done, next, waiting);
 							}
-						} else {
-							stopResolving.add(archive);
 						}
+					} finally {
+						monitor.end();
 					}
-				} finally {
-					monitor.end();
 				}
+			} finally {
+				added = wasAdded;
+				reread = wasReread;
 			}
 
+			lastPasses = pass;
+			lastVisits = visits;
+			if (monitor != null)
+				monitor.message(MessageType.DEBUG,
+						String.format("Resolved %d archives in %d passes with %d archive visits", resolved.size(),
+								pass, visits));
+
 			if (monitor != null) {
 				for (PluginArchive failure : failed) {
 					if (!failure.getComponentId().isOptional() || manager.getResolutionContext().resolveOptional())
@@ -585,8 +1115,16 @@ public class DefaultPluginDependencyTree implements PluginDependencyTree {
 //				}
 //			}
 
-			resolved.addAll(failed);
+			for (PluginArchive failure : failed)
+				addResolved(failure);
+
+			if (snapshot != null)
+				saveSnapshot(monitor, keys);
+			saveHashCache(monitor);
+			savePOMCache(monitor);
 		} finally {
+			jars.clear();
+			exclusions.clear();
 			if (monitor != null)
 				monitor.end();
 		}
@@ -19,6 +19,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
@@ -43,6 +44,8 @@ import com.sshtools.forker.plugin.api.PluginResolveContext;
 import com.sshtools.forker.plugin.api.PluginScope;
 import com.sshtools.forker.plugin.api.PluginSpec;
 import com.sshtools.forker.plugin.api.ResolutionState;
+import com.sshtools.forker.plugin.maven.DependencyManagement;
+import com.sshtools.forker.plugin.maven.POMCache;
 
 public class DefaultPluginManager implements PluginManager {
 
@@ -50,13 +53,17 @@ public class DefaultPluginManager implements PluginManager {
 
 		public DefaultPluginResolveContext() {
 			super();
+			scanPool(DefaultPluginManager.this.scanPool);
+			excludedScopes(DefaultPluginManager.this.excludedScopes);
 		}
 
 		@Override
 		public PluginDependencyTree getDependencyTree() {
 			if (dependencyTree == null) {
-				dependencyTree = new DefaultPluginDependencyTree(DefaultPluginManager.this,
+				DefaultPluginDependencyTree tree = new DefaultPluginDependencyTree(DefaultPluginManager.this,
 						new DefaultClasspath(DefaultPluginManager.this));
+				tree.setSnapshot(snapshot);
+				dependencyTree = tree;
 			}
 			return dependencyTree;
 		}
@@ -64,6 +71,9 @@ public class DefaultPluginManager implements PluginManager {
 
 	final static String META_INF_PLUGINS = "META-INF/plugins";
 
+	final static RemoteTransport DEFAULT_TRANSPORT = new URLConnectionTransport();
+	final static POMCache SHARED_POM_CACHE = new POMCache();
+
 	private static ThreadLocal<Stack<PluginResolveContext>> resolving = new ThreadLocal<>();
 
 	private boolean autostart;
@@ -80,8 +90,170 @@ public class DefaultPluginManager implements PluginManager {
 	private boolean traces;
 	private ResolutionState cachedState;
 	private InstallMode installMode = InstallMode.AUTO;
+	private ForkJoinPool scanPool;
+	private Set<String> excludedScopes = PluginResolveContext.DEFAULT_EXCLUDED_SCOPES;
+	private File snapshot;
+	private HashCache hashCache;
+	private String hashAlgorithm = Hashing.SHA1;
+	private DownloadScheduler downloadScheduler;
+	private RemoteTransport transport = DEFAULT_TRANSPORT;
+	private MetadataCache metadataCache;
+	private POMCache pomCache;
+	private DependencyManagement dependencyManagement = new DependencyManagement(this);
 
 	public DefaultPluginManager() {
+		String snapshotPath = System.getProperty("sps.snapshot", System.getenv("SPS_SNAPSHOT"));
+		if (snapshotPath != null && !snapshotPath.equals(""))
+			snapshot = new File(snapshotPath);
+		String hashCachePath = System.getProperty("sps.hashCache", System.getenv("SPS_HASH_CACHE"));
+		hashCache = new HashCache(
+				hashCachePath != null && !hashCachePath.equals("") ? new File(hashCachePath) : null);
+		String pomCachePath = System.getProperty("sps.pomCache", System.getenv("SPS_POM_CACHE"));
+		String pomCacheSize = System.getProperty("sps.pomCacheSize", System.getenv("SPS_POM_CACHE_SIZE"));
+		if ((pomCachePath == null || pomCachePath.equals("")) && (pomCacheSize == null || pomCacheSize.equals("")))
+			pomCache = SHARED_POM_CACHE;
+		else
+			pomCache = new POMCache(
+					pomCachePath != null && !pomCachePath.equals("") ? new File(pomCachePath) : null,
+					pomCacheSize != null && !pomCacheSize.equals("") ? Integer.parseInt(pomCacheSize)
+							: POMCache.DEFAULT_SIZE);
+		String algo = System.getProperty("sps.hashAlgorithm", System.getenv("SPS_HASH_ALGORITHM"));
+		if (algo != null && !algo.equals(""))
+			hashAlgorithm = algo;
+		downloadScheduler = new DownloadScheduler(this,
+				Integer.parseInt(System.getProperty("sps.downloadThreads",
+						System.getenv().getOrDefault("SPS_DOWNLOAD_THREADS", "4"))),
+				Integer.parseInt(System.getProperty("sps.downloadsPerRemote",
+						System.getenv().getOrDefault("SPS_DOWNLOADS_PER_REMOTE", "2"))));
+	}
+
+	public DownloadScheduler getDownloadScheduler() {
+		return downloadScheduler;
+	}
+
+	/**
+	 * Set the scheduler used to download archives from remotes. By default at
+	 * most 4 archives are downloaded at once, and at most 2 from any single
+	 * remote. These defaults may be changed using the
+	 * <code>sps.downloadThreads</code> and <code>sps.downloadsPerRemote</code>
+	 * system properties or <code>SPS_DOWNLOAD_THREADS</code> and
+	 * <code>SPS_DOWNLOADS_PER_REMOTE</code> environment variables.
+	 * 
+	 * @param downloadScheduler download scheduler
+	 */
+	public void setDownloadScheduler(DownloadScheduler downloadScheduler) {
+		if (downloadScheduler == null)
+			throw new IllegalArgumentException("Download scheduler may not be null.");
+		this.downloadScheduler.shutdown();
+		this.downloadScheduler = downloadScheduler;
+	}
+
+	public synchronized MetadataCache getMetadataCache() {
+		if (metadataCache == null) {
+			String path = System.getProperty("sps.metadataCache", System.getenv("SPS_METADATA_CACHE"));
+			File dir = path != null && !path.equals("") ? new File(path)
+					: new File(local.getAbsoluteFile().getParentFile(), local.getName() + "-metadata");
+			metadataCache = new MetadataCache(dir, Long.parseLong(System.getProperty("sps.metadataTtl",
+					System.getenv().getOrDefault("SPS_METADATA_TTL", "600"))) * 1000);
+		}
+		return metadataCache;
+	}
+
+	/**
+	 * Set the cache of metadata fetched from remotes. By default metadata is
+	 * kept in a directory next to the local repository (or the directory given
+	 * by the <code>sps.metadataCache</code> system property or
+	 * <code>SPS_METADATA_CACHE</code> environment variable), and revalidated
+	 * after 600 seconds (or the number of seconds given by
+	 * <code>sps.metadataTtl</code> or <code>SPS_METADATA_TTL</code>).
+	 * 
+	 * @param metadataCache metadata cache
+	 */
+	public synchronized void setMetadataCache(MetadataCache metadataCache) {
+		this.metadataCache = metadataCache;
+	}
+
+	public RemoteTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Set the transport shared by all remotes to fetch archives and metadata. By
+	 * default this is a {@link URLConnectionTransport}.
+	 * 
+	 * @param transport transport
+	 */
+	public void setTransport(RemoteTransport transport) {
+		if (transport == null)
+			throw new IllegalArgumentException("Transport may not be null.");
+		this.transport = transport;
+	}
+
+	public HashCache getHashCache() {
+		return hashCache;
+	}
+
+	/**
+	 * Set the cache used to avoid hashing archives that have not changed. By
+	 * default the cache is persisted to the file given by the
+	 * <code>sps.hashCache</code> system property or <code>SPS_HASH_CACHE</code>
+	 * environment variable, otherwise it only lasts for the life of this manager.
+	 * 
+	 * @param hashCache hash cache
+	 */
+	public void setHashCache(HashCache hashCache) {
+		if (hashCache == null)
+			throw new IllegalArgumentException("Hash cache may not be null.");
+		this.hashCache = hashCache;
+	}
+
+	public POMCache getPOMCache() {
+		return pomCache;
+	}
+
+	/**
+	 * Set the cache of parsed POMs. POMs are keyed by their content, so by
+	 * default one in-memory cache of {@link POMCache#DEFAULT_SIZE} POMs is shared
+	 * by every manager. If the <code>sps.pomCache</code> system property or
+	 * <code>SPS_POM_CACHE</code> environment variable is set, this manager
+	 * instead has its own cache persisted to that file. The number of POMs cached
+	 * may be changed using <code>sps.pomCacheSize</code> or
+	 * <code>SPS_POM_CACHE_SIZE</code>.
+	 * 
+	 * @param pomCache POM cache
+	 */
+	public void setPOMCache(POMCache pomCache) {
+		if (pomCache == null)
+			throw new IllegalArgumentException("POM cache may not be null.");
+		this.pomCache = pomCache;
+	}
+
+	/**
+	 * Get the resolver of the dependency management (from parent POMs and BOMs)
+	 * that applies to POMs. Resolved parents and BOMs are cached for the life of
+	 * this manager, or until remotes are added or removed.
+	 * 
+	 * @return dependency management
+	 */
+	public DependencyManagement getDependencyManagement() {
+		return dependencyManagement;
+	}
+
+	public String getHashAlgorithm() {
+		return hashAlgorithm;
+	}
+
+	/**
+	 * Set the digest algorithm used to hash archives, e.g. {@link Hashing#SHA1}
+	 * (the default) or {@link Hashing#SHA256}. By default this is taken from the
+	 * <code>sps.hashAlgorithm</code> system property or
+	 * <code>SPS_HASH_ALGORITHM</code> environment variable. Feature files list
+	 * SHA-1 hashes, so changing this means hashes will no longer match theirs.
+	 * 
+	 * @param hashAlgorithm algorithm
+	 */
+	public void setHashAlgorithm(String hashAlgorithm) {
+		this.hashAlgorithm = hashAlgorithm;
 	}
 
 	public InstallMode getInstallMode() {
@@ -92,6 +264,57 @@ public class DefaultPluginManager implements PluginManager {
 		this.installMode = installMode;
 	}
 
+	public File getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Set the file the resolved dependency tree is snapshot to. On the next
+	 * resolution, archives from classpath elements that have not changed (by size
+	 * and modification time) are restored from the snapshot instead of being
+	 * examined again. By default this is taken from the <code>sps.snapshot</code>
+	 * system property or <code>SPS_SNAPSHOT</code> environment variable, and is
+	 * otherwise <code>null</code> (no snapshot).
+	 * 
+	 * @param snapshot snapshot file
+	 */
+	public void setSnapshot(File snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	public ForkJoinPool getScanPool() {
+		return scanPool;
+	}
+
+	/**
+	 * Set the pool to use to examine the root classpath elements in parallel. The
+	 * resolution passes that follow always run on the calling thread. By default
+	 * this is <code>null</code>, and the elements are examined on the calling
+	 * thread too.
+	 * 
+	 * @param scanPool pool
+	 */
+	public void setScanPool(ForkJoinPool scanPool) {
+		this.scanPool = scanPool;
+	}
+
+	public Set<String> getExcludedScopes() {
+		return excludedScopes;
+	}
+
+	/**
+	 * Set the Maven dependency scopes that are not resolved when the dependencies
+	 * of a POM are followed, for every resolution context this manager creates.
+	 * By default these are {@link PluginResolveContext#DEFAULT_EXCLUDED_SCOPES}.
+	 * 
+	 * @param excludedScopes excluded scopes
+	 */
+	public void setExcludedScopes(Set<String> excludedScopes) {
+		if (excludedScopes == null)
+			throw new IllegalArgumentException("Excluded scopes may not be null.");
+		this.excludedScopes = excludedScopes;
+	}
+
 	@Override
 	public void addRemote(PluginRemote remote) throws IOException {
 		if (remotes.contains(remote))
@@ -99,13 +322,18 @@ public class DefaultPluginManager implements PluginManager {
 		remotes.add(remote);
 		Collections.sort(remotes);
 		remote.init(this);
+		dependencyManagement.clear();
 	}
 
 	@Override
 	public void close() throws IOException {
 		ProgressSink progress = new ProgressSink();
-		while (plugins.size() > 0) {
-			closePlugin(plugins.values().iterator().next().getComponentId().toString(), progress);
+		try {
+			while (plugins.size() > 0) {
+				closePlugin(plugins.values().iterator().next().getComponentId().toString(), progress);
+			}
+		} finally {
+			downloadScheduler.shutdown();
 		}
 	}
 
@@ -170,19 +398,10 @@ public class DefaultPluginManager implements PluginManager {
 			throw new IOException(String.format("There are no remotes to download %s:%s:%s from.", pa.getGroup(),
 					pa.getId(), pa.getVersion()));
 
-		if (!local.exists() && !local.mkdirs())
-			throw new IOException(String.format("Could not create local archives directory %s.", local));
-
-		for (PluginRemote r : remotes) {
-			if (r.isEnabled()) {
-				URL d = r.retrieve(progress, pa);
-				if (d != null) {
-					progress.message(MessageType.INFO, String.format("Downloaded %s from %s", pa, d));
-					return d;
-				}
-			}
-		}
-		return null;
+		URL d = downloadScheduler.download(progress, pa);
+		if (d != null)
+			progress.message(MessageType.INFO, String.format("Downloaded %s from %s", pa, d));
+		return d;
 	}
 
 	@Override
@@ -375,26 +594,11 @@ public class DefaultPluginManager implements PluginManager {
 
 						}
 					}
-					List<PluginComponentId> idList = new LinkedList<>(Arrays.asList(ids));
-					progress.start(remotes.size());
-					try {
-						int r = 0;
-						for (PluginRemote remote : remotes) {
-							if (idList.isEmpty())
-								break;
-							if (remote.isEnabled()) {
-								progress.progress(++r, String.format("Querying %s", remote.getId()));
-								for (int i = idList.size() - 1; i >= 0; i--) {
-									PluginComponentId id = idList.get(i);
-									URL url = remote.retrieve(progress, id);
-									if (url != null) {
-										idList.remove(i);
-									}
-								}
-							}
-						}
-					} finally {
-						progress.end();
+					List<PluginComponentId> idList = new LinkedList<>();
+					for (Map.Entry<PluginComponentId, URL> en : downloadScheduler
+							.downloadAll(progress, Arrays.asList(ids)).entrySet()) {
+						if (en.getValue() == null)
+							idList.add(en.getKey());
 					}
 					if (!idList.isEmpty())
 						throw new IOException(
@@ -444,7 +648,7 @@ public class DefaultPluginManager implements PluginManager {
 			public DefaultPluginDependencyTree getDependencyTree() {
 				return tempTree;
 			}
-		}.failOnError(false).resolvePlugins(false).conflictStrategy(
+		}.failOnError(false).resolvePlugins(false).excludedScopes(excludedScopes).conflictStrategy(
 				conflictStrategy == ConflictStrategy.ERROR ? ConflictStrategy.USE_BOTH : conflictStrategy),
 				(p, resolve) -> {
 					monitor.start(remotes.size());
@@ -479,7 +683,7 @@ public class DefaultPluginManager implements PluginManager {
 			public DefaultPluginDependencyTree getDependencyTree() {
 				return tempTree;
 			}
-		}.failOnError(false).resolvePlugins(false).conflictStrategy(
+		}.failOnError(false).resolvePlugins(false).excludedScopes(excludedScopes).conflictStrategy(
 				conflictStrategy == ConflictStrategy.ERROR ? ConflictStrategy.USE_BOTH : conflictStrategy),
 				(p, resolve) -> {
 					monitor.start(remotes.size());
@@ -510,6 +714,7 @@ public class DefaultPluginManager implements PluginManager {
 			throw new IllegalArgumentException(String.format("Remote already %s added.", remote.getId()));
 		remotes.remove(remote);
 		remote.close();
+		dependencyManagement.clear();
 	}
 
 	@Override
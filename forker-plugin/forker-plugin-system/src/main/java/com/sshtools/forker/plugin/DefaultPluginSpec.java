@@ -55,6 +55,10 @@ public class DefaultPluginSpec extends AbstractNode<PluginArchive> implements Pl
 		return getParent().getClassLoader();
 	}
 
+	public String[] getDependencyNames() {
+		return dependencyNames;
+	}
+
 	public Throwable getError() {
 		return error;
 	}
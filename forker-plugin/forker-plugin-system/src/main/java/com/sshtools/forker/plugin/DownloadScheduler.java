@@ -0,0 +1,344 @@
+package com.sshtools.forker.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sshtools.forker.plugin.api.PluginComponentId;
+import com.sshtools.forker.plugin.api.PluginProgressMonitor;
+import com.sshtools.forker.plugin.api.PluginRemote;
+
+/**
+ * Downloads archives from the remotes of a {@link DefaultPluginManager} on a
+ * pool of threads. At most {@link #getParallelism()} downloads run at once, and
+ * at most {@link #getRemoteLimit()} of those may be from any single remote. A
+ * request for an archive that is already being downloaded waits for that
+ * download rather than starting another.
+ * <p>
+ * A download is reported to the monitor of whoever first requested it. When
+ * many archives are downloaded together using
+ * {@link #downloadAll(PluginProgressMonitor, Collection)}, progress is reported
+ * as the number of archives complete, and only messages are passed on from the
+ * individual downloads.
+ */
+public class DownloadScheduler {
+
+	/**
+	 * Passes on only the messages of a download, for when the download is running
+	 * alongside something else that reports to the same monitor.
+	 */
+	final static class MessageMonitor implements PluginProgressMonitor {
+		private final PluginProgressMonitor delegate;
+
+		MessageMonitor(PluginProgressMonitor delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return delegate.isCancelled();
+		}
+
+		@Override
+		public void message(MessageType type, String message) {
+			synchronized (delegate) {
+				delegate.message(type, message);
+			}
+		}
+	}
+
+	private final DefaultPluginManager manager;
+	private final Map<PluginComponentId, CompletableFuture<URL>> inFlight = new ConcurrentHashMap<>();
+	private final Map<String, Semaphore> remoteLimits = new ConcurrentHashMap<>();
+	private final Map<PluginComponentId, String> expectedHashes = new ConcurrentHashMap<>();
+	private final AtomicInteger threads = new AtomicInteger();
+
+	private ThreadPoolExecutor executor;
+	private int parallelism;
+	private int remoteLimit;
+
+	/**
+	 * Create a scheduler for a manager.
+	 *
+	 * @param manager     manager
+	 * @param parallelism maximum number of downloads at once
+	 * @param remoteLimit maximum number of downloads at once from any one remote
+	 */
+	public DownloadScheduler(DefaultPluginManager manager, int parallelism, int remoteLimit) {
+		this.manager = manager;
+		setParallelism(parallelism);
+		setRemoteLimit(remoteLimit);
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Set the maximum number of downloads that may run at once. This may be
+	 * changed at any time, downloads already running are not affected.
+	 *
+	 * @param parallelism maximum number of downloads at once
+	 */
+	public synchronized void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be at least 1.");
+		this.parallelism = parallelism;
+		if (executor != null) {
+			if (parallelism > executor.getMaximumPoolSize()) {
+				executor.setMaximumPoolSize(parallelism);
+				executor.setCorePoolSize(parallelism);
+			} else {
+				executor.setCorePoolSize(parallelism);
+				executor.setMaximumPoolSize(parallelism);
+			}
+		}
+	}
+
+	public int getRemoteLimit() {
+		return remoteLimit;
+	}
+
+	/**
+	 * Set the maximum number of downloads that may run at once from any single
+	 * remote. Downloads already running are not affected.
+	 *
+	 * @param remoteLimit maximum number of downloads at once from any one remote
+	 */
+	public void setRemoteLimit(int remoteLimit) {
+		if (remoteLimit < 1)
+			throw new IllegalArgumentException("Remote limit must be at least 1.");
+		this.remoteLimit = remoteLimit;
+		remoteLimits.clear();
+	}
+
+	/**
+	 * Set the hash an archive is expected to have once downloaded, for example as
+	 * published in a feature. Remotes that do not publish their own hashes will
+	 * verify downloads against this.
+	 *
+	 * @param id   component ID of archive
+	 * @param hash hex encoded hash
+	 */
+	public void expectHash(PluginComponentId id, String hash) {
+		expectedHashes.put(id, hash);
+	}
+
+	/**
+	 * Get the hash an archive is expected to have once downloaded.
+	 *
+	 * @param id component ID of archive
+	 * @return hex encoded hash or <code>null</code> if not known
+	 */
+	public String getExpectedHash(PluginComponentId id) {
+		return expectedHashes.get(id);
+	}
+
+	/**
+	 * Get if an archive is currently being downloaded.
+	 *
+	 * @param id component ID of archive
+	 * @return downloading
+	 */
+	public boolean isDownloading(PluginComponentId id) {
+		return inFlight.containsKey(id);
+	}
+
+	/**
+	 * Start downloading an archive, or join the download already in progress for
+	 * the same archive.
+	 *
+	 * @param progress progress monitor
+	 * @param id       component ID of archive
+	 * @return future URL of the downloaded archive, which will be
+	 *         <code>null</code> if no remote has it
+	 */
+	public CompletableFuture<URL> schedule(PluginProgressMonitor progress, PluginComponentId id) {
+		CompletableFuture<URL> future = new CompletableFuture<>();
+		CompletableFuture<URL> existing = inFlight.putIfAbsent(id, future);
+		if (existing != null)
+			return existing;
+		try {
+			getExecutor().execute(() -> {
+				try {
+					future.complete(retrieve(progress, id));
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				} finally {
+					inFlight.remove(id, future);
+				}
+			});
+		} catch (RuntimeException re) {
+			inFlight.remove(id, future);
+			future.completeExceptionally(re);
+		}
+		return future;
+	}
+
+	/**
+	 * Download an archive, waiting for it to complete.
+	 *
+	 * @param progress progress monitor
+	 * @param id       component ID of archive
+	 * @return URL of downloaded archive or <code>null</code> if no remote has it
+	 * @throws IOException on error
+	 */
+	public URL download(PluginProgressMonitor progress, PluginComponentId id) throws IOException {
+		return get(schedule(progress, id), id);
+	}
+
+	/**
+	 * Download many archives at once, waiting for all of them to complete.
+	 * Progress is reported as the number of archives that have completed.
+	 *
+	 * @param progress progress monitor
+	 * @param ids      component IDs of archives
+	 * @return URL of each archive that was downloaded, keyed by component ID. Any
+	 *         archive that no remote has will have a <code>null</code> URL.
+	 * @throws IOException if any download failed. All downloads will have
+	 *                     completed.
+	 */
+	public Map<PluginComponentId, URL> downloadAll(PluginProgressMonitor progress, Collection<PluginComponentId> ids)
+			throws IOException {
+		Map<PluginComponentId, CompletableFuture<URL>> futures = new LinkedHashMap<>();
+		Map<PluginComponentId, URL> urls = new LinkedHashMap<>();
+		PluginProgressMonitor messages = new MessageMonitor(progress);
+		AtomicInteger completed = new AtomicInteger();
+		Collection<PluginComponentId> unique = new LinkedHashSet<>(ids);
+		progress.start(unique.size());
+		try {
+			for (PluginComponentId id : unique) {
+				futures.put(id, schedule(messages, id).whenComplete((url, e) -> {
+					synchronized (progress) {
+						progress.progress(completed.incrementAndGet(),
+								String.format(url == null ? "Could not download %s" : "Downloaded %s", id));
+					}
+				}));
+			}
+			IOException first = null;
+			for (Map.Entry<PluginComponentId, CompletableFuture<URL>> en : futures.entrySet()) {
+				try {
+					urls.put(en.getKey(), get(en.getValue(), en.getKey()));
+				} catch (IOException ioe) {
+					if (first == null)
+						first = ioe;
+					else
+						first.addSuppressed(ioe);
+				}
+			}
+			if (first != null)
+				throw first;
+			return urls;
+		} finally {
+			progress.end();
+		}
+	}
+
+	/**
+	 * Start downloading archives without waiting for them, for example because it
+	 * is known they will be needed shortly. Only messages are reported to the
+	 * monitor, so it may be used by something else at the same time. Failures are
+	 * not reported here, but to whoever later asks for the same archive while it
+	 * is still in progress, otherwise the download is simply attempted again.
+	 *
+	 * @param progress progress monitor
+	 * @param ids      component IDs of archives
+	 */
+	public void prefetch(PluginProgressMonitor progress, Collection<PluginComponentId> ids) {
+		PluginProgressMonitor messages = new MessageMonitor(progress);
+		for (PluginComponentId id : ids)
+			schedule(messages, id);
+	}
+
+	/**
+	 * Stop the download threads. Downloads already running will be completed, but
+	 * no more will be started until a download is next scheduled.
+	 */
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	protected URL retrieve(PluginProgressMonitor progress, PluginComponentId id) throws IOException {
+		File local = manager.getLocal();
+		if (!local.exists() && !local.mkdirs() && !local.exists())
+			throw new IOException(String.format("Could not create local archives directory %s.", local));
+
+		List<PluginRemote> remotes = new ArrayList<>(manager.getRemotes());
+		for (PluginRemote r : remotes) {
+			if (progress.isCancelled())
+				throw new CancellationException(String.format("Download of %s cancelled.", id));
+			if (r.isEnabled()) {
+				Semaphore limit = remoteLimits.computeIfAbsent(r.getId(), k -> new Semaphore(remoteLimit));
+				try {
+					limit.acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(String.format("Interrupted waiting to download %s from %s.", id, r.getId()),
+							e);
+				}
+				try {
+					URL d = r.retrieve(progress, id);
+					if (d != null)
+						return d;
+				} finally {
+					limit.release();
+				}
+			}
+		}
+		return null;
+	}
+
+	private synchronized ThreadPoolExecutor getExecutor() {
+		if (executor == null) {
+			executor = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<>(), r -> {
+						Thread t = new Thread(r, "SPS-Download-" + threads.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					});
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	private static URL get(CompletableFuture<URL> future, PluginComponentId id) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(String.format("Interrupted while downloading %s.", id), e);
+		} catch (ExecutionException | CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw new IOException(String.format("Failed to download %s. %s", id, cause.getMessage()), cause);
+			else if (cause instanceof UncheckedIOException)
+				throw new IOException(String.format("Failed to download %s. %s", id, cause.getMessage()),
+						cause.getCause());
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(String.format("Failed to download %s.", id), cause);
+		}
+	}
+}
@@ -4,21 +4,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
-import java.net.URLConnection;
-import java.util.ArrayList;
-import java.util.List;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.apache.commons.lang3.StringUtils;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
+import com.sshtools.forker.plugin.FeatureDescriptor.ArchiveDescriptor;
+import com.sshtools.forker.plugin.FeatureDescriptor.PluginDescriptor;
+import com.sshtools.forker.plugin.RemoteTransport.Response;
 import com.sshtools.forker.plugin.api.ArchiveType;
 import com.sshtools.forker.plugin.api.Plugin;
 import com.sshtools.forker.plugin.api.PluginArchive;
@@ -32,6 +21,7 @@ public class FeatureArchive extends AbstractArchiveWithDependencies {
 
 	private boolean depsLoaded = false;
 	private boolean remote;
+	private FeatureDescriptor descriptor;
 
 	public FeatureArchive(PluginManager manager, URL archive, PluginProgressMonitor monitor, boolean remote)
 			throws IOException {
@@ -39,6 +29,20 @@ public class FeatureArchive extends AbstractArchiveWithDependencies {
 		this.remote = remote;
 	}
 
+	/**
+	 * Create a remote feature that has already been parsed, so its descriptor
+	 * does not need to be fetched again.
+	 * 
+	 * @param manager    manager
+	 * @param archive    location of feature descriptor
+	 * @param descriptor parsed descriptor
+	 */
+	public FeatureArchive(PluginManager manager, URL archive, FeatureDescriptor descriptor) {
+		super(manager, archive);
+		this.remote = true;
+		this.descriptor = descriptor;
+	}
+
 	@Override
 	protected ResolutionState calcState() {
 		ResolutionState base = calcBaseState();
@@ -77,106 +81,71 @@ public class FeatureArchive extends AbstractArchiveWithDependencies {
 	protected void resolveFeature(PluginProgressMonitor monitor) throws IOException {
 
 		URL archive = getArchive();
-		DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
 		PluginDependencyTree depTree = getManager().getResolutionContext().getDependencyTree();
-		try {
-			DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-			URLConnection featureConx = archive.openConnection();
-			InputStream featureInputStream = featureConx.getInputStream();
-			if (featureInputStream != null) {
-				try {
-					Document document = documentBuilder.parse(featureInputStream);
-					Element root = document.getDocumentElement();
-
-					/* Feature itself */
-					PluginComponentId featureCid = new PluginComponentId(root.getAttribute("id")).withType(ArchiveType.FEATURE);
-					setHash(root.getAttribute("hash"));
-					setComponent(featureCid);
-
-					NodeList featureNodes = root.getChildNodes();
-					for (int h = 0; h < featureNodes.getLength(); h++) {
-						Node featureNode = featureNodes.item(h);
-						if (featureNode.getNodeName().equals("archives")) {
-
-							/* Archives in the feature */
-							NodeList archives = featureNode.getChildNodes();
-							for (int i = 0; i < archives.getLength(); i++) {
-								Node arcnode = archives.item(i);
-								if (arcnode instanceof Element) {
-									Element arcel = (Element) arcnode;
-									PluginComponentId arcid = new PluginComponentId(arcel.getAttribute("id"));
-
-									PluginArchive arc = depTree.get(arcid, PluginArchive.class);
-									if (arc == null) {
-										arc = new DefaultArchive(getManager(),
-												new URL(getArchive(), arcid.toFilename() + ".jar"), arcid, remote);
-										arc.setSize(Long.parseLong(arcel.getAttribute("size")));
-										arc.setHash(arcel.getAttribute("hash"));
-
-										/* Plugins in the archive */
-										NodeList plugins = arcnode.getChildNodes();
-										for (int j = 0; j < plugins.getLength(); j++) {
-											Node pnode = plugins.item(j);
-											if (pnode instanceof Element) {
-												Element pluginel = (Element) pnode;
-												String pluginClassname = pluginel.getAttribute("class");
-												if (StringUtils.isBlank(pluginClassname))
-													throw new IOException("Missing 'class' attribute in <plugin> tag.");
-												PluginComponentId pluginid = new PluginComponentId(arcid,
-														pluginClassname);
-
-												List<String> dependencyNames = new ArrayList<>();
-												NodeList plugindeps = pluginel.getChildNodes();
-												for (int k = 0; k < plugindeps.getLength(); k++) {
-													Node pdnode = plugindeps.item(k);
-													if (pdnode.getNodeName().equals("dependency"))
-														dependencyNames.add(pdnode.getTextContent().trim());
-												}
-
-												DefaultPluginSpec spec = new DefaultPluginSpec(arc, pluginid,
-														dependencyNames.toArray(new String[0]),
-														pluginel.getAttribute("name"),
-														pluginel.getAttribute("description"));
-
-												String start = pluginel.getAttribute("start");
-												if (start != null) {
-													switch (Plugin.StartMode.valueOf(start)) {
-													case AUTO:
-														spec.setAutostart(true);
-														break;
-													case MANUAL:
-														spec.setAutostart(false);
-														break;
-													case DEFAULT:
-														spec.setAutostart(getParent().isAutostart());
-														break;
-													}
-												} else {
-													spec.setAutostart(getParent().isAutostart());
-												}
-												arc.addChild(spec);
-											}
-										}
-
-										depTree.add(arc, monitor);
-									}
-									addDependency(arcid);
-									arc.addDependent(featureCid);
-								}
-							}
+		FeatureDescriptor feature = descriptor;
+		if (feature == null) {
+			RemoteTransport transport = getManager() instanceof DefaultPluginManager
+					? ((DefaultPluginManager) getManager()).getTransport()
+					: DefaultPluginManager.DEFAULT_TRANSPORT;
+			try (Response featureResponse = transport.get(archive, null, true)) {
+				InputStream featureInputStream = featureResponse.getInputStream();
+				if (featureInputStream == null)
+					throw new FileNotFoundException(String.format("Feature descriptor %s not found.", archive));
+				feature = FeatureDescriptor.parse(featureInputStream);
+			}
+		}
+
+		/* Feature itself */
+		PluginComponentId featureCid = new PluginComponentId(feature.getId()).withType(ArchiveType.FEATURE);
+		setHash(feature.getHash());
+		setComponent(featureCid);
+
+		/* Archives in the feature */
+		for (ArchiveDescriptor arcdesc : feature.getArchives()) {
+			PluginComponentId arcid = new PluginComponentId(arcdesc.getId());
+
+			PluginArchive arc = depTree.get(arcid, PluginArchive.class);
+			if (arc == null) {
+				arc = new DefaultArchive(getManager(), new URL(getArchive(), arcid.toFilename() + ".jar"), arcid,
+						remote);
+				if (arcdesc.getSize() != -1)
+					arc.setSize(arcdesc.getSize());
+				arc.setHash(arcdesc.getHash());
+
+				/* Plugins in the archive */
+				for (PluginDescriptor plugindesc : arcdesc.getPlugins()) {
+					PluginComponentId pluginid = new PluginComponentId(arcid, plugindesc.getClassName());
+
+					DefaultPluginSpec spec = new DefaultPluginSpec(arc, pluginid,
+							plugindesc.getDependencies().toArray(new String[0]), plugindesc.getName(),
+							plugindesc.getDescription());
+					spec.setStatic(plugindesc.isStaticLoad());
+
+					String start = plugindesc.getStart();
+					if (start != null) {
+						switch (Plugin.StartMode.valueOf(start)) {
+						case AUTO:
+							spec.setAutostart(true);
+							break;
+						case MANUAL:
+							spec.setAutostart(false);
+							break;
+						case DEFAULT:
+							spec.setAutostart(getParent().isAutostart());
+							break;
 						}
+					} else {
+						spec.setAutostart(getParent().isAutostart());
 					}
-					depsLoaded = true;
-				} finally {
-					featureInputStream.close();
+					arc.addChild(spec);
 				}
-			} else
-				throw new FileNotFoundException(String.format("Feature descriptor %s not found.", archive));
-		} catch (ParserConfigurationException pce) {
-			throw new IOException("Could not configure XML parser. ", pce);
-		} catch (SAXException e) {
-			throw new IOException("Could not parse XML. ", e);
+
+				depTree.add(arc, monitor);
+			}
+			addDependency(arcid);
+			arc.addDependent(featureCid);
 		}
+		depsLoaded = true;
 	}
 
 }
@@ -0,0 +1,154 @@
+package com.sshtools.forker.plugin;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.sshtools.forker.plugin.FeatureDescriptor.ArchiveDescriptor;
+import com.sshtools.forker.plugin.FeatureDescriptor.PluginDescriptor;
+
+/**
+ * Reads and writes the aggregated catalog of a feature repository. The catalog
+ * contains every feature descriptor in the repository, along with its location
+ * relative to the repository, so a {@link FeatureRemote} can learn everything
+ * about the repository with a single request rather than one for
+ * <code>features.txt</code> and one for each feature.
+ * <p>
+ * The catalog may be gzip compressed, this is detected when it is read.
+ */
+public class FeatureCatalog {
+
+	/**
+	 * Path of the uncompressed catalog, relative to the repository.
+	 */
+	public final static String PATH = "catalog.xml";
+
+	/**
+	 * Path of the compressed catalog, relative to the repository.
+	 */
+	public final static String COMPRESSED_PATH = PATH + ".gz";
+
+	private FeatureCatalog() {
+	}
+
+	/**
+	 * Read a catalog, which may be gzip compressed.
+	 *
+	 * @param in input stream
+	 * @return feature descriptors, keyed by location relative to the repository
+	 * @throws IOException on error
+	 */
+	public static Map<String, FeatureDescriptor> read(InputStream in) throws IOException {
+		in = new BufferedInputStream(in);
+		in.mark(2);
+		int b1 = in.read();
+		int b2 = in.read();
+		in.reset();
+		if (b1 == (GZIPInputStream.GZIP_MAGIC & 0xff) && b2 == (GZIPInputStream.GZIP_MAGIC >> 8))
+			in = new GZIPInputStream(in);
+
+		try {
+			XMLStreamReader reader = FeatureDescriptor.createReader(in);
+			try {
+				Map<String, FeatureDescriptor> features = new LinkedHashMap<>();
+				if (FeatureDescriptor.nextChild(reader)) {
+					while (FeatureDescriptor.nextChild(reader)) {
+						if (reader.getLocalName().equals("feature")) {
+							String location = FeatureDescriptor.attribute(reader, "location");
+							if (StringUtils.isBlank(location))
+								throw new IOException("Missing 'location' attribute in <feature> tag.");
+							features.put(location, FeatureDescriptor.parse(reader));
+						} else
+							FeatureDescriptor.skip(reader);
+					}
+				}
+				return Collections.unmodifiableMap(features);
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not parse XML. ", e);
+		}
+	}
+
+	/**
+	 * Write a catalog.
+	 *
+	 * @param out      output stream
+	 * @param features feature descriptors, keyed by location relative to the
+	 *                 repository
+	 * @param compress gzip compress the catalog
+	 * @throws IOException on error
+	 */
+	public static void write(OutputStream out, Map<String, FeatureDescriptor> features, boolean compress)
+			throws IOException {
+		GZIPOutputStream gzout = compress ? new GZIPOutputStream(out, 65536) : null;
+		try {
+			XMLStreamWriter writer = XMLOutputFactory.newInstance()
+					.createXMLStreamWriter(gzout == null ? out : gzout, "UTF-8");
+			writer.writeStartDocument("UTF-8", "1.0");
+			writer.writeStartElement("catalog");
+			for (Map.Entry<String, FeatureDescriptor> en : features.entrySet()) {
+				FeatureDescriptor feature = en.getValue();
+				writer.writeStartElement("feature");
+				writer.writeAttribute("location", en.getKey());
+				writer.writeAttribute("id", feature.getId());
+				writer.writeAttribute("hash", feature.getHash());
+				writer.writeStartElement("archives");
+				for (ArchiveDescriptor archive : feature.getArchives()) {
+					writer.writeStartElement("archive");
+					writer.writeAttribute("id", archive.getId());
+					if (archive.getSize() != -1)
+						writer.writeAttribute("size", String.valueOf(archive.getSize()));
+					writer.writeAttribute("hash", archive.getHash());
+					for (PluginDescriptor plugin : archive.getPlugins()) {
+						if (plugin.getDependencies().isEmpty())
+							writer.writeEmptyElement("plugin");
+						else
+							writer.writeStartElement("plugin");
+						writer.writeAttribute("class", plugin.getClassName());
+						writer.writeAttribute("staticLoad", String.valueOf(plugin.isStaticLoad()));
+						if (plugin.getStart() != null)
+							writer.writeAttribute("start", plugin.getStart());
+						if (StringUtils.isNotBlank(plugin.getName()))
+							writer.writeAttribute("name", plugin.getName());
+						if (StringUtils.isNotBlank(plugin.getDescription()))
+							writer.writeAttribute("description", plugin.getDescription());
+						if (!plugin.getDependencies().isEmpty()) {
+							for (String dep : plugin.getDependencies()) {
+								writer.writeStartElement("dependency");
+								writer.writeCharacters(dep);
+								writer.writeEndElement();
+							}
+							writer.writeEndElement();
+						}
+					}
+					writer.writeEndElement();
+				}
+				writer.writeEndElement();
+				writer.writeEndElement();
+			}
+			writer.writeEndElement();
+			writer.writeEndDocument();
+			writer.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not write catalog.", e);
+		}
+		if (gzout != null)
+			gzout.finish();
+		out.flush();
+	}
+}
@@ -0,0 +1,293 @@
+package com.sshtools.forker.plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The parsed content of a feature descriptor (<code>@FEATURE.xml</code>), the
+ * archives it contains and the plugins in those archives. Descriptors are
+ * immutable, so one parsed copy may be shared, for example by every listing of
+ * a {@link FeatureRemote}.
+ */
+public class FeatureDescriptor {
+
+	private final static XMLInputFactory INPUT_FACTORY;
+
+	static {
+		INPUT_FACTORY = XMLInputFactory.newInstance();
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+	}
+
+	public final static class PluginDescriptor {
+		private final String className;
+		private final String name;
+		private final String description;
+		private final String start;
+		private final boolean staticLoad;
+		private final List<String> dependencies;
+
+		PluginDescriptor(String className, String name, String description, String start, boolean staticLoad,
+				List<String> dependencies) {
+			this.className = className;
+			this.name = name;
+			this.description = description;
+			this.start = start;
+			this.staticLoad = staticLoad;
+			this.dependencies = Collections.unmodifiableList(dependencies);
+		}
+
+		public String getClassName() {
+			return className;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		/**
+		 * Get the start mode.
+		 *
+		 * @return start mode or <code>null</code> if not specified
+		 */
+		public String getStart() {
+			return start;
+		}
+
+		public boolean isStaticLoad() {
+			return staticLoad;
+		}
+
+		public List<String> getDependencies() {
+			return dependencies;
+		}
+	}
+
+	public final static class ArchiveDescriptor {
+		private final String id;
+		private final long size;
+		private final String hash;
+		private final List<PluginDescriptor> plugins;
+
+		ArchiveDescriptor(String id, long size, String hash, List<PluginDescriptor> plugins) {
+			this.id = id;
+			this.size = size;
+			this.hash = hash;
+			this.plugins = Collections.unmodifiableList(plugins);
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		/**
+		 * Get the size of the archive.
+		 *
+		 * @return size or -1 if not known
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+
+		public List<PluginDescriptor> getPlugins() {
+			return plugins;
+		}
+	}
+
+	private final String id;
+	private final String hash;
+	private final List<ArchiveDescriptor> archives;
+
+	FeatureDescriptor(String id, String hash, List<ArchiveDescriptor> archives) {
+		this.id = id;
+		this.hash = hash;
+		this.archives = Collections.unmodifiableList(archives);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public List<ArchiveDescriptor> getArchives() {
+		return archives;
+	}
+
+	/**
+	 * Parse a feature descriptor. The descriptor is streamed, so no document
+	 * model is built however many archives and plugins it has.
+	 *
+	 * @param in input stream
+	 * @return descriptor
+	 * @throws IOException on error
+	 */
+	public static FeatureDescriptor parse(InputStream in) throws IOException {
+		try {
+			XMLStreamReader reader = createReader(in);
+			try {
+				if (!nextChild(reader))
+					throw new IOException("Empty feature descriptor.");
+				return parse(reader);
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not parse XML. ", e);
+		}
+	}
+
+	static XMLStreamReader createReader(InputStream in) throws XMLStreamException {
+		return INPUT_FACTORY.createXMLStreamReader(in);
+	}
+
+	/**
+	 * Parse a feature descriptor element. The reader must be positioned at the
+	 * start of the element, and is left at its end.
+	 *
+	 * @param reader reader
+	 * @return descriptor
+	 * @throws IOException        on error
+	 * @throws XMLStreamException on XML error
+	 */
+	static FeatureDescriptor parse(XMLStreamReader reader) throws IOException, XMLStreamException {
+		String id = attribute(reader, "id");
+		String hash = attribute(reader, "hash");
+		List<ArchiveDescriptor> archives = new ArrayList<>();
+		while (nextChild(reader)) {
+			if (reader.getLocalName().equals("archives")) {
+				while (nextChild(reader))
+					archives.add(parseArchive(reader));
+			} else
+				skip(reader);
+		}
+		return new FeatureDescriptor(id, hash, archives);
+	}
+
+	/**
+	 * Move to the start of the next child element of the current element.
+	 *
+	 * @param reader reader
+	 * @return <code>true</code> if positioned at a child, or <code>false</code>
+	 *         if positioned at the end of the current element
+	 * @throws XMLStreamException on error
+	 */
+	static boolean nextChild(XMLStreamReader reader) throws XMLStreamException {
+		while (reader.hasNext()) {
+			switch (reader.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				return true;
+			case XMLStreamConstants.END_ELEMENT:
+				return false;
+			default:
+				break;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Skip the current element and everything in it.
+	 *
+	 * @param reader reader
+	 * @throws XMLStreamException on error
+	 */
+	static void skip(XMLStreamReader reader) throws XMLStreamException {
+		while (nextChild(reader))
+			skip(reader);
+	}
+
+	static String attribute(XMLStreamReader reader, String name) {
+		String val = reader.getAttributeValue(null, name);
+		return val == null ? "" : val;
+	}
+
+	private static ArchiveDescriptor parseArchive(XMLStreamReader reader) throws IOException, XMLStreamException {
+		String id = attribute(reader, "id");
+		long size = parseSize(attribute(reader, "size"));
+		String hash = attribute(reader, "hash");
+		List<PluginDescriptor> plugins = new ArrayList<>();
+		while (nextChild(reader)) {
+			String className = attribute(reader, "class");
+			if (StringUtils.isBlank(className))
+				throw new IOException("Missing 'class' attribute in <plugin> tag.");
+			String name = attribute(reader, "name");
+			String description = attribute(reader, "description");
+			String start = StringUtils.defaultIfBlank(attribute(reader, "start"), null);
+			boolean staticLoad = Boolean.parseBoolean(attribute(reader, "staticLoad"));
+			List<String> dependencies = new ArrayList<>();
+			while (nextChild(reader)) {
+				String child = reader.getLocalName();
+				if (child.equals("dependency"))
+					dependencies.add(text(reader).trim());
+				else if (child.equals("description") && description.equals(""))
+					description = text(reader).trim();
+				else
+					skip(reader);
+			}
+			plugins.add(new PluginDescriptor(className, name, description, start, staticLoad, dependencies));
+		}
+		return new ArchiveDescriptor(id, size, hash, plugins);
+	}
+
+	/**
+	 * Read all of the text in the current element, including that of any child
+	 * elements.
+	 *
+	 * @param reader reader
+	 * @return text
+	 * @throws XMLStreamException on error
+	 */
+	private static String text(XMLStreamReader reader) throws XMLStreamException {
+		StringBuilder text = new StringBuilder();
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()) {
+			switch (reader.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				depth++;
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				depth--;
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+				break;
+			default:
+				break;
+			}
+		}
+		return text.toString();
+	}
+
+	static long parseSize(String size) throws IOException {
+		if (StringUtils.isBlank(size))
+			return -1;
+		try {
+			return Long.parseLong(size.trim());
+		} catch (NumberFormatException nfe) {
+			throw new IOException(String.format("Invalid archive size '%s'.", size), nfe);
+		}
+	}
+}
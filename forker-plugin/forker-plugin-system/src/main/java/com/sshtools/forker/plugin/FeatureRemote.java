@@ -2,25 +2,36 @@ package com.sshtools.forker.plugin;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.maven.artifact.versioning.ArtifactVersion;
 import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
 
+import com.sshtools.forker.plugin.FeatureDescriptor.ArchiveDescriptor;
 import com.sshtools.forker.plugin.api.PluginArchive;
 import com.sshtools.forker.plugin.api.PluginComponentId;
 import com.sshtools.forker.plugin.api.PluginProgressMonitor;
+import com.sshtools.forker.plugin.api.PluginProgressMonitor.MessageType;
 
 public class FeatureRemote extends AbstractRemote {
 
+	private volatile Catalog catalog;
+	private long catalogTtl = -1;
+
 	public FeatureRemote(String id) {
 		super(id);
 	}
@@ -46,29 +57,65 @@ public class FeatureRemote extends AbstractRemote {
 		return getURL().getProtocol().equals("file");
 	}
 
+	/**
+	 * Get how long a parsed catalog is kept in memory before it is checked for
+	 * changes.
+	 * 
+	 * @return time to live in milliseconds
+	 */
+	public long getCatalogTtl() {
+		return catalogTtl < 0 ? getMetadataCache().getTtl() : catalogTtl;
+	}
+
+	/**
+	 * Set how long a parsed catalog is kept in memory before it is checked for
+	 * changes. By default this is the TTL of the {@link MetadataCache}, so the
+	 * catalog is checked as often as the metadata it is parsed from.
+	 * 
+	 * @param catalogTtl time to live in milliseconds, or -1 for the default
+	 */
+	public void setCatalogTtl(long catalogTtl) {
+		this.catalogTtl = catalogTtl;
+	}
+
+	/**
+	 * Forget the parsed catalog, so it is checked for changes next time it is
+	 * needed.
+	 */
+	public void clearCatalog() {
+		catalog = null;
+	}
+
+	/**
+	 * Get the features this remote provides. If the repository has an aggregated
+	 * {@link FeatureCatalog} it is used, otherwise <code>features.txt</code> and
+	 * each feature it lists are fetched. The catalog is parsed once and then
+	 * shared by all listings and version lookups until its TTL expires. The
+	 * descriptors it is made from are kept in the {@link MetadataCache}, and when
+	 * the catalog expires only those that have changed are parsed again.
+	 * 
+	 * @param progress progress monitor
+	 * @return feature descriptors, keyed by their location
+	 * @throws IOException on error
+	 */
+	public Map<URL, FeatureDescriptor> getCatalog(PluginProgressMonitor progress) throws IOException {
+		Catalog current = catalog;
+		if (current != null && System.currentTimeMillis() - current.loaded < getCatalogTtl())
+			return current.features;
+		synchronized (this) {
+			current = catalog;
+			if (current != null && System.currentTimeMillis() - current.loaded < getCatalogTtl())
+				return current.features;
+			catalog = current = loadCatalog(progress, current);
+			return current.features;
+		}
+	}
+
 	@Override
 	protected Set<PluginArchive> doList(PluginProgressMonitor progress) throws IOException {
 		Set<PluginArchive> l = new HashSet<>();
-		URL url = new URL(getURL(), "features.txt");
-		URLConnection conx = url.openConnection();
-		InputStream inputStream = conx.getInputStream();
-		if (inputStream != null) {
-			String line;
-			try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
-				while ((line = reader.readLine()) != null) {
-					line = line.trim();
-					if (!line.startsWith("#") && line.length() > 0) {
-						PluginArchive pa = new FeatureArchive(manager, new URL(getURL(), line.trim()), progress, true);
-						l.add(pa);
-						for (PluginComponentId dep : pa.getDependencies()) {
-							PluginArchive depArc = manager.getResolutionContext().getDependencyTree().get(dep,
-									PluginArchive.class);
-							l.add(depArc);
-						}
-					}
-				}
-			}
-		}
+		for (Map.Entry<URL, FeatureDescriptor> en : getCatalog(progress).entrySet())
+			l.add(new FeatureArchive(manager, en.getKey(), en.getValue()));
 		return l;
 	}
 
@@ -81,15 +128,22 @@ public class FeatureRemote extends AbstractRemote {
 
 		if (!archive.hasVersion()) {
 			/*
-			 * If there is no version provided, we list the features in this feature and
-			 * find the highest version we have
+			 * If there is no version provided, we look through the features and archives
+			 * in the catalog and find the highest version we have
 			 */
 			ArtifactVersion latest = null;
-			for (PluginArchive a : list(monitor)) {
-				if (a.getComponentId().idAndGroup().equals(archive.idAndGroup())) {
-					ArtifactVersion v1 = new DefaultArtifactVersion(a.getComponentId().getVersion());
-					if (latest == null || v1.compareTo(latest) > 0)
-						latest = v1;
+			for (FeatureDescriptor feature : getCatalog(monitor).values()) {
+				List<String> ids = new ArrayList<>();
+				ids.add(feature.getId());
+				for (ArchiveDescriptor arc : feature.getArchives())
+					ids.add(arc.getId());
+				for (String id : ids) {
+					PluginComponentId cid = new PluginComponentId(id);
+					if (cid.idAndGroup().equals(archive.idAndGroup()) && cid.hasVersion()) {
+						ArtifactVersion v1 = new DefaultArtifactVersion(cid.getVersion());
+						if (latest == null || v1.compareTo(latest) > 0)
+							latest = v1;
+					}
 				}
 			}
 			if (latest == null)
@@ -118,7 +172,7 @@ public class FeatureRemote extends AbstractRemote {
 		url = new URL(getURL(), archive.toFilename() + ".jar");
 		try {
 			File localFile = new File(manager.getLocal(), archive.toFilename() + ".jar");
-			if (download(monitor, archive.toFilename(), url, localFile))
+			if (download(monitor, archive.toFilename(), url, localFile, getExpectedHash(archive)))
 				return localFile.toURI().toURL();
 		} catch (FileNotFoundException fnfe) {
 			//
@@ -127,4 +181,91 @@ public class FeatureRemote extends AbstractRemote {
 		return null;
 	}
 
+	@Override
+	protected String getExpectedHash(PluginComponentId id) {
+		String hash = super.getExpectedHash(id);
+		Catalog current = catalog;
+		if (hash == null && current != null) {
+			/* The catalog may already know it */
+			for (FeatureDescriptor feature : current.features.values()) {
+				for (ArchiveDescriptor arc : feature.getArchives()) {
+					if (new PluginComponentId(arc.getId()).equals(id) && !arc.getHash().equals(""))
+						return arc.getHash();
+				}
+			}
+		}
+		return hash;
+	}
+
+	private Catalog loadCatalog(PluginProgressMonitor progress, Catalog previous) throws IOException {
+		MetadataCache cache = getMetadataCache();
+		RemoteTransport transport = getTransport();
+		Map<URL, FeatureDescriptor> features = new LinkedHashMap<>();
+		Map<URL, String> stamps = new HashMap<>();
+
+		/* Prefer the aggregated catalog, if the repository has one */
+		for (String path : new String[] { FeatureCatalog.COMPRESSED_PATH, FeatureCatalog.PATH }) {
+			URL catalogUrl = new URL(getURL(), path);
+			File file;
+			try {
+				file = cache.get(catalogUrl, transport);
+			} catch (FileNotFoundException fnfe) {
+				continue;
+			}
+			String stamp = file.lastModified() + ":" + file.length();
+			if (previous != null && stamp.equals(previous.stamps.get(catalogUrl)))
+				return new Catalog(System.currentTimeMillis(), previous.features, previous.stamps);
+			try (InputStream in = new FileInputStream(file)) {
+				for (Map.Entry<String, FeatureDescriptor> en : FeatureCatalog.read(in).entrySet())
+					features.put(new URL(getURL(), en.getKey()), en.getValue());
+			}
+			stamps.put(catalogUrl, stamp);
+			return new Catalog(System.currentTimeMillis(), Collections.unmodifiableMap(features), stamps);
+		}
+
+		/* Otherwise fetch the list of features, then each feature */
+		File index = cache.get(new URL(getURL(), "features.txt"), transport);
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(index)))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (!line.startsWith("#") && line.length() > 0) {
+					URL featureUrl = new URL(getURL(), line);
+					File file;
+					try {
+						file = cache.get(featureUrl, transport);
+					} catch (FileNotFoundException fnfe) {
+						if (progress != null)
+							progress.message(MessageType.WARNING,
+									String.format("Feature %s is listed by %s, but does not exist.", line, getId()));
+						continue;
+					}
+					String stamp = file.lastModified() + ":" + file.length();
+					FeatureDescriptor feature = previous == null || !stamp.equals(previous.stamps.get(featureUrl))
+							? null
+							: previous.features.get(featureUrl);
+					if (feature == null) {
+						try (InputStream in = new FileInputStream(file)) {
+							feature = FeatureDescriptor.parse(in);
+						}
+					}
+					features.put(featureUrl, feature);
+					stamps.put(featureUrl, stamp);
+				}
+			}
+		}
+		return new Catalog(System.currentTimeMillis(), Collections.unmodifiableMap(features), stamps);
+	}
+
+	private final static class Catalog {
+		private final long loaded;
+		private final Map<URL, FeatureDescriptor> features;
+		private final Map<URL, String> stamps;
+
+		Catalog(long loaded, Map<URL, FeatureDescriptor> features, Map<URL, String> stamps) {
+			this.loaded = loaded;
+			this.features = features;
+			this.stamps = stamps;
+		}
+	}
 }
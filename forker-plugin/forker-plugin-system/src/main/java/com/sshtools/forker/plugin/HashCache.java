@@ -0,0 +1,199 @@
+package com.sshtools.forker.plugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the hashes of files, keyed by canonical path, size and modification
+ * time, so unchanged files do not have to be read again. The cache may be
+ * persisted to a file, in which case it is loaded on first use and written by
+ * {@link #save()}. Without a file the cache lasts as long as this object.
+ * <p>
+ * This class is thread safe.
+ */
+public class HashCache {
+
+	private final static String MAGIC = "SPS-HASHES";
+	private final static int VERSION = 1;
+
+	private final static class Entry {
+		private final long size;
+		private final long modified;
+		private final String hash;
+
+		Entry(long size, long modified, String hash) {
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+		}
+	}
+
+	private final File file;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private volatile boolean loaded;
+	private volatile boolean dirty;
+
+	/**
+	 * Create a cache that only lives in memory.
+	 */
+	public HashCache() {
+		this(null);
+	}
+
+	/**
+	 * Create a cache that is persisted to a file.
+	 *
+	 * @param file file or <code>null</code> to only cache in memory
+	 */
+	public HashCache(File file) {
+		this.file = file;
+		loaded = file == null;
+	}
+
+	/**
+	 * Get the file the cache is persisted to.
+	 *
+	 * @return file or <code>null</code> if only cached in memory
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get the hash of a file, only reading it if it is not in the cache or has
+	 * changed since it was cached.
+	 *
+	 * @param file      file
+	 * @param algorithm digest algorithm
+	 * @return hex encoded hash
+	 * @throws IOException on error
+	 */
+	public String hash(File file, String algorithm) throws IOException {
+		load();
+		String key = algorithm + ":" + file.getCanonicalPath();
+		long size = file.length();
+		long modified = file.lastModified();
+		Entry entry = entries.get(key);
+		if (entry != null && entry.size == size && entry.modified == modified)
+			return entry.hash;
+		String hash = Hashing.hash(file, algorithm);
+		/* Only cache if the file didn't change while it was being read */
+		if (file.length() == size && file.lastModified() == modified) {
+			entries.put(key, new Entry(size, modified, hash));
+			dirty = true;
+		}
+		return hash;
+	}
+
+	/**
+	 * Get the hash of a file only if it is already in the cache and the file has
+	 * not changed since.
+	 *
+	 * @param file      file
+	 * @param algorithm digest algorithm
+	 * @return hex encoded hash or <code>null</code> if not cached
+	 * @throws IOException on error
+	 */
+	public String get(File file, String algorithm) throws IOException {
+		load();
+		Entry entry = entries.get(algorithm + ":" + file.getCanonicalPath());
+		return entry != null && entry.size == file.length() && entry.modified == file.lastModified() ? entry.hash
+				: null;
+	}
+
+	/**
+	 * Add the hash of a file that is already known, for example because it was
+	 * calculated while the file was being written.
+	 *
+	 * @param file      file
+	 * @param algorithm digest algorithm
+	 * @param hash      hex encoded hash
+	 * @throws IOException on error
+	 */
+	public void put(File file, String algorithm, String hash) throws IOException {
+		load();
+		entries.put(algorithm + ":" + file.getCanonicalPath(), new Entry(file.length(), file.lastModified(), hash));
+		dirty = true;
+	}
+
+	/**
+	 * Forget all cached hashes.
+	 */
+	public void clear() {
+		entries.clear();
+		dirty = file != null;
+	}
+
+	/**
+	 * Write the cache to its file if anything has changed since it was loaded. The
+	 * cache is written to a temporary file, then moved into place.
+	 *
+	 * @throws IOException on error
+	 */
+	public synchronized void save() throws IOException {
+		if (file == null || !dirty)
+			return;
+		File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		if (!tmp.getParentFile().exists() && !tmp.getParentFile().mkdirs())
+			throw new IOException(String.format("Failed to create directory for hash cache %s.", file));
+		dirty = false;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeUTF(MAGIC);
+			out.writeInt(VERSION);
+			Map<String, Entry> copy = new ConcurrentHashMap<>(entries);
+			out.writeInt(copy.size());
+			for (Map.Entry<String, Entry> en : copy.entrySet()) {
+				out.writeUTF(en.getKey());
+				out.writeLong(en.getValue().size);
+				out.writeLong(en.getValue().modified);
+				out.writeUTF(en.getValue().hash);
+			}
+		} catch (IOException | RuntimeException e) {
+			dirty = true;
+			throw e;
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private void load() {
+		if (loaded)
+			return;
+		synchronized (this) {
+			if (loaded)
+				return;
+			try {
+				if (file.exists())
+					read();
+			} finally {
+				loaded = true;
+			}
+		}
+	}
+
+	private void read() {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (!MAGIC.equals(in.readUTF()) || in.readInt() != VERSION)
+				return;
+			for (int i = in.readInt(); i > 0; i--) {
+				String key = in.readUTF();
+				long size = in.readLong();
+				long modified = in.readLong();
+				entries.put(key, new Entry(size, modified, in.readUTF()));
+			}
+		} catch (IOException | RuntimeException e) {
+			/* Unreadable, it will be rebuilt */
+			entries.clear();
+			dirty = true;
+		}
+	}
+}
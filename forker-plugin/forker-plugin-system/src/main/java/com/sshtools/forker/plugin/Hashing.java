@@ -1,13 +1,38 @@
 package com.sshtools.forker.plugin;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class Hashing {
+	public final static String SHA1 = "SHA-1";
+	public final static String SHA256 = "SHA-256";
+
+	/**
+	 * Size of the direct buffer files are read into. Files are not memory mapped,
+	 * as a mapping is only released when garbage collected, and on Windows the
+	 * file may not be deleted or replaced until then.
+	 */
+	private final static int READ_BUFFER = 1024 * 1024;
+
+	/**
+	 * Each thread that hashes files keeps its own buffer, as direct buffers are
+	 * expensive to allocate and are also only released when garbage collected.
+	 */
+	private final static ThreadLocal<ByteBuffer> buffers = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocateDirect(READ_BUFFER));
+
 	private final static char[] hexArray = "0123456789ABCDEF".toCharArray();
 
 	public static String bytesToHex(byte[] bytes) {
@@ -20,9 +45,39 @@ public class Hashing {
 		return new String(hexChars);
 	}
 
+	/**
+	 * Get the algorithm that produces hashes the length of the supplied hex encoded
+	 * hash.
+	 *
+	 * @param hash hex encoded hash
+	 * @return algorithm or <code>null</code> if not known
+	 */
+	public static String algorithmFor(String hash) {
+		switch (hash.length()) {
+		case 32:
+			return "MD5";
+		case 40:
+			return SHA1;
+		case 64:
+			return SHA256;
+		case 128:
+			return "SHA-512";
+		default:
+			return null;
+		}
+	}
+
+	static MessageDigest digest(String algorithm) throws IOException {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Could not hash.", e);
+		}
+	}
+
 	public static String hash(String text) {
 		try {
-			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			MessageDigest digest = MessageDigest.getInstance(SHA1);
 			digest.update(text.getBytes());
 			return bytesToHex(digest.digest());
 		} catch (NoSuchAlgorithmException e) {
@@ -31,22 +86,78 @@ public class Hashing {
 	}
 
 	public static String sha1(File file) throws IOException {
-		try {
-			MessageDigest digest = MessageDigest.getInstance("SHA-1");
-
-			try (InputStream fis = new FileInputStream(file)) {
-				int n = 0;
-				byte[] buffer = new byte[8192];
-				while (n != -1) {
-					n = fis.read(buffer);
-					if (n > 0) {
-						digest.update(buffer, 0, n);
+		return hash(file, SHA1);
+	}
+
+	public static String sha256(File file) throws IOException {
+		return hash(file, SHA256);
+	}
+
+	/**
+	 * Hash the contents of a file using any {@link MessageDigest} algorithm. The
+	 * file is read through a {@link FileChannel} into a large direct buffer.
+	 *
+	 * @param file      file
+	 * @param algorithm digest algorithm, e.g. {@link #SHA1} or {@link #SHA256}
+	 * @return hex encoded hash
+	 * @throws IOException on error
+	 */
+	public static String hash(File file, String algorithm) throws IOException {
+		MessageDigest digest = digest(algorithm);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buf = buffers.get();
+			buf.clear();
+			while (channel.read(buf) != -1) {
+				buf.flip();
+				digest.update(buf);
+				buf.clear();
+			}
+		}
+		return bytesToHex(digest.digest());
+	}
+
+	/**
+	 * Hash many files, optionally in parallel and optionally using a cache.
+	 *
+	 * @param files     files
+	 * @param algorithm digest algorithm
+	 * @param pool      pool to hash files on, or <code>null</code> to hash them
+	 *                  one at a time on the calling thread
+	 * @param cache     cache of hashes, or <code>null</code> to always hash
+	 * @return hashes of each file, in the same order as supplied
+	 * @throws IOException on error
+	 */
+	public static List<String> hash(Collection<File> files, String algorithm, ForkJoinPool pool, HashCache cache)
+			throws IOException {
+		List<String> hashes = new ArrayList<>(files.size());
+		if (pool == null) {
+			for (File file : files)
+				hashes.add(cache == null ? hash(file, algorithm) : cache.hash(file, algorithm));
+		} else {
+			List<Future<String>> futures = new ArrayList<>();
+			for (File file : files) {
+				futures.add(pool.submit(() -> {
+					try {
+						return cache == null ? hash(file, algorithm) : cache.hash(file, algorithm);
+					} catch (IOException ioe) {
+						throw new UncheckedIOException(ioe);
 					}
+				}));
+			}
+			int i = 0;
+			for (File file : files) {
+				try {
+					hashes.add(futures.get(i++).get());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while hashing.", e);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof UncheckedIOException)
+						throw ((UncheckedIOException) e.getCause()).getCause();
+					throw new IOException(String.format("Could not hash %s.", file), e.getCause());
 				}
-				return bytesToHex(digest.digest());
 			}
-		} catch (NoSuchAlgorithmException e) {
-			throw new IOException("Could not hash.", e);
 		}
+		return hashes;
 	}
 }
@@ -0,0 +1,176 @@
+package com.sshtools.forker.plugin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import com.sshtools.forker.plugin.api.PluginDependencyTree;
+import com.sshtools.forker.plugin.api.PluginManager;
+
+/**
+ * The metadata of a jar that is needed while it is resolved, read by opening
+ * the jar once. This is its entry names, the content of any Maven POMs
+ * (<code>META-INF/maven/**&#47;pom.xml</code>), its manifest and its
+ * {@link PluginIndex}. Everything is held in memory, so the resolution phases
+ * that need it do not have to open the jar again.
+ * <p>
+ * During a resolution, use {@link #get(PluginManager, File)} to share one copy
+ * between all of the archives and phases that need it.
+ */
+public final class JarMetadata {
+
+	private final File file;
+	private final long size;
+	private final long modified;
+	private final List<String> entryNames;
+	private final Map<String, byte[]> poms;
+	private final Manifest manifest;
+	private final byte[] pluginIndex;
+
+	private JarMetadata(File file, long size, long modified, List<String> entryNames, Map<String, byte[]> poms,
+			Manifest manifest, byte[] pluginIndex) {
+		this.file = file;
+		this.size = size;
+		this.modified = modified;
+		this.entryNames = Collections.unmodifiableList(entryNames);
+		this.poms = Collections.unmodifiableMap(poms);
+		this.manifest = manifest;
+		this.pluginIndex = pluginIndex;
+	}
+
+	/**
+	 * Get the metadata of a jar, shared with everything else in the current
+	 * resolution if the manager's dependency tree supports it.
+	 *
+	 * @param manager manager
+	 * @param file    jar file
+	 * @return metadata
+	 * @throws IOException on error
+	 */
+	public static JarMetadata get(PluginManager manager, File file) throws IOException {
+		PluginDependencyTree tree = manager.getResolutionContext().getDependencyTree();
+		if (tree instanceof DefaultPluginDependencyTree)
+			return ((DefaultPluginDependencyTree) tree).getJarMetadata(file);
+		return read(file);
+	}
+
+	/**
+	 * Read the metadata of a jar.
+	 *
+	 * @param file jar file
+	 * @return metadata
+	 * @throws IOException on error
+	 */
+	public static JarMetadata read(File file) throws IOException {
+		long size = file.length();
+		long modified = file.lastModified();
+		List<String> entryNames = new ArrayList<>();
+		Map<String, byte[]> poms = new LinkedHashMap<>();
+		Manifest manifest = null;
+		byte[] pluginIndex = null;
+		try (JarFile jf = new JarFile(file, false)) {
+			Enumeration<JarEntry> entries = jf.entries();
+			while (entries.hasMoreElements()) {
+				JarEntry entry = entries.nextElement();
+				String name = entry.getName();
+				entryNames.add(name);
+				if (entry.isDirectory())
+					continue;
+				if (name.startsWith("META-INF/maven/") && name.endsWith("/pom.xml")) {
+					poms.put(name, read(jf, entry));
+				} else if (name.equals(JarFile.MANIFEST_NAME)) {
+					try (InputStream in = jf.getInputStream(entry)) {
+						manifest = new Manifest(in);
+					}
+				} else if (name.equals(PluginIndex.PATH)) {
+					pluginIndex = read(jf, entry);
+				}
+			}
+		}
+		return new JarMetadata(file, size, modified, entryNames, poms, manifest, pluginIndex);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get if the jar has not changed since its metadata was read.
+	 *
+	 * @return current
+	 */
+	public boolean isCurrent() {
+		return file.length() == size && file.lastModified() == modified;
+	}
+
+	/**
+	 * Get the names of all entries in the jar, in the order they appear in it.
+	 *
+	 * @return entry names
+	 */
+	public List<String> getEntryNames() {
+		return entryNames;
+	}
+
+	/**
+	 * Get the names of all Maven POM entries in the jar, in the order they appear
+	 * in it.
+	 *
+	 * @return POM entry names
+	 */
+	public List<String> getPOMs() {
+		return new ArrayList<>(poms.keySet());
+	}
+
+	/**
+	 * Get the content of a Maven POM entry.
+	 *
+	 * @param entryName entry name
+	 * @return content or <code>null</code> if there is no such POM
+	 */
+	public InputStream getPOM(String entryName) {
+		byte[] pom = poms.get(entryName);
+		return pom == null ? null : new ByteArrayInputStream(pom);
+	}
+
+	/**
+	 * Get the manifest of the jar.
+	 *
+	 * @return manifest or <code>null</code> if there is none
+	 */
+	public Manifest getManifest() {
+		return manifest;
+	}
+
+	/**
+	 * Get the plugin index of the jar.
+	 *
+	 * @return index or <code>null</code> if there is none
+	 * @throws IOException on error
+	 */
+	public PluginIndex getPluginIndex() throws IOException {
+		return pluginIndex == null ? null : PluginIndex.read(new ByteArrayInputStream(pluginIndex));
+	}
+
+	private static byte[] read(JarFile jf, JarEntry entry) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(entry.getSize() > 0 ? (int) entry.getSize() : 8192);
+		try (InputStream in = jf.getInputStream(entry)) {
+			byte[] buf = new byte[8192];
+			int r;
+			while ((r = in.read(buf)) != -1)
+				out.write(buf, 0, r);
+		}
+		return out.toByteArray();
+	}
+}
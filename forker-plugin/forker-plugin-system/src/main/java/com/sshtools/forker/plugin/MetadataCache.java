@@ -0,0 +1,213 @@
+package com.sshtools.forker.plugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FileUtils;
+
+import com.sshtools.forker.plugin.RemoteTransport.Response;
+
+/**
+ * Keeps local copies of remote metadata (such as <code>maven-metadata.xml</code>
+ * or feature catalogs), so it does not have to be fetched every time it is
+ * needed. A copy younger than the TTL is used as is. Older copies are
+ * revalidated with the server using the <code>ETag</code> and
+ * <code>Last-Modified</code> of the original response, and only fetched again
+ * if they have changed. If the server cannot be reached, a stale copy is used.
+ * <p>
+ * Content at <code>file:</code> URLs is always read directly.
+ * <p>
+ * This class is thread safe.
+ */
+public class MetadataCache {
+
+	private final static String MAGIC = "SPS-METADATA";
+	private final static int VERSION = 1;
+
+	private final static class Entry {
+		private long fetched;
+		private boolean found;
+		private String etag;
+		private String lastModified;
+	}
+
+	private final File dir;
+	private final Map<String, Object> locks = new ConcurrentHashMap<>();
+	private volatile long ttl;
+
+	/**
+	 * Create a cache.
+	 *
+	 * @param dir directory to keep copies in
+	 * @param ttl how long in milliseconds a copy is used before it is revalidated
+	 */
+	public MetadataCache(File dir, long ttl) {
+		this.dir = dir;
+		this.ttl = ttl;
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	public long getTtl() {
+		return ttl;
+	}
+
+	/**
+	 * Set how long a copy is used before it is revalidated with the server.
+	 *
+	 * @param ttl time to live in milliseconds
+	 */
+	public void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Get a local copy of some metadata, fetching or revalidating it if needed.
+	 *
+	 * @param url       URL of metadata
+	 * @param transport transport to fetch it with
+	 * @return file containing the metadata
+	 * @throws FileNotFoundException if there is no metadata at the URL
+	 * @throws IOException           on any other error
+	 */
+	public File get(URL url, RemoteTransport transport) throws IOException {
+		if (url.getProtocol().equals("file")) {
+			File file = new File(url.getPath());
+			if (!file.isFile())
+				throw new FileNotFoundException(url.toString());
+			return file;
+		}
+
+		String key = Hashing.hash(url.toExternalForm());
+		synchronized (locks.computeIfAbsent(key, k -> new Object())) {
+			File content = new File(dir, key);
+			File metaFile = new File(dir, key + ".meta");
+			Entry entry = readEntry(metaFile);
+			long now = System.currentTimeMillis();
+			if (entry != null && (!entry.found || content.exists()) && now - entry.fetched < ttl)
+				return found(entry, url, content);
+
+			Map<String, String> headers = new LinkedHashMap<>();
+			if (entry != null && entry.found && content.exists()) {
+				if (entry.etag != null)
+					headers.put("If-None-Match", entry.etag);
+				if (entry.lastModified != null)
+					headers.put("If-Modified-Since", entry.lastModified);
+			}
+
+			try (Response response = transport.get(url, headers, true)) {
+				int status = response.getStatus();
+				if (status == HttpURLConnection.HTTP_NOT_MODIFIED && !headers.isEmpty()) {
+					entry.fetched = now;
+				} else if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE) {
+					entry = new Entry();
+					entry.fetched = now;
+					content.delete();
+				} else if (status >= HttpURLConnection.HTTP_BAD_REQUEST) {
+					throw new IOException(String.format("Server returned HTTP response code %d for %s", status, url));
+				} else {
+					entry = new Entry();
+					entry.fetched = now;
+					entry.found = true;
+					entry.etag = response.getHeader("ETag");
+					entry.lastModified = response.getHeader("Last-Modified");
+					write(response.getInputStream(), content);
+				}
+			} catch (FileNotFoundException fnfe) {
+				entry = new Entry();
+				entry.fetched = now;
+				content.delete();
+			} catch (IOException ioe) {
+				if (entry != null && entry.found && content.exists())
+					/* Use the stale copy */
+					return content;
+				throw ioe;
+			}
+			writeEntry(metaFile, entry);
+			return found(entry, url, content);
+		}
+	}
+
+	/**
+	 * Forget all cached metadata, so it is fetched again next time it is needed.
+	 *
+	 * @throws IOException on error
+	 */
+	public void clear() throws IOException {
+		if (dir.exists())
+			FileUtils.cleanDirectory(dir);
+	}
+
+	private File found(Entry entry, URL url, File content) throws FileNotFoundException {
+		if (!entry.found)
+			throw new FileNotFoundException(url.toString());
+		return content;
+	}
+
+	private void write(InputStream in, File content) throws IOException {
+		makeDir();
+		File tmp = new File(dir, content.getName() + ".tmp");
+		try (OutputStream out = new FileOutputStream(tmp)) {
+			byte[] buf = new byte[65536];
+			int r;
+			while ((r = in.read(buf)) != -1)
+				out.write(buf, 0, r);
+		}
+		Files.move(tmp.toPath(), content.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private Entry readEntry(File metaFile) {
+		if (!metaFile.exists())
+			return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(metaFile)))) {
+			if (!MAGIC.equals(in.readUTF()) || in.readInt() != VERSION)
+				return null;
+			Entry entry = new Entry();
+			entry.fetched = in.readLong();
+			entry.found = in.readBoolean();
+			entry.etag = ResolutionSnapshot.readString(in);
+			entry.lastModified = ResolutionSnapshot.readString(in);
+			return entry;
+		} catch (IOException | RuntimeException e) {
+			/* Unreadable, it will be fetched again */
+			return null;
+		}
+	}
+
+	private void writeEntry(File metaFile, Entry entry) throws IOException {
+		makeDir();
+		File tmp = new File(dir, metaFile.getName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeUTF(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(entry.fetched);
+			out.writeBoolean(entry.found);
+			ResolutionSnapshot.writeString(out, entry.etag);
+			ResolutionSnapshot.writeString(out, entry.lastModified);
+		}
+		Files.move(tmp.toPath(), metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private void makeDir() throws IOException {
+		if (!dir.exists() && !dir.mkdirs() && !dir.exists())
+			throw new IOException(String.format("Failed to create metadata cache directory %s.", dir));
+	}
+}
@@ -1,24 +1,57 @@
 package com.sshtools.forker.plugin;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import com.sshtools.forker.plugin.api.PluginArchive;
 import com.sshtools.forker.plugin.api.PluginComponentId;
 
 public class PluginClassLoader extends URLClassLoader {
 
+	static {
+		/*
+		 * Classes are loaded under a lock per class name rather than a lock on the
+		 * whole loader, so plugin threads don't serialise on (or deadlock across) the
+		 * loaders of dependent archives.
+		 */
+		registerAsParallelCapable();
+	}
+
 	static boolean DBG = false;
 
+	/**
+	 * Maximum number of class names and resource names remembered as not found,
+	 * per loader.
+	 */
+	final static int NEGATIVE_CACHE_SIZE = Integer.getInteger("sps.negativeCacheSize", 1024);
+
 	private ClassLoader system;
 	private PluginArchive archive;
+	private volatile Routes routes;
+	private final Set<String> missingClasses = negativeCache();
+	private final Set<String> missingResources = negativeCache();
+	private final AtomicLong negativeHits = new AtomicLong();
+	private final AtomicLong negativeMisses = new AtomicLong();
 
 	public PluginClassLoader(PluginArchive archive, ClassLoader parent) {
 		super(archive.getClasspath().toArray(new URL[0]), parent);
@@ -31,79 +64,95 @@ public class PluginClassLoader extends URLClassLoader {
 		return "PluginClassLoader [archive=" + archive + "]";
 	}
 
+	/**
+	 * Get how many class or resource lookups were answered from the negative
+	 * cache, i.e. were known not to exist without searching.
+	 *
+	 * @return hits
+	 */
+	public long getNegativeCacheHits() {
+		return negativeHits.get();
+	}
+
+	/**
+	 * Get how many class or resource lookups were not in the negative cache, and
+	 * so had to be searched for.
+	 *
+	 * @return misses
+	 */
+	public long getNegativeCacheMisses() {
+		return negativeMisses.get();
+	}
+
+	/**
+	 * Forget everything that is known to be missing, and the package routing
+	 * table. Should be called when the archive or any of its dependencies change.
+	 */
+	public void invalidate() {
+		missingClasses.clear();
+		missingResources.clear();
+		routes = null;
+	}
+
 	@Override
-	public synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
-		if (DBG)
-			System.out.println("loadClass " + name);
-		// First, check if the class has already been loaded
-		try {
-			Class<?> c = findLoadedClass(name);
-			if (c == null) {
-				if (system != null) {
-					try {
-						c = system.loadClass(name);
-						if (DBG)
-							System.out.println("   " + name + " found in system");
-					} catch (ClassNotFoundException ignored) {
-					}
-				}
+	public Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+		synchronized (getClassLoadingLock(name)) {
+			if (DBG)
+				System.out.println("loadClass " + name);
+			// First, check if the class has already been loaded
+			try {
+				Class<?> c = findLoadedClass(name);
 				if (c == null) {
-					try {
-						// checking local
-						c = findClass(name);
-						if (DBG)
-							System.out.println("   " + name + " found in local");
-					} catch (ClassNotFoundException e) {
-						for (PluginComponentId id : archive.getDependencies()) {
-							PluginArchive parc = archive.getParent().getResolutionContext().getDependencyTree().get(id,
-									PluginArchive.class);
-							if (parc != null) {
-								try {
-									ClassLoader classLoader = parc.getClassLoader();
-									if (DBG)
-										System.out.println("   looking " + name + " in " + id);
-									// if (classLoader != system && classLoader != this && classLoader !=
-									// getParent())
-									if (classLoader != this && classLoader != system) {
-										c = classLoader.loadClass(name);
-										if (c == null)
-											System.out.println("   NULL CLASS!");
-										else if (DBG)
-											System.out.println("   found " + name + " in " + id + " / " + c.toString());
-										break;
-									}
-								} catch (ClassNotFoundException cnfe) {
-								}
-							} else if (DBG)
-								System.out.println("  no dep " + id + "!");
+					if (isKnownMissing(missingClasses, name))
+						throw new ClassNotFoundException(name);
+					if (system != null) {
+						try {
+							c = system.loadClass(name);
+							if (DBG)
+								System.out.println("   " + name + " found in system");
+						} catch (ClassNotFoundException ignored) {
 						}
-
-						// checking parent
-						// This call to loadClass may eventually call findClass again, in case the
-						// parent doesn't find anything.
-						if (c == null && getParent() != system) {
+					}
+					if (c == null) {
+						try {
+							// checking local
+							c = findClass(name);
 							if (DBG)
-								System.out.println("  looking in parent");
-							c = super.loadClass(name);
+								System.out.println("   " + name + " found in local");
+						} catch (ClassNotFoundException e) {
+							Routes deps = getRoutes();
+							c = loadFromDependencies(name, deps.get(packageOf(name.replace('.', '/'))));
+							if (c == null)
+								c = loadFromDependencies(name, deps.unrouted);
+
+							// checking parent
+							// This call to loadClass may eventually call findClass again, in case the
+							// parent doesn't find anything.
+							if (c == null && getParent() != system) {
+								if (DBG)
+									System.out.println("  looking in parent");
+								c = super.loadClass(name);
+							}
 						}
 					}
-				}
-			} else if (DBG)
-				System.out.println("  iscached " + name);
+				} else if (DBG)
+					System.out.println("  iscached " + name);
 
-			if (c == null)
-				throw new ClassNotFoundException(name);
+				if (c == null)
+					throw new ClassNotFoundException(name);
 
-			if (resolve) {
-				resolveClass(c);
+				if (resolve) {
+					resolveClass(c);
+				}
+				if (DBG)
+					System.out.println("  found " + name);
+				return c;
+			} catch (ClassNotFoundException cnfe) {
+				if (DBG)
+					System.out.println("Not found: " + name);
+				missingClasses.add(name);
+				throw cnfe;
 			}
-			if (DBG)
-				System.out.println("  found " + name);
-			return c;
-		} catch (ClassNotFoundException cnfe) {
-			if (DBG)
-				System.out.println("Not found: " + name);
-			throw cnfe;
 		}
 	}
 
@@ -111,6 +160,8 @@ public class PluginClassLoader extends URLClassLoader {
 	public URL getResource(String name) {
 		if (DBG)
 			System.out.println("getResource " + name);
+		if (isKnownMissing(missingResources, name))
+			return null;
 		URL url = null;
 		if (system != null) {
 			if (DBG)
@@ -124,19 +175,10 @@ public class PluginClassLoader extends URLClassLoader {
 
 			if (url == null) {
 
-				for (PluginComponentId id : archive.getDependencies()) {
-					PluginArchive parc = archive.getParent().getResolutionContext().getDependencyTree().get(id,
-							PluginArchive.class);
-					if (parc != null) {
-						ClassLoader classLoader = parc.getClassLoader();
-						if (classLoader != this && classLoader != system) {
-							if (DBG)
-								System.out.println("   trying " + id + " for " + name);
-							url = classLoader.getResource(name);
-							break;
-						}
-					}
-				}
+				Routes deps = getRoutes();
+				url = getResourceFromDependencies(name, deps.get(packageOf(name)));
+				if (url == null)
+					url = getResourceFromDependencies(name, deps.unrouted);
 
 				// This call to getResource may eventually call findResource again, in case the
 				// parent doesn't find anything.
@@ -144,6 +186,8 @@ public class PluginClassLoader extends URLClassLoader {
 					url = super.getResource(name);
 			}
 		}
+		if (url == null)
+			missingResources.add(name);
 		if (DBG)
 			System.out.println("   found at " + url);
 		return url;
@@ -154,78 +198,290 @@ public class PluginClassLoader extends URLClassLoader {
 		if (DBG)
 			System.out.println("getResources " + name);
 		/**
-		 * Similar to super, but local resources are enumerated before parent resources
+		 * Similar to super, but local resources are enumerated before parent resources.
+		 * Each source is only queried once the previous one is exhausted, so callers
+		 * that only want the first match don't pay for the rest.
 		 */
-		Enumeration<URL> systemUrls = null;
-		if (system != null) {
-			systemUrls = system.getResources(name);
-		}
-		Enumeration<URL> localUrls = findResources(name);
-		Enumeration<URL> parentUrls = null;
-		List<Enumeration<URL>> depUrls = new LinkedList<>();
-
-		for (PluginComponentId id : archive.getDependencies()) {
-			PluginArchive parc = archive.getParent().getResolutionContext().getDependencyTree().get(id,
-					PluginArchive.class);
-			if (parc != null) {
-				ClassLoader classLoader = parc.getClassLoader();
-				if (classLoader != this && classLoader != system) {
-					Enumeration<URL> e = classLoader.getResources(name);
-					if (e != null && e.hasMoreElements())
-						depUrls.add(e);
-				}
-			}
+		List<ResourceSource> sources = new ArrayList<>();
+		if (system != null)
+			sources.add(() -> system.getResources(name));
+		sources.add(() -> findResources(name));
+
+		Routes deps = getRoutes();
+		List<PluginComponentId> depIds = new ArrayList<>(deps.get(packageOf(name)));
+		depIds.addAll(deps.unrouted);
+		for (PluginComponentId id : depIds) {
+			sources.add(() -> {
+				ClassLoader classLoader = getDependencyClassLoader(id);
+				return classLoader == null ? null : classLoader.getResources(name);
+			});
 		}
 
-		if (getParent() != null) {
-			parentUrls = getParent().getResources(name);
+		ClassLoader parent = getParent();
+		if (parent != null)
+			sources.add(() -> parent.getResources(name));
+
+		return new ResourceEnumeration(sources);
+	}
+
+	@Override
+	public InputStream getResourceAsStream(String name) {
+		URL url = getResource(name);
+		try {
+			return url != null ? url.openStream() : null;
+		} catch (IOException e) {
 		}
-		final List<URL> urls = new ArrayList<URL>();
-		if (systemUrls != null) {
-			while (systemUrls.hasMoreElements()) {
-				urls.add(systemUrls.nextElement());
-			}
+		return null;
+	}
+
+
+	private boolean isKnownMissing(Set<String> cache, String name) {
+		if (cache.contains(name)) {
+			negativeHits.incrementAndGet();
+			if (DBG)
+				System.out.println("   known missing " + name);
+			return true;
 		}
-		if (localUrls != null) {
-			while (localUrls.hasMoreElements()) {
-				urls.add(localUrls.nextElement());
+		negativeMisses.incrementAndGet();
+		return false;
+	}
+
+	@SuppressWarnings("serial")
+	private static Set<String> negativeCache() {
+		return Collections.synchronizedSet(Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > NEGATIVE_CACHE_SIZE;
+			}
+		}));
+	}
+
+	private Class<?> loadFromDependencies(String name, List<PluginComponentId> ids) {
+		for (PluginComponentId id : ids) {
+			ClassLoader classLoader = getDependencyClassLoader(id);
+			if (classLoader != null) {
+				try {
+					if (DBG)
+						System.out.println("   looking " + name + " in " + id);
+					Class<?> c = classLoader.loadClass(name);
+					if (DBG)
+						System.out.println("   found " + name + " in " + id + " / " + c.toString());
+					return c;
+				} catch (ClassNotFoundException cnfe) {
+				}
 			}
 		}
+		return null;
+	}
 
-		for (Enumeration<URL> en : depUrls) {
-			while (en.hasMoreElements()) {
-				urls.add(en.nextElement());
+	private URL getResourceFromDependencies(String name, List<PluginComponentId> ids) {
+		for (PluginComponentId id : ids) {
+			ClassLoader classLoader = getDependencyClassLoader(id);
+			if (classLoader != null) {
+				if (DBG)
+					System.out.println("   trying " + id + " for " + name);
+				URL url = classLoader.getResource(name);
+				if (url != null)
+					return url;
 			}
 		}
+		return null;
+	}
+
+	/**
+	 * Get the class loader to delegate to for a dependency, or <code>null</code>
+	 * if the dependency is not (yet) in the tree, or its loader would be searched
+	 * anyway (i.e. it is this loader, the system loader or the parent).
+	 */
+	private ClassLoader getDependencyClassLoader(PluginComponentId id) {
+		PluginArchive parc = archive.getParent().getResolutionContext().getDependencyTree().get(id,
+				PluginArchive.class);
+		if (parc == null) {
+			if (DBG)
+				System.out.println("  no dep " + id + "!");
+			return null;
+		}
+		ClassLoader classLoader = parc.getClassLoader();
+		return classLoader == this || classLoader == system || classLoader == getParent() ? null : classLoader;
+	}
+
+	Routes getRoutes() {
+		return getRoutes(new HashSet<>());
+	}
 
-		if (parentUrls != null) {
-			while (parentUrls.hasMoreElements()) {
-				urls.add(parentUrls.nextElement());
+	/**
+	 * Build (on first use) the table that routes a package to the dependencies
+	 * that can supply it. Each dependency loader contributes every package
+	 * reachable through it, so a package in a transitive dependency routes to the
+	 * direct dependency that leads to it.
+	 */
+	private Routes getRoutes(Set<PluginClassLoader> visiting) {
+		Routes r = routes;
+		if (r != null)
+			return r;
+		r = new Routes();
+		if (!visiting.add(this)) {
+			/* Circular dependency, we can't know everything this loader provides yet */
+			r.complete = false;
+			return r;
+		}
+		try {
+			for (URL url : getURLs()) {
+				if (!addPackages(url, r.packages))
+					r.complete = false;
 			}
+			for (PluginComponentId id : archive.getDependencies()) {
+				PluginArchive parc = archive.getParent().getResolutionContext().getDependencyTree().get(id,
+						PluginArchive.class);
+				ClassLoader classLoader = parc == null ? null : parc.getClassLoader();
+				if (classLoader == this || classLoader == system || (classLoader != null && classLoader == getParent()))
+					continue;
+				if (classLoader instanceof PluginClassLoader) {
+					Routes depRoutes = ((PluginClassLoader) classLoader).getRoutes(visiting);
+					if (depRoutes.complete) {
+						for (String pkg : depRoutes.packages) {
+							List<PluginComponentId> l = r.table.get(pkg);
+							if (l == null) {
+								l = new ArrayList<>(1);
+								r.table.put(pkg, l);
+							}
+							l.add(id);
+							r.packages.add(pkg);
+						}
+						continue;
+					}
+				}
+				/*
+				 * Not resolved yet, or we cannot tell what it contains, so it must always be
+				 * searched
+				 */
+				r.unrouted.add(id);
+				r.complete = false;
+			}
+		} finally {
+			visiting.remove(this);
 		}
+		routes = r;
 		if (DBG)
-			System.out.println("getResources found " + urls.size() + " for " + name);
-		return new Enumeration<URL>() {
-			Iterator<URL> iter = urls.iterator();
+			System.out.println("Routes for " + archive + ": " + r.table.size() + " packages, " + r.unrouted.size()
+					+ " unrouted");
+		return r;
+	}
 
-			public boolean hasMoreElements() {
-				return iter.hasNext();
+	/**
+	 * Add the package (as a resource directory path) of every entry in a jar or
+	 * directory.
+	 *
+	 * @return <code>false</code> if the location could not be indexed
+	 */
+	private static boolean addPackages(URL url, Set<String> packages) {
+		if (!url.getProtocol().equals("file"))
+			return false;
+		File file;
+		try {
+			file = Paths.get(url.toURI()).toFile();
+		} catch (URISyntaxException | IllegalArgumentException e) {
+			return false;
+		}
+		if (file.isDirectory()) {
+			addPackages(file, "", packages);
+			return true;
+		} else if (file.isFile()) {
+			try (ZipFile zf = new ZipFile(file)) {
+				Enumeration<? extends ZipEntry> en = zf.entries();
+				while (en.hasMoreElements()) {
+					ZipEntry entry = en.nextElement();
+					if (!entry.isDirectory())
+						packages.add(packageOf(entry.getName()));
+				}
+				return true;
+			} catch (IOException ioe) {
+				return false;
 			}
+		}
+		/* Missing, or not something we can look into, so it must always be searched */
+		return false;
+	}
 
-			public URL nextElement() {
-				return iter.next();
+	private static void addPackages(File dir, String path, Set<String> packages) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (f.isDirectory())
+					addPackages(f, path.length() == 0 ? f.getName() : path + "/" + f.getName(), packages);
+				else
+					packages.add(path);
 			}
-		};
+		}
 	}
 
-	@Override
-	public InputStream getResourceAsStream(String name) {
-		URL url = getResource(name);
-		try {
-			return url != null ? url.openStream() : null;
-		} catch (IOException e) {
+	private static String packageOf(String path) {
+		int idx = path.lastIndexOf('/');
+		return idx == -1 ? "" : path.substring(0, idx);
+	}
+
+	/**
+	 * Package (as a resource directory path) to dependency routing table.
+	 */
+	final static class Routes {
+		private final Map<String, List<PluginComponentId>> table = new HashMap<>();
+		private final List<PluginComponentId> unrouted = new ArrayList<>();
+		private final Set<String> packages = new HashSet<>();
+		private boolean complete = true;
+
+		List<PluginComponentId> get(String pkg) {
+			List<PluginComponentId> l = table.get(pkg);
+			return l == null ? Collections.<PluginComponentId>emptyList() : l;
+		}
+	}
+
+
+	private interface ResourceSource {
+		Enumeration<URL> get() throws IOException;
+	}
+
+	/**
+	 * Lazily concatenates the resources from a number of sources, skipping any URL
+	 * that has already been returned.
+	 */
+	private final static class ResourceEnumeration implements Enumeration<URL> {
+		private final Iterator<ResourceSource> sources;
+		private final Set<String> seen = new HashSet<>();
+		private Enumeration<URL> current;
+		private URL next;
+
+		ResourceEnumeration(List<ResourceSource> sources) {
+			this.sources = sources.iterator();
+		}
+
+		@Override
+		public boolean hasMoreElements() {
+			while (next == null) {
+				while (current == null || !current.hasMoreElements()) {
+					if (!sources.hasNext())
+						return false;
+					try {
+						current = sources.next().get();
+					} catch (IOException ioe) {
+						throw new UncheckedIOException(ioe);
+					}
+				}
+				URL url = current.nextElement();
+				/* Compare as strings, URL.equals() may resolve host names */
+				if (seen.add(url.toExternalForm()))
+					next = url;
+			}
+			return true;
+		}
+
+		@Override
+		public URL nextElement() {
+			if (!hasMoreElements())
+				throw new NoSuchElementException();
+			URL url = next;
+			next = null;
+			return url;
 		}
-		return null;
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,293 @@
+package com.sshtools.forker.plugin;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.sshtools.forker.plugin.api.Plugin;
+
+/**
+ * Reads the {@link Plugin} annotation (if any) directly from a class file, by
+ * parsing its constant pool and <code>RuntimeVisibleAnnotations</code>
+ * attribute. The class is never loaded or defined.
+ */
+class PluginClassReader {
+
+	private final static String PLUGIN_DESCRIPTOR = "L" + Plugin.class.getName().replace('.', '/') + ";";
+	private final static String RUNTIME_VISIBLE_ANNOTATIONS = "RuntimeVisibleAnnotations";
+
+	private final static int CONSTANT_UTF8 = 1;
+	private final static int CONSTANT_INTEGER = 3;
+	private final static int CONSTANT_FLOAT = 4;
+	private final static int CONSTANT_LONG = 5;
+	private final static int CONSTANT_DOUBLE = 6;
+	private final static int CONSTANT_CLASS = 7;
+	private final static int CONSTANT_STRING = 8;
+	private final static int CONSTANT_FIELDREF = 9;
+	private final static int CONSTANT_METHODREF = 10;
+	private final static int CONSTANT_INTERFACE_METHODREF = 11;
+	private final static int CONSTANT_NAME_AND_TYPE = 12;
+	private final static int CONSTANT_METHOD_HANDLE = 15;
+	private final static int CONSTANT_METHOD_TYPE = 16;
+	private final static int CONSTANT_DYNAMIC = 17;
+	private final static int CONSTANT_INVOKE_DYNAMIC = 18;
+	private final static int CONSTANT_MODULE = 19;
+	private final static int CONSTANT_PACKAGE = 20;
+
+	/**
+	 * The attributes of a {@link Plugin} annotation read from a class file.
+	 */
+	final static class PluginAttributes implements Plugin {
+		boolean staticLoad;
+		String[] dependencies = new String[0];
+		String name = "";
+		String description = "";
+		StartMode start = StartMode.DEFAULT;
+
+		@Override
+		public Class<? extends Annotation> annotationType() {
+			return Plugin.class;
+		}
+
+		@Override
+		public boolean staticLoad() {
+			return staticLoad;
+		}
+
+		@Override
+		public String[] dependencies() {
+			return dependencies.clone();
+		}
+
+		@Override
+		public String name() {
+			return name;
+		}
+
+		@Override
+		public String description() {
+			return description;
+		}
+
+		@Override
+		public StartMode start() {
+			return start;
+		}
+
+		@Override
+		public String toString() {
+			return "@" + Plugin.class.getName() + "(staticLoad=" + staticLoad + ", dependencies="
+					+ Arrays.toString(dependencies) + ", name=" + name + ", description=" + description + ", start="
+					+ start + ")";
+		}
+	}
+
+	private String className;
+	private Plugin plugin;
+
+	/**
+	 * Read a class file.
+	 *
+	 * @param in stream of class file
+	 * @throws IOException if the class file cannot be read or is not valid
+	 */
+	PluginClassReader(InputStream in) throws IOException {
+		DataInputStream din = new DataInputStream(in);
+		if (din.readInt() != 0xCAFEBABE)
+			throw new IOException("Not a class file.");
+		din.readUnsignedShort(); // minor
+		din.readUnsignedShort(); // major
+
+		/* Constant pool. Only UTF8, integer and class entries are needed */
+		int count = din.readUnsignedShort();
+		Object[] pool = new Object[count];
+		boolean annotated = false;
+		for (int i = 1; i < count; i++) {
+			int tag = din.readUnsignedByte();
+			switch (tag) {
+			case CONSTANT_UTF8:
+				String utf = din.readUTF();
+				pool[i] = utf;
+				if (utf.equals(PLUGIN_DESCRIPTOR))
+					annotated = true;
+				break;
+			case CONSTANT_INTEGER:
+				pool[i] = din.readInt();
+				break;
+			case CONSTANT_CLASS:
+				pool[i] = din.readUnsignedShort();
+				break;
+			case CONSTANT_LONG:
+			case CONSTANT_DOUBLE:
+				din.skipBytes(8);
+				/* Takes two slots */
+				i++;
+				break;
+			case CONSTANT_FLOAT:
+			case CONSTANT_FIELDREF:
+			case CONSTANT_METHODREF:
+			case CONSTANT_INTERFACE_METHODREF:
+			case CONSTANT_NAME_AND_TYPE:
+			case CONSTANT_DYNAMIC:
+			case CONSTANT_INVOKE_DYNAMIC:
+				din.skipBytes(4);
+				break;
+			case CONSTANT_METHOD_HANDLE:
+				din.skipBytes(3);
+				break;
+			case CONSTANT_STRING:
+			case CONSTANT_METHOD_TYPE:
+			case CONSTANT_MODULE:
+			case CONSTANT_PACKAGE:
+				din.skipBytes(2);
+				break;
+			default:
+				throw new IOException(String.format("Unknown constant pool tag %d.", tag));
+			}
+		}
+
+		din.readUnsignedShort(); // access
+		className = ((String) pool[(Integer) pool[din.readUnsignedShort()]]).replace('/', '.');
+
+		/* If the annotation type is not in the constant pool, it can't be a plugin */
+		if (!annotated)
+			return;
+
+		din.readUnsignedShort(); // super class
+		din.skipBytes(din.readUnsignedShort() * 2); // interfaces
+		skipMembers(din); // fields
+		skipMembers(din); // methods
+
+		for (int i = din.readUnsignedShort(); i > 0; i--) {
+			String attrName = (String) pool[din.readUnsignedShort()];
+			int length = din.readInt();
+			if (RUNTIME_VISIBLE_ANNOTATIONS.equals(attrName)) {
+				for (int j = din.readUnsignedShort(); j > 0; j--) {
+					String type = (String) pool[din.readUnsignedShort()];
+					if (PLUGIN_DESCRIPTOR.equals(type)) {
+						plugin = readPlugin(din, pool);
+						return;
+					} else
+						skipAnnotationValues(din);
+				}
+			} else
+				skipFully(din, length);
+		}
+	}
+
+	/**
+	 * Get the binary name of the class.
+	 *
+	 * @return class name
+	 */
+	String getClassName() {
+		return className;
+	}
+
+	/**
+	 * Get the {@link Plugin} annotation attributes, or <code>null</code> if the
+	 * class is not annotated.
+	 *
+	 * @return plugin annotation or <code>null</code>
+	 */
+	Plugin getPlugin() {
+		return plugin;
+	}
+
+	private static PluginAttributes readPlugin(DataInputStream din, Object[] pool) throws IOException {
+		PluginAttributes attrs = new PluginAttributes();
+		for (int i = din.readUnsignedShort(); i > 0; i--) {
+			String name = (String) pool[din.readUnsignedShort()];
+			switch (name) {
+			case "staticLoad":
+				attrs.staticLoad = ((Integer) pool[readConstValue(din, 'Z')]) != 0;
+				break;
+			case "name":
+				attrs.name = (String) pool[readConstValue(din, 's')];
+				break;
+			case "description":
+				attrs.description = (String) pool[readConstValue(din, 's')];
+				break;
+			case "start":
+				if (din.readUnsignedByte() != 'e')
+					throw new IOException("Expected enum value for start.");
+				din.readUnsignedShort(); // type
+				attrs.start = Plugin.StartMode.valueOf((String) pool[din.readUnsignedShort()]);
+				break;
+			case "dependencies":
+				if (din.readUnsignedByte() != '[')
+					throw new IOException("Expected array value for dependencies.");
+				List<String> deps = new ArrayList<>();
+				for (int j = din.readUnsignedShort(); j > 0; j--)
+					deps.add((String) pool[readConstValue(din, 's')]);
+				attrs.dependencies = deps.toArray(new String[0]);
+				break;
+			default:
+				skipElementValue(din);
+				break;
+			}
+		}
+		return attrs;
+	}
+
+	private static int readConstValue(DataInputStream din, char expectedTag) throws IOException {
+		int tag = din.readUnsignedByte();
+		if (tag != expectedTag)
+			throw new IOException(String.format("Expected element value of type %s, got %s.", expectedTag,
+					(char) tag));
+		return din.readUnsignedShort();
+	}
+
+	private static void skipAnnotationValues(DataInputStream din) throws IOException {
+		for (int i = din.readUnsignedShort(); i > 0; i--) {
+			din.readUnsignedShort(); // name
+			skipElementValue(din);
+		}
+	}
+
+	private static void skipElementValue(DataInputStream din) throws IOException {
+		int tag = din.readUnsignedByte();
+		switch (tag) {
+		case 'e':
+			din.skipBytes(4);
+			break;
+		case '@':
+			din.readUnsignedShort(); // type
+			skipAnnotationValues(din);
+			break;
+		case '[':
+			for (int i = din.readUnsignedShort(); i > 0; i--)
+				skipElementValue(din);
+			break;
+		default:
+			/* Constants and class */
+			din.skipBytes(2);
+			break;
+		}
+	}
+
+	private static void skipMembers(DataInputStream din) throws IOException {
+		for (int i = din.readUnsignedShort(); i > 0; i--) {
+			din.skipBytes(6); // access, name, descriptor
+			for (int j = din.readUnsignedShort(); j > 0; j--) {
+				din.readUnsignedShort(); // name
+				skipFully(din, din.readInt());
+			}
+		}
+	}
+
+	private static void skipFully(DataInputStream din, int length) throws IOException {
+		while (length > 0) {
+			int skipped = din.skipBytes(length);
+			if (skipped <= 0) {
+				din.readByte();
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package com.sshtools.forker.plugin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.sshtools.forker.plugin.PluginClassReader.PluginAttributes;
+import com.sshtools.forker.plugin.api.Plugin;
+import com.sshtools.forker.plugin.api.Plugin.StartMode;
+import com.sshtools.forker.plugin.api.PluginManager;
+
+/**
+ * An index of the {@link Plugin} classes contained in a single archive, written
+ * at build time to {@link #PATH} and read at runtime instead of scanning every
+ * class in the archive. An index with no plugins marks an archive that can be
+ * skipped entirely.
+ * <p>
+ * The index is stored as a properties file. The <code>plugins</code> key lists
+ * the plugin class names, and each class has <code>name</code>,
+ * <code>description</code>, <code>start</code>, <code>staticLoad</code> and
+ * <code>dependencies</code> keys prefixed with the class name.
+ */
+public class PluginIndex {
+
+	/**
+	 * Path of the index inside an archive.
+	 */
+	public final static String PATH = DefaultPluginManager.META_INF_PLUGINS;
+
+	private final Map<String, Plugin> plugins = new LinkedHashMap<>();
+
+	/**
+	 * Add a plugin class to the index.
+	 *
+	 * @param className class name
+	 * @param plugin    plugin annotation
+	 * @return this for chaining
+	 */
+	public PluginIndex add(String className, Plugin plugin) {
+		PluginAttributes attrs = new PluginAttributes();
+		attrs.name = plugin.name();
+		attrs.description = plugin.description();
+		attrs.start = plugin.start();
+		attrs.staticLoad = plugin.staticLoad();
+		attrs.dependencies = plugin.dependencies();
+		plugins.put(className, attrs);
+		return this;
+	}
+
+	/**
+	 * Get the plugins in the index, keyed by class name, in the order they were
+	 * added.
+	 *
+	 * @return plugins
+	 */
+	public Map<String, Plugin> getPlugins() {
+		return Collections.unmodifiableMap(plugins);
+	}
+
+	/**
+	 * Get if the index contains no plugins.
+	 *
+	 * @return empty
+	 */
+	public boolean isEmpty() {
+		return plugins.isEmpty();
+	}
+
+	/**
+	 * Write the index.
+	 *
+	 * @param out output stream
+	 * @throws IOException on error
+	 */
+	public void write(OutputStream out) throws IOException {
+		Properties p = new Properties();
+		p.setProperty("plugins", String.join(",", plugins.keySet()));
+		for (Map.Entry<String, Plugin> en : plugins.entrySet()) {
+			String k = en.getKey();
+			Plugin plugin = en.getValue();
+			p.setProperty(k + ".name", plugin.name());
+			p.setProperty(k + ".description", plugin.description());
+			p.setProperty(k + ".start", plugin.start().name());
+			p.setProperty(k + ".staticLoad", String.valueOf(plugin.staticLoad()));
+			p.setProperty(k + ".dependencies", String.join(",", plugin.dependencies()));
+		}
+		p.store(out, "Plugin index");
+	}
+
+	/**
+	 * Read an index.
+	 *
+	 * @param in input stream
+	 * @return index
+	 * @throws IOException on error
+	 */
+	public static PluginIndex read(InputStream in) throws IOException {
+		Properties p = new Properties();
+		p.load(in);
+		PluginIndex idx = new PluginIndex();
+		for (String k : StringUtils.split(p.getProperty("plugins", ""), ',')) {
+			PluginAttributes attrs = new PluginAttributes();
+			attrs.name = p.getProperty(k + ".name", "");
+			attrs.description = p.getProperty(k + ".description", "");
+			try {
+				attrs.start = StartMode.valueOf(p.getProperty(k + ".start", StartMode.DEFAULT.name()));
+			} catch (IllegalArgumentException iae) {
+				throw new IOException(String.format("Invalid start mode for %s in plugin index.", k), iae);
+			}
+			attrs.staticLoad = Boolean.parseBoolean(p.getProperty(k + ".staticLoad", "false"));
+			attrs.dependencies = StringUtils.split(p.getProperty(k + ".dependencies", ""), ',');
+			idx.plugins.put(k, attrs);
+		}
+		return idx;
+	}
+
+	/**
+	 * Read the index from an archive (a jar, zip or directory), reading only the
+	 * single index entry.
+	 *
+	 * @param archive archive
+	 * @return index or <code>null</code> if the archive has no index or is not a
+	 *         local jar, zip or directory
+	 * @throws IOException on error
+	 */
+	public static PluginIndex find(URL archive) throws IOException {
+		return find(null, archive);
+	}
+
+	/**
+	 * Read the index from an archive (a jar, zip or directory). Jars are read
+	 * using the {@link JarMetadata} shared by the current resolution of the
+	 * manager, so they are only opened once.
+	 *
+	 * @param manager manager or <code>null</code> to always open the archive
+	 * @param archive archive
+	 * @return index or <code>null</code> if the archive has no index or is not a
+	 *         local jar, zip or directory
+	 * @throws IOException on error
+	 */
+	public static PluginIndex find(PluginManager manager, URL archive) throws IOException {
+		if (!archive.getProtocol().equals("file"))
+			return null;
+		File file = new File(archive.getPath());
+		if (file.isDirectory()) {
+			File idx = new File(file, PATH.replace('/', File.separatorChar));
+			if (!idx.isFile())
+				return null;
+			try (InputStream in = new FileInputStream(idx)) {
+				return read(in);
+			}
+		} else if (file.isFile() && (file.getName().toLowerCase().endsWith(".jar")
+				|| file.getName().toLowerCase().endsWith(".zip"))) {
+			if (manager != null)
+				return JarMetadata.get(manager, file).getPluginIndex();
+			try (ZipFile zf = new ZipFile(file)) {
+				ZipEntry entry = zf.getEntry(PATH);
+				if (entry == null || entry.isDirectory())
+					return null;
+				try (InputStream in = zf.getInputStream(entry)) {
+					return read(in);
+				}
+			}
+		}
+		return null;
+	}
+}
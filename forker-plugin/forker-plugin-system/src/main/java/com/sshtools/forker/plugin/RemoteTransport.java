@@ -0,0 +1,68 @@
+package com.sshtools.forker.plugin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Fetches content for remotes. A single transport is shared by all of the
+ * remotes of a {@link DefaultPluginManager}, so implementations must be thread
+ * safe, and may reuse connections between requests.
+ */
+public interface RemoteTransport {
+
+	/**
+	 * The response to a request. It must be closed once finished with, so the
+	 * connection may be reused.
+	 */
+	public interface Response extends Closeable {
+
+		/**
+		 * Get the HTTP status of the response.
+		 *
+		 * @return status or -1 if the URL was not HTTP
+		 */
+		int getStatus() throws IOException;
+
+		/**
+		 * Get a response header.
+		 *
+		 * @param name name
+		 * @return value or <code>null</code> if not set, or the URL was not HTTP
+		 */
+		String getHeader(String name);
+
+		/**
+		 * Get the length of the content, as it will be read from
+		 * {@link #getInputStream()}.
+		 *
+		 * @return length or -1 if not known
+		 */
+		long getContentLength();
+
+		/**
+		 * Get the content. It will already be decompressed if the server compressed
+		 * it.
+		 *
+		 * @return content
+		 * @throws IOException on error, {@link java.io.FileNotFoundException} if
+		 *                     there is no content at the URL
+		 */
+		InputStream getInputStream() throws IOException;
+	}
+
+	/**
+	 * Request content.
+	 *
+	 * @param url      URL
+	 * @param headers  additional request headers (only used for HTTP)
+	 * @param metadata whether the content is metadata (such as a POM or feature
+	 *                 descriptor) rather than an archive. Metadata may be
+	 *                 compressed in transit.
+	 * @return response
+	 * @throws IOException on error
+	 */
+	Response get(URL url, Map<String, String> headers, boolean metadata) throws IOException;
+}
@@ -0,0 +1,395 @@
+package com.sshtools.forker.plugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sshtools.forker.plugin.api.ArchiveType;
+import com.sshtools.forker.plugin.api.PluginArchive;
+import com.sshtools.forker.plugin.api.PluginComponentId;
+import com.sshtools.forker.plugin.api.PluginManager;
+import com.sshtools.forker.plugin.api.PluginSpec;
+import com.sshtools.forker.plugin.maven.MavenJarArchive;
+
+/**
+ * An on-disk snapshot of a resolved {@link DefaultPluginDependencyTree}. Each
+ * root classpath element is keyed by its path, size and modification time.
+ * When the tree is next resolved, archives that came from an unchanged element
+ * are restored from the snapshot without opening the element again, and only
+ * changed elements are examined.
+ * <p>
+ * Only plain files are snapshot, class folders are always examined. Archive
+ * types other than Maven jars, plain jars and default archives are not
+ * snapshot either, so the elements they came from will also be examined.
+ */
+class ResolutionSnapshot {
+
+	private final static String MAGIC = "SPS-SNAPSHOT";
+	private final static int VERSION = 2;
+
+	private final static byte MAVEN_JAR = 'M';
+	private final static byte JAR = 'J';
+	private final static byte DEFAULT = 'D';
+
+	/**
+	 * The key of a root classpath element.
+	 */
+	final static class Root {
+		private final String path;
+		private final long size;
+		private final long modified;
+		private final List<PluginArchive> archives = new ArrayList<>();
+
+		Root(String path, long size, long modified) {
+			this.path = path;
+			this.size = size;
+			this.modified = modified;
+		}
+
+		boolean matches(Root other) {
+			return other != null && path.equals(other.path) && size == other.size && modified == other.modified;
+		}
+	}
+
+	private final Map<String, Root> roots = new HashMap<>();
+	private final List<PluginArchive> rootless = new ArrayList<>();
+	private final List<PluginArchive> archives = new ArrayList<>();
+
+	private ResolutionSnapshot() {
+	}
+
+	/**
+	 * Get the key for a classpath element as it is now. Only plain files may be
+	 * keyed, <code>null</code> will be returned for anything else.
+	 *
+	 * @param file file
+	 * @return key
+	 */
+	static Root key(File file) {
+		if (!file.isFile())
+			return null;
+		return new Root(file.getAbsolutePath(), file.length(), file.lastModified());
+	}
+
+	/**
+	 * Get the archives that were previously resolved from a classpath element, or
+	 * <code>null</code> if the element has changed (or was never snapshot) and
+	 * must be examined again.
+	 *
+	 * @param key current key of element
+	 * @return archives or <code>null</code>
+	 */
+	List<PluginArchive> restore(Root key) {
+		if (key == null)
+			return null;
+		Root root = roots.get(key.path);
+		return root != null && root.matches(key) ? Collections.unmodifiableList(root.archives) : null;
+	}
+
+	/**
+	 * Get the archives that did not come from any classpath element, for example
+	 * dependencies that have not yet been downloaded.
+	 *
+	 * @return archives
+	 */
+	List<PluginArchive> getRootless() {
+		return Collections.unmodifiableList(rootless);
+	}
+
+	/**
+	 * Get all archives in the snapshot, in the order they were resolved.
+	 *
+	 * @return archives
+	 */
+	List<PluginArchive> getArchives() {
+		return Collections.unmodifiableList(archives);
+	}
+
+	/**
+	 * Get if every root classpath element in the snapshot is unchanged and the
+	 * classpath itself is the same, in which case the whole tree may be restored
+	 * as it was.
+	 *
+	 * @param keys current keys of all classpath elements
+	 * @return unchanged
+	 */
+	boolean isUnchanged(List<Root> keys) {
+		if (keys.size() != roots.size())
+			return false;
+		for (Root key : keys) {
+			if (restore(key) == null)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Load a snapshot. If the snapshot does not exist, or was made with different
+	 * settings, <code>null</code> is returned.
+	 *
+	 * @param file     file
+	 * @param manager  manager
+	 * @param settings settings the tree is being resolved with
+	 * @return snapshot or <code>null</code>
+	 * @throws IOException on error
+	 */
+	static ResolutionSnapshot load(File file, PluginManager manager, String settings) throws IOException {
+		if (!file.exists())
+			return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (!MAGIC.equals(in.readUTF()) || in.readInt() != VERSION || !settings.equals(in.readUTF()))
+				return null;
+
+			ResolutionSnapshot snapshot = new ResolutionSnapshot();
+			List<Root> roots = new ArrayList<>();
+			for (int i = in.readInt(); i > 0; i--) {
+				Root root = new Root(in.readUTF(), in.readLong(), in.readLong());
+				roots.add(root);
+				snapshot.roots.put(root.path, root);
+			}
+
+			/* First construct all the archives, so they may refer to each other */
+			List<AbstractArchive> archives = new ArrayList<>();
+			for (int i = in.readInt(); i > 0; i--) {
+				byte kind = in.readByte();
+				int root = in.readInt();
+				String url = readString(in);
+				PluginComponentId id = readId(in);
+				AbstractArchive archive;
+				switch (kind) {
+				case MAVEN_JAR:
+					archive = new MavenJarArchive(manager, id);
+					if (url != null)
+						archive.setArchive(new URL(url));
+					break;
+				case JAR:
+					archive = new JarArchive(manager, new URL(url), id);
+					break;
+				case DEFAULT:
+					archive = new DefaultArchive(manager, url == null ? null : new URL(url), id);
+					break;
+				default:
+					throw new IOException(String.format("Unknown archive kind %d in snapshot %s.", kind, file));
+				}
+				archives.add(archive);
+				snapshot.archives.add(archive);
+				if (root == -1)
+					snapshot.rootless.add(archive);
+				else
+					roots.get(root).archives.add(archive);
+			}
+
+			/* Now their state */
+			for (AbstractArchive archive : archives) {
+				archive.setName(readString(in));
+				archive.setDescription(readString(in));
+				archive.addDependency(readIds(in));
+				archive.addDependent(readIds(in));
+				for (int i = in.readInt(); i > 0; i--) {
+					PluginComponentId id = readId(in);
+					String name = readString(in);
+					String description = readString(in);
+					String[] dependencyNames = new String[in.readInt()];
+					for (int j = 0; j < dependencyNames.length; j++)
+						dependencyNames[j] = in.readUTF();
+					DefaultPluginSpec spec = new DefaultPluginSpec(archive, id, dependencyNames, name, description);
+					spec.setAutostart(in.readBoolean());
+					spec.setStatic(in.readBoolean());
+					spec.addDependency(readIds(in));
+					spec.addDependent(readIds(in));
+					archive.addChild(spec);
+				}
+				archive.readSnapshot(in, idx -> idx == -1 ? null : archives.get(idx));
+			}
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Save a snapshot of the resolved archives. The snapshot is written to a
+	 * temporary file, then moved into place.
+	 *
+	 * @param file     file
+	 * @param settings settings the tree was resolved with
+	 * @param keys     keys of the root classpath elements, taken before they were
+	 *                 examined
+	 * @param resolved resolved archives
+	 * @throws IOException on error
+	 */
+	static void save(File file, String settings, Collection<Root> keys, Collection<PluginArchive> resolved)
+			throws IOException {
+
+		/* Work out which root each archive came from */
+		Map<String, Root> byUrl = new HashMap<>();
+		Map<String, Root> roots = new LinkedHashMap<>();
+		for (Root key : keys) {
+			Root root = new Root(key.path, key.size, key.modified);
+			roots.put(key.path, root);
+			byUrl.put(new File(key.path).toURI().toURL().toExternalForm(), root);
+		}
+		List<PluginArchive> archives = new ArrayList<>();
+		Map<PluginArchive, Root> archiveRoots = new IdentityHashMap<>();
+		for (PluginArchive archive : resolved) {
+			URL url = archive.getArchive();
+			Root root = url == null ? null : byUrl.get(url.toExternalForm());
+			if (root == null && url != null && url.getProtocol().equals("file")) {
+				/* A local file that is not on the classpath, can't be keyed */
+				continue;
+			}
+			if (!isSnapshotable(archive)) {
+				if (root != null)
+					roots.remove(root.path);
+				continue;
+			}
+			archiveRoots.put(archive, root);
+			archives.add(archive);
+		}
+
+		/* Drop archives whose root could not be completely snapshot */
+		List<Root> rootList = new ArrayList<>(roots.values());
+		Map<Root, Integer> rootIndex = new IdentityHashMap<>();
+		for (int i = 0; i < rootList.size(); i++)
+			rootIndex.put(rootList.get(i), i);
+		archives.removeIf(a -> archiveRoots.get(a) != null && !rootIndex.containsKey(archiveRoots.get(a)));
+		Map<PluginArchive, Integer> archiveIndex = new IdentityHashMap<>();
+		for (int i = 0; i < archives.size(); i++)
+			archiveIndex.put(archives.get(i), i);
+
+		File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		if (!tmp.getParentFile().exists() && !tmp.getParentFile().mkdirs())
+			throw new IOException(String.format("Failed to create directory for snapshot %s.", file));
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeUTF(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(settings);
+
+			out.writeInt(rootList.size());
+			for (Root root : rootList) {
+				out.writeUTF(root.path);
+				out.writeLong(root.size);
+				out.writeLong(root.modified);
+			}
+
+			out.writeInt(archives.size());
+			for (PluginArchive archive : archives) {
+				Root root = archiveRoots.get(archive);
+				out.writeByte(kind(archive));
+				out.writeInt(root == null ? -1 : rootIndex.get(root));
+				writeString(out, archive.getArchive() == null ? null : archive.getArchive().toExternalForm());
+				writeId(out, archive.getComponentId());
+			}
+
+			for (PluginArchive archive : archives) {
+				writeString(out, archive.getName());
+				writeString(out, archive.getDescription());
+				writeIds(out, archive.getDependencies());
+				writeIds(out, archive.getDependents());
+				out.writeInt(archive.getChildren().size());
+				for (PluginSpec child : archive.getChildren()) {
+					DefaultPluginSpec spec = (DefaultPluginSpec) child;
+					writeId(out, spec.getComponentId());
+					writeString(out, spec.getName());
+					writeString(out, spec.getDescription());
+					String[] dependencyNames = spec.getDependencyNames();
+					out.writeInt(dependencyNames == null ? 0 : dependencyNames.length);
+					if (dependencyNames != null) {
+						for (String name : dependencyNames)
+							out.writeUTF(name);
+					}
+					out.writeBoolean(spec.isAutostart());
+					out.writeBoolean(spec.isStatic());
+					writeIds(out, spec.getDependencies());
+					writeIds(out, spec.getDependents());
+				}
+				((AbstractArchive) archive).writeSnapshot(out, a -> {
+					Integer idx = archiveIndex.get(a);
+					return idx == null ? -1 : idx;
+				});
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static boolean isSnapshotable(PluginArchive archive) {
+		if (kind(archive) == 0)
+			return false;
+		for (PluginSpec spec : archive.getChildren()) {
+			if (!spec.getClass().equals(DefaultPluginSpec.class))
+				return false;
+		}
+		return true;
+	}
+
+	private static byte kind(PluginArchive archive) {
+		Class<?> clazz = archive.getClass();
+		if (clazz.equals(MavenJarArchive.class))
+			return MAVEN_JAR;
+		else if (clazz.equals(JarArchive.class))
+			return JAR;
+		else if (clazz.equals(DefaultArchive.class))
+			return DEFAULT;
+		return 0;
+	}
+
+	static void writeString(DataOutput out, String str) throws IOException {
+		out.writeBoolean(str != null);
+		if (str != null)
+			out.writeUTF(str);
+	}
+
+	static String readString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeId(DataOutput out, PluginComponentId id) throws IOException {
+		writeString(out, id.getGroup());
+		writeString(out, id.getId());
+		writeString(out, id.getVersion());
+		writeString(out, id.getPlugin());
+		writeString(out, id.getType() == null ? null : id.getType().name());
+		out.writeBoolean(id.isOptional());
+	}
+
+	private static PluginComponentId readId(DataInput in) throws IOException {
+		String group = readString(in);
+		String id = readString(in);
+		String version = readString(in);
+		String plugin = readString(in);
+		String type = readString(in);
+		if (in.readBoolean())
+			version = "~" + (version == null ? "" : version);
+		return new PluginComponentId(group, id, version, plugin, type == null ? null : ArchiveType.valueOf(type));
+	}
+
+	private static void writeIds(DataOutput out, Set<PluginComponentId> ids) throws IOException {
+		out.writeInt(ids.size());
+		for (PluginComponentId id : ids)
+			writeId(out, id);
+	}
+
+	private static PluginComponentId[] readIds(DataInput in) throws IOException {
+		PluginComponentId[] ids = new PluginComponentId[in.readInt()];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = readId(in);
+		return ids;
+	}
+}
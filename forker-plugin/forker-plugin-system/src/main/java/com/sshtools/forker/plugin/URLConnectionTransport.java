@@ -0,0 +1,145 @@
+package com.sshtools.forker.plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The default {@link RemoteTransport}, using {@link URLConnection}. HTTP
+ * connections are kept alive and reused by the JVM as long as each response is
+ * read fully or closed, which {@link Response#close()} takes care of. Metadata
+ * is requested gzip compressed. Archives are not, as they are already
+ * compressed and downloads need to know their exact length to be resumed.
+ * <p>
+ * The connect and read timeouts default to 30 and 60 seconds, and may be
+ * changed using the <code>sps.connectTimeout</code> and
+ * <code>sps.readTimeout</code> system properties (in milliseconds).
+ */
+public class URLConnectionTransport implements RemoteTransport {
+
+	private final static int DRAIN_LIMIT = 64 * 1024;
+
+	private int connectTimeout = Integer.getInteger("sps.connectTimeout", 30000);
+	private int readTimeout = Integer.getInteger("sps.readTimeout", 60000);
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Set how long to wait for a connection to be established.
+	 *
+	 * @param connectTimeout timeout in milliseconds, or 0 to wait forever
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * Set how long to wait for data once connected.
+	 *
+	 * @param readTimeout timeout in milliseconds, or 0 to wait forever
+	 */
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	@Override
+	public Response get(URL url, Map<String, String> headers, boolean metadata) throws IOException {
+		URLConnection conx = url.openConnection();
+		conx.setConnectTimeout(connectTimeout);
+		conx.setReadTimeout(readTimeout);
+		if (conx instanceof HttpURLConnection) {
+			if (headers != null) {
+				for (Map.Entry<String, String> en : headers.entrySet())
+					conx.setRequestProperty(en.getKey(), en.getValue());
+			}
+			if (metadata)
+				conx.setRequestProperty("Accept-Encoding", "gzip");
+		}
+		return new URLConnectionResponse(conx);
+	}
+
+	final static class URLConnectionResponse implements Response {
+		private final URLConnection conx;
+		private InputStream in;
+
+		URLConnectionResponse(URLConnection conx) {
+			this.conx = conx;
+		}
+
+		@Override
+		public int getStatus() throws IOException {
+			return conx instanceof HttpURLConnection ? ((HttpURLConnection) conx).getResponseCode() : -1;
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return conx instanceof HttpURLConnection ? conx.getHeaderField(name) : null;
+		}
+
+		@Override
+		public long getContentLength() {
+			return isCompressed() ? -1 : conx.getContentLengthLong();
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			if (in == null) {
+				in = conx.getInputStream();
+				if (isCompressed())
+					in = new GZIPInputStream(in);
+			}
+			return in;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (in != null) {
+				in.close();
+			} else if (conx instanceof HttpURLConnection) {
+				/*
+				 * The content was never read, e.g. because of an error status. Read any
+				 * small body so the connection can go back to the keep-alive cache.
+				 */
+				HttpURLConnection http = (HttpURLConnection) conx;
+				try {
+					InputStream body = http.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST
+							? http.getErrorStream()
+							: http.getInputStream();
+					if (body != null) {
+						try {
+							long len = http.getContentLengthLong();
+							if (len >= 0 && len <= DRAIN_LIMIT) {
+								byte[] buf = new byte[4096];
+								while (body.read(buf) != -1)
+									;
+							}
+						} finally {
+							body.close();
+						}
+					}
+				} catch (IOException ioe) {
+					http.disconnect();
+				}
+			} else {
+				try {
+					conx.getInputStream().close();
+				} catch (IOException ioe) {
+				}
+			}
+		}
+
+		private boolean isCompressed() {
+			return "gzip".equalsIgnoreCase(conx.getContentEncoding());
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package com.sshtools.forker.plugin.maven;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sshtools.forker.plugin.DefaultPluginManager;
+import com.sshtools.forker.plugin.PropertyResolver;
+import com.sshtools.forker.plugin.api.PluginComponentId;
+import com.sshtools.forker.plugin.api.PluginManager;
+import com.sshtools.forker.plugin.api.PluginProgressMonitor;
+import com.sshtools.forker.plugin.api.PluginProgressMonitor.MessageType;
+import com.sshtools.forker.plugin.api.PluginRemote;
+import com.sshtools.forker.plugin.maven.POMDescriptor.DependencyDescriptor;
+
+/**
+ * Resolves the dependency management that applies to a POM, i.e. that of the
+ * POM itself, inherited from its parents, and imported from BOMs (managed
+ * dependencies of type <code>pom</code> and scope <code>import</code>), along
+ * with the properties inherited from its parents. This lets dependencies
+ * without a version, or whose version is a property of a parent, be resolved
+ * to an exact version.
+ * <p>
+ * Parents and BOMs are looked for in the local repository, then, if the
+ * current resolution context allows downloading, in each enabled
+ * {@link MavenRemote}. Once resolved, the management of each parent and BOM is
+ * cached until {@link #clear()}, including those that could not be found in
+ * any remote. Those that could not be read because of an error, or were not
+ * found while downloading is not allowed, are not cached, and neither is
+ * anything that inherits from or imports them, so they are tried again next
+ * time.
+ * <p>
+ * This class is thread safe.
+ */
+public class DependencyManagement {
+
+	/**
+	 * The properties and managed dependencies that apply to a POM.
+	 */
+	public final static class Managed {
+		private final static Managed EMPTY = new Managed(Collections.emptyMap(), Collections.emptyMap());
+
+		private final Map<String, String> properties;
+		private final Map<String, DependencyDescriptor> dependencies;
+
+		Managed(Map<String, String> properties, Map<String, DependencyDescriptor> dependencies) {
+			this.properties = Collections.unmodifiableMap(properties);
+			this.dependencies = Collections.unmodifiableMap(dependencies);
+		}
+
+		/**
+		 * Get the properties, including those inherited from parents.
+		 *
+		 * @return properties
+		 */
+		public Map<String, String> getProperties() {
+			return properties;
+		}
+
+		/**
+		 * Get the managed dependencies, keyed by <code>groupId:artifactId</code>.
+		 *
+		 * @return managed dependencies
+		 */
+		public Map<String, DependencyDescriptor> getDependencies() {
+			return dependencies;
+		}
+
+		/**
+		 * Get the managed dependency for an artifact.
+		 *
+		 * @param groupId    group ID
+		 * @param artifactId artifact ID
+		 * @return managed dependency or <code>null</code> if it is not managed
+		 */
+		public DependencyDescriptor get(String groupId, String artifactId) {
+			return dependencies.get(groupId + ":" + artifactId);
+		}
+
+		/**
+		 * Process any references to properties, including those inherited from
+		 * parents, in some text.
+		 *
+		 * @param text text
+		 * @return processed text
+		 */
+		public String process(String text) {
+			return process(resolver(properties), text);
+		}
+
+		static String process(PropertyResolver resolver, String text) {
+			/* Property values may themselves refer to other properties */
+			for (int i = 0; i < 8 && POMDescriptor.isProperty(text); i++) {
+				String processed = resolver.process(text);
+				if (processed.equals(text))
+					break;
+				text = processed;
+			}
+			return text;
+		}
+
+		static PropertyResolver resolver(Map<String, String> properties) {
+			PropertyResolver resolver = new PropertyResolver();
+			resolver.putAll(properties);
+			return resolver;
+		}
+	}
+
+	/**
+	 * How many parents and BOMs deep to go before giving up.
+	 */
+	private final static int MAX_DEPTH = 32;
+
+	private final PluginManager manager;
+	private final Map<String, Managed> cache = new ConcurrentHashMap<>();
+
+	public DependencyManagement(PluginManager manager) {
+		this.manager = manager;
+	}
+
+	/**
+	 * Get the properties and managed dependencies that apply to a POM.
+	 *
+	 * @param pom     POM
+	 * @param monitor monitor
+	 * @return managed
+	 */
+	public Managed get(POMDescriptor pom, PluginProgressMonitor monitor) {
+		if (pom.getParent() == null && pom.getDependencyManagement().isEmpty())
+			return Managed.EMPTY;
+		return resolve(pom, monitor, new Resolving());
+	}
+
+	/**
+	 * Forget all resolved parents and BOMs.
+	 */
+	public void clear() {
+		cache.clear();
+	}
+
+	private Managed resolve(String groupId, String artifactId, String version, PluginProgressMonitor monitor,
+			Resolving resolving) {
+		String key = groupId + ":" + artifactId + ":" + version;
+		Managed managed = cache.get(key);
+		if (managed != null)
+			return managed;
+		if (resolving.visiting.size() >= MAX_DEPTH || !resolving.visiting.add(key)) {
+			if (monitor != null)
+				monitor.message(MessageType.WARNING, String.format("Parent or BOM %s is circular or too deep.", key));
+			return Managed.EMPTY;
+		}
+		try {
+			boolean download = manager.getResolutionContext().download();
+			POMDescriptor pom = findPOM(groupId, artifactId, version, download, monitor);
+			if (pom == null && !download) {
+				/*
+				 * Remotes were not asked, so it may be found when downloading is allowed.
+				 * Neither it nor anything that inherits from or imports it is complete.
+				 */
+				resolving.incomplete = true;
+				return Managed.EMPTY;
+			}
+			managed = pom == null ? Managed.EMPTY : resolve(pom, monitor, resolving);
+			/* If anything it depends on is missing, it may be complete next time */
+			if (!resolving.incomplete)
+				cache.put(key, managed);
+			return managed;
+		} catch (IOException ioe) {
+			/* Already reported */
+			resolving.incomplete = true;
+			return Managed.EMPTY;
+		} finally {
+			resolving.visiting.remove(key);
+		}
+	}
+
+	private Managed resolve(POMDescriptor pom, PluginProgressMonitor monitor, Resolving resolving) {
+		Managed parent = Managed.EMPTY;
+		DependencyDescriptor parentPom = pom.getParent();
+		if (parentPom != null && isResolvable(parentPom))
+			parent = resolve(parentPom.getGroupId(), parentPom.getArtifactId(), parentPom.getVersion(), monitor,
+					resolving);
+
+		/* Properties of the POM override those of its parents */
+		Map<String, String> properties = new LinkedHashMap<>(parent.getProperties());
+		properties.putAll(pom.getProperties());
+		PropertyResolver resolver = Managed.resolver(properties);
+
+		/*
+		 * Dependencies managed by the POM override those of its parents, which
+		 * override those that are imported
+		 */
+		Map<String, DependencyDescriptor> dependencies = new LinkedHashMap<>();
+		Map<String, DependencyDescriptor> imports = new LinkedHashMap<>();
+		for (DependencyDescriptor dep : pom.getDependencyManagement()) {
+			dep = new DependencyDescriptor(Managed.process(resolver, dep.getGroupId()),
+					Managed.process(resolver, dep.getArtifactId()), Managed.process(resolver, dep.getVersion()),
+					dep.getType(), dep.getScope(), dep.isOptional(), dep.getExclusions());
+			if ("import".equals(dep.getScope()) && "pom".equals(dep.getType())) {
+				if (isResolvable(dep))
+					imports.put(dep.getGroupId() + ":" + dep.getArtifactId(), dep);
+			} else
+				dependencies.put(dep.getGroupId() + ":" + dep.getArtifactId(), dep);
+		}
+		for (Map.Entry<String, DependencyDescriptor> en : parent.getDependencies().entrySet())
+			dependencies.putIfAbsent(en.getKey(), en.getValue());
+		for (DependencyDescriptor bom : imports.values()) {
+			for (Map.Entry<String, DependencyDescriptor> en : resolve(bom.getGroupId(), bom.getArtifactId(),
+					bom.getVersion(), monitor, resolving).getDependencies().entrySet())
+				dependencies.putIfAbsent(en.getKey(), en.getValue());
+		}
+		return new Managed(properties, dependencies);
+	}
+
+	private POMDescriptor findPOM(String groupId, String artifactId, String version, boolean download,
+			PluginProgressMonitor monitor) throws IOException {
+		IOException error = null;
+		File local = new File(manager.getLocal(), new PluginComponentId(groupId, artifactId, version) + ".pom");
+		if (local.isFile()) {
+			try {
+				return readPOM(local);
+			} catch (IOException ioe) {
+				error = ioe;
+				if (monitor != null)
+					monitor.message(MessageType.WARNING,
+							String.format("Failed to read POM %s. %s", local, ioe.getMessage()));
+			}
+		}
+		for (PluginRemote remote : download ? manager.getRemotes() : Collections.<PluginRemote>emptyList()) {
+			if (remote instanceof MavenRemote && remote.isEnabled()) {
+				try {
+					File file = ((MavenRemote) remote).getPOM(groupId, artifactId, version);
+					if (file != null)
+						return readPOM(file);
+				} catch (IOException ioe) {
+					error = ioe;
+					if (monitor != null)
+						monitor.message(MessageType.WARNING, String.format("Failed to get POM %s:%s:%s from %s. %s",
+								groupId, artifactId, version, remote.getId(), ioe.getMessage()));
+				}
+			}
+		}
+		if (error != null)
+			throw error;
+		if (monitor != null)
+			monitor.message(MessageType.DEBUG,
+					String.format("Could not find parent or BOM %s:%s:%s, its managed dependencies will not be used.",
+							groupId, artifactId, version));
+		return null;
+	}
+
+	private POMDescriptor readPOM(File file) throws IOException {
+		try (InputStream in = new FileInputStream(file)) {
+			if (manager instanceof DefaultPluginManager)
+				return ((DefaultPluginManager) manager).getPOMCache().read(in);
+			return POMDescriptor.read(in);
+		}
+	}
+
+	private final static class Resolving {
+		private final Set<String> visiting = new LinkedHashSet<>();
+		private boolean incomplete;
+	}
+
+	private static boolean isResolvable(DependencyDescriptor dep) {
+		return dep.getGroupId() != null && dep.getArtifactId() != null && dep.getVersion() != null
+				&& !POMDescriptor.isProperty(dep.getGroupId()) && !POMDescriptor.isProperty(dep.getArtifactId())
+				&& !POMDescriptor.isProperty(dep.getVersion());
+	}
+}
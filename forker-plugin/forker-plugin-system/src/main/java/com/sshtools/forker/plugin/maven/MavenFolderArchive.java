@@ -66,6 +66,19 @@ public class MavenFolderArchive extends AbstractArchiveWithDependencies {
 		return dependenciesResolved ? ResolutionState.RESOLVED : ResolutionState.UNRESOLVED;
 	}
 
+	/**
+	 * Forget that the dependencies in the POM have been resolved, so that it is
+	 * read again the next time this archive is resolved. This is needed when the
+	 * exclusions that apply to its dependencies change.
+	 *
+	 * @return <code>true</code> if the dependencies had been resolved
+	 */
+	public boolean unresolvePOM() {
+		boolean was = dependenciesResolved;
+		dependenciesResolved = false;
+		return was;
+	}
+
 	protected void resolvePOM(PluginProgressMonitor monitor) throws IOException {
 		POMReader r = new POMReader().resolveDependencies(true);
 		try (InputStream in = new FileInputStream(pom)) {
@@ -1,5 +1,7 @@
 package com.sshtools.forker.plugin.maven;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -7,11 +9,10 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.Enumeration;
 import java.util.LinkedHashSet;
 import java.util.Set;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
 
 import org.apache.commons.io.FilenameUtils;
 
@@ -19,6 +20,7 @@ import com.sshtools.forker.plugin.AbstractArchiveWithDependencies;
 import com.sshtools.forker.plugin.DefaultArchive;
 import com.sshtools.forker.plugin.HaltResolutionException;
 import com.sshtools.forker.plugin.JarArchive;
+import com.sshtools.forker.plugin.JarMetadata;
 import com.sshtools.forker.plugin.ResolutionRetryException;
 import com.sshtools.forker.plugin.api.PluginArchive;
 import com.sshtools.forker.plugin.api.PluginComponentId;
@@ -93,6 +95,11 @@ public class MavenJarArchive extends AbstractArchiveWithDependencies {
 		return base;
 	}
 
+	@Override
+	protected boolean isDownloadRequired() {
+		return !calcArchiveState().isResolved() && isDownloadable();
+	}
+
 	@Override
 	protected void doResolve(PluginProgressMonitor monitor) throws IOException {
 		if (!calcArchiveState().isResolved())
@@ -127,10 +134,37 @@ public class MavenJarArchive extends AbstractArchiveWithDependencies {
 
 	}
 
+	@Override
+	protected void writeSnapshot(DataOutput out, ToIntFunction<PluginArchive> archives) throws IOException {
+		super.writeSnapshot(out, archives);
+		out.writeBoolean(dependenciesResolved);
+		out.writeInt(embedder == null ? -1 : archives.applyAsInt(embedder));
+	}
+
+	@Override
+	protected void readSnapshot(DataInput in, IntFunction<PluginArchive> archives) throws IOException {
+		super.readSnapshot(in, archives);
+		dependenciesResolved = in.readBoolean();
+		embedder = archives.apply(in.readInt());
+	}
+
 	protected final ResolutionState calcPOMState() {
 		return dependenciesResolved ? ResolutionState.RESOLVED : ResolutionState.UNRESOLVED;
 	}
 
+	/**
+	 * Forget that the dependencies in the POM have been resolved, so that it is
+	 * read again the next time this archive is resolved. This is needed when the
+	 * exclusions that apply to its dependencies change.
+	 *
+	 * @return <code>true</code> if the dependencies had been resolved
+	 */
+	public boolean unresolvePOM() {
+		boolean was = dependenciesResolved;
+		dependenciesResolved = false;
+		return was;
+	}
+
 	protected void resolvePOM(PluginProgressMonitor monitor) throws IOException {
 		if (getArchive() == null) {
 			if (!getComponentId().isOptional() && getManager().getResolutionContext().failOnError())
@@ -148,55 +182,48 @@ public class MavenJarArchive extends AbstractArchiveWithDependencies {
 
 			File file = new File(getArchive().toURI().toURL().getPath());
 
-			try (JarFile jf = new JarFile(file)) {
+			try {
+				JarMetadata jar = JarMetadata.get(getManager(), file);
 
 				if (embedder != null) {
 					/* If embedded, we already know the component ID so can directly locate it */
 					String entryName = "META-INF/maven/" + getComponentId().getGroup() + "/" + getComponentId().getId()
 							+ "/pom.xml";
-					JarEntry jarEntry = jf.getJarEntry(entryName);
-					if (jarEntry != null) {
+					InputStream pomIn = jar.getPOM(entryName);
+					if (pomIn != null) {
 						/* Assume any dependencies are embedded too */
-						new POMReader().resolveDependencies(deps).embedded(true).readPOM(this,
-								jf.getInputStream(jarEntry), monitor);
+						new POMReader().resolveDependencies(deps).embedded(true).readPOM(this, pomIn, monitor);
 						return true;
 					}
 				} else {
-					Enumeration<JarEntry> entries = jf.entries();
 					String archiveBase = FilenameUtils.getBaseName(getArchive().getPath());
 
 					DefaultArchive dummy = new DefaultArchive(getManager(), getArchive(), getComponentId());
 
-					JarEntry firstEntry = null;
-					JarEntry thisEntry = null;
-					Set<JarEntry> otherEntries = new LinkedHashSet<>();
+					String firstEntry = null;
+					String thisEntry = null;
+					Set<String> otherEntries = new LinkedHashSet<>();
 					int poms = 0;
-					while (entries.hasMoreElements()) {
-						JarEntry jarEntry = (JarEntry) entries.nextElement();
-
-						if (jarEntry.getName().startsWith("META-INF/maven/")
-								&& jarEntry.getName().endsWith("/pom.xml")) {
-
-							try {
-								/* Just read the main details, not the deps */
-								new POMReader().resolveDependencies(false).readPOM(dummy, jf.getInputStream(jarEntry), monitor);
-
-								poms++;
-
-								if (firstEntry == null)
-									firstEntry = jarEntry;
-
-								/*
-								 * Does this look like the Jar name? This only works for our component ID style
-								 * jars (i.e. group@id@version)
-								 */
-								if (dummy.getComponentId().toFilename().equals(archiveBase)) {
-									thisEntry = jarEntry;
-								} else
-									otherEntries.add(jarEntry);
-							} catch (IllegalArgumentException ise) {
-								// Not a maven jar
-							}
+					for (String entryName : jar.getPOMs()) {
+						try {
+							/* Just read the main details, not the deps */
+							new POMReader().resolveDependencies(false).readPOM(dummy, jar.getPOM(entryName), monitor);
+
+							poms++;
+
+							if (firstEntry == null)
+								firstEntry = entryName;
+
+							/*
+							 * Does this look like the Jar name? This only works for our component ID style
+							 * jars (i.e. group@id@version)
+							 */
+							if (dummy.getComponentId().toFilename().equals(archiveBase)) {
+								thisEntry = entryName;
+							} else
+								otherEntries.add(entryName);
+						} catch (IllegalArgumentException ise) {
+							// Not a maven jar
 						}
 					}
 
@@ -206,8 +233,8 @@ public class MavenJarArchive extends AbstractArchiveWithDependencies {
 						 * there was more than one pom found insde
 						 */
 						new POMReader().resolveDependencies(deps).embedded(poms > 1).readPOM(this,
-								jf.getInputStream(thisEntry), monitor);
-						resolveOthers(deps, jf, otherEntries, monitor);
+								jar.getPOM(thisEntry), monitor);
+						resolveOthers(deps, jar, otherEntries, monitor);
 						return true;
 					}
 
@@ -224,7 +251,7 @@ public class MavenJarArchive extends AbstractArchiveWithDependencies {
 					if (pomFile.exists()) {
 						try (InputStream in = new FileInputStream(pomFile)) {
 							new POMReader().resolveDependencies(deps).readPOM(this, in, monitor);
-							resolveOthers(deps, jf, otherEntries, monitor);
+							resolveOthers(deps, jar, otherEntries, monitor);
 							return true;
 						} catch (IOException ioe) {
 							throw new HaltResolutionException(String.format("Could not resolve %s.", getComponentId()),
@@ -239,8 +266,8 @@ public class MavenJarArchive extends AbstractArchiveWithDependencies {
 					if (firstEntry != null) {
 						otherEntries.remove(firstEntry);
 						new POMReader().resolveDependencies(deps).embedded(poms > 1).readPOM(this,
-								jf.getInputStream(firstEntry), monitor);
-						resolveOthers(deps, jf, otherEntries, monitor);
+								jar.getPOM(firstEntry), monitor);
+						resolveOthers(deps, jar, otherEntries, monitor);
 						return true;
 					}
 				}
@@ -253,10 +280,11 @@ public class MavenJarArchive extends AbstractArchiveWithDependencies {
 		return false;
 	}
 
-	protected void resolveOthers(boolean deps, JarFile jf, Set<JarEntry> otherEntries, PluginProgressMonitor monitor) throws IOException {
-		for (JarEntry other : otherEntries) {
+	protected void resolveOthers(boolean deps, JarMetadata jar, Set<String> otherEntries,
+			PluginProgressMonitor monitor) throws IOException {
+		for (String other : otherEntries) {
 			MavenJarArchive arc = new MavenJarArchive(this, getComponentId(), monitor);
-			new POMReader().resolveDependencies(deps).embedded(true).readPOM(arc, jf.getInputStream(other), monitor);
+			new POMReader().resolveDependencies(deps).embedded(true).readPOM(arc, jar.getPOM(other), monitor);
 			getManager().getResolutionContext().getDependencyTree().add(arc, monitor);
 		}
 	}
@@ -1,6 +1,7 @@
 package com.sshtools.forker.plugin.maven;
 
 import java.util.Map;
+import java.util.Properties;
 
 import org.apache.maven.model.Model;
 
@@ -11,19 +12,35 @@ public class MavenPropertyResolver extends PropertyResolver {
 	private static final long serialVersionUID = 1L;
 
 	public MavenPropertyResolver(Model model) {
-		super(model.getProperties());
-
-		if (model.getGroupId() == null && model.getParent() != null)
-			putIfNotNull("project.groupId", model.getParent().getGroupId());
-		else
-			putIfNotNull("project.groupId", model.getGroupId());
-		putIfNotNull("project.artifactId", model.getArtifactId());
-		if (model.getVersion() == null && model.getParent() != null)
-			putIfNotNull("project.version", model.getParent().getVersion());
-		else
-			putIfNotNull("project.version", model.getVersion());
-		putIfNotNull("project.name", model.getName());
-		putIfNotNull("project.description", model.getDescription());
+		this(model.getProperties(),
+				model.getGroupId() == null && model.getParent() != null ? model.getParent().getGroupId()
+						: model.getGroupId(),
+				model.getArtifactId(),
+				model.getVersion() == null && model.getParent() != null ? model.getParent().getVersion()
+						: model.getVersion(),
+				model.getName(), model.getDescription());
+	}
+
+	/**
+	 * Create a resolver from the parts of a POM, for when it has not been read into
+	 * a full {@link Model}.
+	 *
+	 * @param properties  properties of the POM
+	 * @param groupId     group ID, or that of the parent if the POM has none
+	 * @param artifactId  artifact ID
+	 * @param version     version, or that of the parent if the POM has none
+	 * @param name        name
+	 * @param description description
+	 */
+	public MavenPropertyResolver(Properties properties, String groupId, String artifactId, String version,
+			String name, String description) {
+		super(properties);
+
+		putIfNotNull("project.groupId", groupId);
+		putIfNotNull("project.artifactId", artifactId);
+		putIfNotNull("project.version", version);
+		putIfNotNull("project.name", name);
+		putIfNotNull("project.description", description);
 
 		putAll(System.getProperties());
 
@@ -6,12 +6,28 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
 import org.apache.commons.lang3.SystemUtils;
+import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
 
 import com.sshtools.forker.plugin.AbstractRemote;
+import com.sshtools.forker.plugin.DefaultArchive;
+import com.sshtools.forker.plugin.api.InstallMode;
 import com.sshtools.forker.plugin.api.PluginArchive;
 import com.sshtools.forker.plugin.api.PluginComponentId;
 import com.sshtools.forker.plugin.api.PluginProgressMonitor;
@@ -20,6 +36,7 @@ import com.sshtools.forker.plugin.api.PluginProgressMonitor.MessageType;
 public class MavenRemote extends AbstractRemote {
 
 	private URL url;
+	private Set<String> groups = new LinkedHashSet<>();
 
 	static URL url(String url) {
 		try {
@@ -47,8 +64,102 @@ public class MavenRemote extends AbstractRemote {
 		return url.getProtocol().equals("file");
 	}
 
+	/**
+	 * Get the groups that are listed by this remote.
+	 * 
+	 * @return groups
+	 */
+	public Set<String> getGroups() {
+		return Collections.unmodifiableSet(groups);
+	}
+
+	/**
+	 * Add a group to list. A Maven repository has no index of what it contains,
+	 * so only configured groups are listed. This may either be a
+	 * <code>groupId</code>, or a <code>groupId:artifactId</code> to list a single
+	 * artifact. For a whole group, the artifacts are found from the group's
+	 * <code>maven-metadata.xml</code>, or the directory listing for a
+	 * <code>file:</code> repository.
+	 * 
+	 * @param group group
+	 * @return this for chaining
+	 */
+	public MavenRemote addGroup(String group) {
+		groups.add(group);
+		return this;
+	}
+
+	/**
+	 * Get the latest version of an artifact, as given by its
+	 * <code>maven-metadata.xml</code> (or for a <code>file:</code> repository, its
+	 * version directories).
+	 * 
+	 * @param group    group ID
+	 * @param artifact artifact ID
+	 * @return latest version or <code>null</code> if the artifact is not in this
+	 *         repository
+	 * @throws IOException on error
+	 */
+	public String getLatestVersion(String group, String artifact) throws IOException {
+		String artifactPath = group.replace('.', '/') + "/" + artifact + "/";
+		Element versioning = null;
+		try {
+			versioning = child(readMetadata(new URL(url, artifactPath + "maven-metadata.xml")), "versioning");
+		} catch (FileNotFoundException fnfe) {
+		}
+		if (versioning != null) {
+			String release = text(child(versioning, "release"));
+			if (release != null)
+				return release;
+		}
+
+		List<String> versions = new ArrayList<>();
+		if (versioning != null) {
+			for (Element version : children(child(versioning, "versions"), "version"))
+				versions.add(version.getTextContent().trim());
+		}
+		if (versions.isEmpty() && isLocal()) {
+			File dir = new File(new URL(url, artifactPath).getPath());
+			File[] dirs = dir.listFiles(File::isDirectory);
+			if (dirs != null) {
+				for (File d : dirs)
+					versions.add(d.getName());
+			}
+		}
+		if (versions.isEmpty())
+			return versioning == null ? null : text(child(versioning, "latest"));
+		return versions.stream().max(Comparator.comparing(DefaultArtifactVersion::new)).get();
+	}
+
+	/**
+	 * Get the POM of an artifact, for example a parent POM or BOM that is needed
+	 * to resolve the dependencies of another artifact. POMs are kept in the
+	 * metadata cache, so are not fetched every time they are needed.
+	 *
+	 * @param group    group ID
+	 * @param artifact artifact ID
+	 * @param version  version
+	 * @return file containing the POM or <code>null</code> if the POM is not in
+	 *         this repository
+	 * @throws IOException on error
+	 */
+	public File getPOM(String group, String artifact, String version) throws IOException {
+		try {
+			return getMetadataCache().get(new URL(url, group.replace('.', '/') + "/" + artifact + "/" + version + "/"
+					+ artifact + "-" + version + ".pom"), getTransport());
+		} catch (FileNotFoundException fnfe) {
+			return null;
+		}
+	}
+
 	@Override
 	protected URL doRetrieve(PluginProgressMonitor progress, PluginComponentId pa) throws IOException {
+		if (!pa.hasVersion()) {
+			String version = getLatestVersion(pa.getGroup(), pa.getId());
+			if (version == null)
+				return null;
+			pa = pa.withVersion(version);
+		}
 		String artPath = pa.getGroup().replaceAll("\\.", "/") + "/" + pa.getId() + "/" + pa.getVersion() + "/"
 				+ pa.getId() + "-" + pa.getVersion();
 		URL artUrl = new URL(url, artPath + ".jar");
@@ -61,7 +172,9 @@ public class MavenRemote extends AbstractRemote {
 		File outFile = new File(local, pa + ".jar");
 		File pomFile = new File(local, pa + ".pom");
 
-		if (SystemUtils.IS_OS_UNIX && artUrl.getProtocol().equals("file")) {
+		InstallMode mode = manager.getInstallMode();
+		if (((SystemUtils.IS_OS_UNIX && mode == InstallMode.AUTO) || mode == InstallMode.LINK)
+				&& artUrl.getProtocol().equals("file")) {
 			/* We might be able to soft link */
 			File f = new File(artUrl.getPath());
 			if (f.exists()) {
@@ -78,13 +191,17 @@ public class MavenRemote extends AbstractRemote {
 		}
 		boolean jarOk = false;
 		try {
-			jarOk = download(progress, pa.getId() + ":" + pa.getVersion(), artUrl, outFile);
+			String hash = getPublishedHash(artUrl);
+			if (hash == null)
+				hash = getExpectedHash(pa);
+			jarOk = download(progress, pa.getId() + ":" + pa.getVersion(), artUrl, outFile, hash);
 		} catch (FileNotFoundException fnfe) {
 			if (progress != null)
 				progress.message(MessageType.DEBUG, String.format("%s not found at %s.", artUrl, url));
 		} catch (IOException fnfe) {
 			if (progress != null)
-				progress.message(MessageType.WARNING, String.format("Failed to download %s from %s.", artUrl, url));
+				progress.message(MessageType.WARNING,
+						String.format("Failed to download %s from %s. %s", artUrl, url, fnfe.getMessage()));
 		}
 		try {
 			download(progress, pa.getId() + ":" + pa.getVersion(), pomUrl, pomFile);
@@ -95,7 +212,85 @@ public class MavenRemote extends AbstractRemote {
 	}
 
 	@Override
-	protected Set<PluginArchive> doList(PluginProgressMonitor progress) {
-		return Collections.emptySet();
+	protected Set<PluginArchive> doList(PluginProgressMonitor progress) throws IOException {
+		Set<PluginArchive> l = new LinkedHashSet<>();
+		for (String group : groups) {
+			int idx = group.indexOf(':');
+			String groupId = idx == -1 ? group : group.substring(0, idx);
+			Collection<String> artifacts = idx == -1 ? listArtifacts(groupId)
+					: Collections.singleton(group.substring(idx + 1));
+			if (artifacts.isEmpty() && progress != null)
+				progress.message(MessageType.WARNING, String.format(
+						"Could not find any artifacts in group %s in %s. Add them as groupId:artifactId instead.",
+						groupId, url));
+			for (String artifact : artifacts) {
+				String version = getLatestVersion(groupId, artifact);
+				if (version != null) {
+					PluginComponentId id = new PluginComponentId(groupId, artifact, version);
+					l.add(new DefaultArchive(manager, new URL(url, groupId.replace('.', '/') + "/" + artifact + "/"
+							+ version + "/" + artifact + "-" + version + ".jar"), id, true));
+				}
+			}
+		}
+		return l;
+	}
+
+	protected Collection<String> listArtifacts(String group) throws IOException {
+		String groupPath = group.replace('.', '/') + "/";
+		Set<String> artifacts = new LinkedHashSet<>();
+		try {
+			for (Element plugin : children(child(readMetadata(new URL(url, groupPath + "maven-metadata.xml")), "plugins"),
+					"plugin")) {
+				String artifact = text(child(plugin, "artifactId"));
+				if (artifact != null)
+					artifacts.add(artifact);
+			}
+		} catch (FileNotFoundException fnfe) {
+		}
+		if (artifacts.isEmpty() && isLocal()) {
+			File[] dirs = new File(new URL(url, groupPath).getPath()).listFiles(File::isDirectory);
+			if (dirs != null) {
+				for (File dir : dirs)
+					artifacts.add(dir.getName());
+			}
+		}
+		return artifacts;
+	}
+
+	private Element readMetadata(URL metadataUrl) throws IOException {
+		File file = getMetadataCache().get(metadataUrl, getTransport());
+		try {
+			DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			return builder.parse(file).getDocumentElement();
+		} catch (ParserConfigurationException pce) {
+			throw new IOException("Could not configure XML parser. ", pce);
+		} catch (SAXException e) {
+			throw new IOException(String.format("Could not parse %s.", metadataUrl), e);
+		}
+	}
+
+	private static Element child(Element parent, String name) {
+		List<Element> l = children(parent, name);
+		return l.isEmpty() ? null : l.get(0);
+	}
+
+	private static List<Element> children(Element parent, String name) {
+		List<Element> l = new ArrayList<>();
+		if (parent != null) {
+			NodeList nodes = parent.getChildNodes();
+			for (int i = 0; i < nodes.getLength(); i++) {
+				Node node = nodes.item(i);
+				if (node instanceof Element && node.getNodeName().equals(name))
+					l.add((Element) node);
+			}
+		}
+		return l;
+	}
+
+	private static String text(Element el) {
+		if (el == null)
+			return null;
+		String text = el.getTextContent().trim();
+		return text.equals("") ? null : text;
 	}
 }
@@ -0,0 +1,296 @@
+package com.sshtools.forker.plugin.maven;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sshtools.forker.plugin.Hashing;
+import com.sshtools.forker.plugin.maven.POMDescriptor.DependencyDescriptor;
+
+/**
+ * Caches parsed POMs, keyed by the hash of their content. The same POM is
+ * often read many times, as a <code>.pom</code> file in a repository, as a
+ * <code>META-INF/maven</code> entry in a jar, and again on every resolution,
+ * and as the key is the content itself an entry never goes stale.
+ * <p>
+ * The cache holds at most a fixed number of POMs, the least recently used being
+ * forgotten first. It may be persisted to a file, in which case it is loaded on
+ * first use and written by {@link #save()}. Without a file the cache lasts as
+ * long as this object.
+ * <p>
+ * This class is thread safe.
+ */
+public class POMCache {
+
+	/**
+	 * Default maximum number of POMs to cache.
+	 */
+	public final static int DEFAULT_SIZE = 4096;
+
+	private final static String MAGIC = "SPS-POMS";
+	private final static int VERSION = 3;
+
+	private final File file;
+	private final int size;
+	private final Map<String, POMDescriptor> entries;
+	private boolean loaded;
+	private boolean dirty;
+
+	/**
+	 * Create a cache of the default size that only lives in memory.
+	 */
+	public POMCache() {
+		this(null, DEFAULT_SIZE);
+	}
+
+	/**
+	 * Create a cache.
+	 *
+	 * @param file file to persist to or <code>null</code> to only cache in memory
+	 * @param size maximum number of POMs to cache
+	 */
+	@SuppressWarnings("serial")
+	public POMCache(File file, int size) {
+		if (size < 1)
+			throw new IllegalArgumentException("Size must be at least 1.");
+		this.file = file;
+		this.size = size;
+		loaded = file == null;
+		entries = new LinkedHashMap<String, POMDescriptor>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, POMDescriptor> eldest) {
+				return size() > POMCache.this.size;
+			}
+		};
+	}
+
+	/**
+	 * Get the file the cache is persisted to.
+	 *
+	 * @return file or <code>null</code> if only cached in memory
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get the maximum number of POMs to cache.
+	 *
+	 * @return size
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Read a POM, only parsing it if the same content is not already in the
+	 * cache.
+	 *
+	 * @param in input stream
+	 * @return descriptor
+	 * @throws IOException on error
+	 */
+	public POMDescriptor read(InputStream in) throws IOException {
+		return read(POMDescriptor.readFully(in));
+	}
+
+	/**
+	 * Read a POM, only parsing it if the same content is not already in the
+	 * cache.
+	 *
+	 * @param pom content of POM
+	 * @return descriptor
+	 * @throws IOException on error
+	 */
+	public POMDescriptor read(byte[] pom) throws IOException {
+		String key = hash(pom);
+		synchronized (this) {
+			load();
+			POMDescriptor descriptor = entries.get(key);
+			if (descriptor != null)
+				return descriptor;
+		}
+		POMDescriptor descriptor = POMDescriptor.read(pom);
+		synchronized (this) {
+			entries.put(key, descriptor);
+			dirty = file != null;
+		}
+		return descriptor;
+	}
+
+	/**
+	 * Forget all cached POMs.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		dirty = file != null;
+	}
+
+	/**
+	 * Write the cache to its file if anything has changed since it was loaded. The
+	 * cache is written to a temporary file, then moved into place.
+	 *
+	 * @throws IOException on error
+	 */
+	public synchronized void save() throws IOException {
+		if (file == null || !dirty)
+			return;
+		File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		if (!tmp.getParentFile().exists() && !tmp.getParentFile().mkdirs())
+			throw new IOException(String.format("Failed to create directory for POM cache %s.", file));
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeUTF(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for (Map.Entry<String, POMDescriptor> en : entries.entrySet()) {
+				out.writeUTF(en.getKey());
+				write(out, en.getValue());
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		dirty = false;
+	}
+
+	private void load() {
+		if (loaded)
+			return;
+		try {
+			if (file.exists())
+				read();
+		} finally {
+			loaded = true;
+		}
+	}
+
+	private void read() {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (!MAGIC.equals(in.readUTF()) || in.readInt() != VERSION)
+				return;
+			for (int i = in.readInt(); i > 0; i--) {
+				String key = in.readUTF();
+				entries.put(key, readDescriptor(in));
+			}
+		} catch (IOException | RuntimeException e) {
+			/* Unreadable, it will be rebuilt */
+			entries.clear();
+			dirty = true;
+		}
+	}
+
+	private static void write(DataOutput out, POMDescriptor pom) throws IOException {
+		writeString(out, pom.getGroupId());
+		writeString(out, pom.getArtifactId());
+		writeString(out, pom.getVersion());
+		writeString(out, pom.getName());
+		writeString(out, pom.getDescription());
+		out.writeBoolean(pom.getParent() != null);
+		if (pom.getParent() != null)
+			write(out, pom.getParent());
+		out.writeInt(pom.getProperties().size());
+		for (Map.Entry<String, String> en : pom.getProperties().entrySet()) {
+			writeString(out, en.getKey());
+			writeString(out, en.getValue());
+		}
+		write(out, pom.getDependencies());
+		write(out, pom.getDependencyManagement());
+	}
+
+	private static void write(DataOutput out, List<DependencyDescriptor> dependencies) throws IOException {
+		out.writeInt(dependencies.size());
+		for (DependencyDescriptor dep : dependencies)
+			write(out, dep);
+	}
+
+	private static void write(DataOutput out, DependencyDescriptor dep) throws IOException {
+		writeString(out, dep.getGroupId());
+		writeString(out, dep.getArtifactId());
+		writeString(out, dep.getVersion());
+		writeString(out, dep.getType());
+		writeString(out, dep.getScope());
+		out.writeBoolean(dep.isOptional());
+		out.writeInt(dep.getExclusions().size());
+		for (String exclusion : dep.getExclusions())
+			writeString(out, exclusion);
+	}
+
+	private static POMDescriptor readDescriptor(DataInput in) throws IOException {
+		String groupId = readString(in);
+		String artifactId = readString(in);
+		String version = readString(in);
+		String name = readString(in);
+		String description = readString(in);
+		DependencyDescriptor parent = in.readBoolean() ? readDependency(in) : null;
+		Map<String, String> properties = new LinkedHashMap<>();
+		for (int i = in.readInt(); i > 0; i--)
+			properties.put(readString(in), readString(in));
+		return new POMDescriptor(groupId, artifactId, version, name, description, parent, properties,
+				readDependencies(in), readDependencies(in));
+	}
+
+	private static List<DependencyDescriptor> readDependencies(DataInput in) throws IOException {
+		int count = in.readInt();
+		List<DependencyDescriptor> dependencies = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			dependencies.add(readDependency(in));
+		return dependencies;
+	}
+
+	private static DependencyDescriptor readDependency(DataInput in) throws IOException {
+		String groupId = readString(in);
+		String artifactId = readString(in);
+		String version = readString(in);
+		String type = readString(in);
+		String scope = readString(in);
+		boolean optional = in.readBoolean();
+		int count = in.readInt();
+		List<String> exclusions = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			exclusions.add(readString(in));
+		return new DependencyDescriptor(groupId, artifactId, version, type, scope, optional, exclusions);
+	}
+
+	/* Not writeUTF(), a description may be longer than it allows */
+	private static void writeString(DataOutput out, String str) throws IOException {
+		if (str == null)
+			out.writeInt(-1);
+		else {
+			byte[] b = str.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(b.length);
+			out.write(b);
+		}
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		int len = in.readInt();
+		if (len == -1)
+			return null;
+		byte[] b = new byte[len];
+		in.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	private static String hash(byte[] pom) throws IOException {
+		try {
+			return Hashing.bytesToHex(MessageDigest.getInstance(Hashing.SHA1).digest(pom));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Could not hash.", e);
+		}
+	}
+}
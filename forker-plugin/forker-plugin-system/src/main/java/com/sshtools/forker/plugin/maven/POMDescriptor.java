@@ -0,0 +1,445 @@
+package com.sshtools.forker.plugin.maven;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.codehaus.plexus.util.xml.pull.EntityReplacementMap;
+import org.codehaus.plexus.util.xml.pull.MXParser;
+import org.codehaus.plexus.util.xml.pull.XmlPullParser;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+
+import com.sshtools.forker.plugin.PropertyResolver;
+
+/**
+ * The parts of a Maven POM the resolver uses, i.e. its coordinates, name,
+ * description, parent, properties, dependencies and dependency management.
+ * Property references in the coordinates and dependencies have already been
+ * processed, and the group and version are taken from the parent if the POM
+ * does not have its own.
+ * <p>
+ * POMs are read by streaming just these elements, along with the properties
+ * of the POM. References to properties the POM does not define, for example
+ * those of its parent, are left as they are, to be processed by
+ * {@link DependencyManagement}. The same pull parser and entities as
+ * {@link org.apache.maven.model.io.xpp3.MavenXpp3Reader} are used, so a POM is
+ * seen the same way Maven sees it.
+ */
+public class POMDescriptor {
+
+	public final static class DependencyDescriptor {
+		private final String groupId;
+		private final String artifactId;
+		private final String version;
+		private final String type;
+		private final String scope;
+		private final boolean optional;
+		private final List<String> exclusions;
+
+		DependencyDescriptor(String groupId, String artifactId, String version, String type, String scope,
+				boolean optional, List<String> exclusions) {
+			this.groupId = groupId;
+			this.artifactId = artifactId;
+			this.version = version;
+			this.type = type == null ? "jar" : type;
+			this.scope = scope;
+			this.optional = optional;
+			this.exclusions = Collections.unmodifiableList(exclusions);
+		}
+
+		public String getGroupId() {
+			return groupId;
+		}
+
+		public String getArtifactId() {
+			return artifactId;
+		}
+
+		public String getVersion() {
+			return version;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		/**
+		 * Get the scope.
+		 *
+		 * @return scope or <code>null</code> if not specified
+		 */
+		public String getScope() {
+			return scope;
+		}
+
+		public boolean isOptional() {
+			return optional;
+		}
+
+		/**
+		 * Get the exclusions, each as <code>groupId:artifactId</code>. Either part
+		 * may contain <code>*</code> wildcards.
+		 *
+		 * @return exclusions
+		 */
+		public List<String> getExclusions() {
+			return exclusions;
+		}
+	}
+
+	private final String groupId;
+	private final String artifactId;
+	private final String version;
+	private final String name;
+	private final String description;
+	private final DependencyDescriptor parent;
+	private final Map<String, String> properties;
+	private final List<DependencyDescriptor> dependencies;
+	private final List<DependencyDescriptor> dependencyManagement;
+
+	POMDescriptor(String groupId, String artifactId, String version, String name, String description,
+			DependencyDescriptor parent, Map<String, String> properties, List<DependencyDescriptor> dependencies,
+			List<DependencyDescriptor> dependencyManagement) {
+		this.groupId = groupId;
+		this.artifactId = artifactId;
+		this.version = version;
+		this.name = name;
+		this.description = description;
+		this.parent = parent;
+		this.properties = Collections.unmodifiableMap(properties);
+		this.dependencies = Collections.unmodifiableList(dependencies);
+		this.dependencyManagement = Collections.unmodifiableList(dependencyManagement);
+	}
+
+	public String getGroupId() {
+		return groupId;
+	}
+
+	public String getArtifactId() {
+		return artifactId;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	/**
+	 * Get the coordinates of the parent POM.
+	 *
+	 * @return parent or <code>null</code> if there is no parent
+	 */
+	public DependencyDescriptor getParent() {
+		return parent;
+	}
+
+	/**
+	 * Get the properties defined by the POM itself, as they are written in it,
+	 * i.e. without any property references in their values processed.
+	 *
+	 * @return properties
+	 */
+	public Map<String, String> getProperties() {
+		return properties;
+	}
+
+	public List<DependencyDescriptor> getDependencies() {
+		return dependencies;
+	}
+
+	/**
+	 * Get the dependencies in the <code>&lt;dependencyManagement&gt;</code>
+	 * section of the POM itself. References to properties the POM does not
+	 * define, for example those defined by the parent, are left as they are.
+	 *
+	 * @return managed dependencies
+	 */
+	public List<DependencyDescriptor> getDependencyManagement() {
+		return dependencyManagement;
+	}
+
+	/**
+	 * Read a POM.
+	 *
+	 * @param in input stream
+	 * @return descriptor
+	 * @throws IOException on error
+	 */
+	public static POMDescriptor read(InputStream in) throws IOException {
+		return read(readFully(in));
+	}
+
+	/**
+	 * Read a POM.
+	 *
+	 * @param pom content of POM
+	 * @return descriptor
+	 * @throws IOException on error
+	 */
+	public static POMDescriptor read(byte[] pom) throws IOException {
+		return stream(pom);
+	}
+
+	/**
+	 * Stream just the elements that are needed from a POM.
+	 *
+	 * @param pom content of POM
+	 * @return descriptor
+	 * @throws IOException on error
+	 */
+	static POMDescriptor stream(byte[] pom) throws IOException {
+		try {
+			XmlPullParser reader = new MXParser(EntityReplacementMap.defaultEntityReplacementMap);
+			reader.setInput(new ByteArrayInputStream(pom), null);
+			if (!nextChild(reader) || !reader.getName().equals("project"))
+				throw new IOException("Could not read POM. Root element must be <project>.");
+			String groupId = null;
+			String artifactId = null;
+			String version = null;
+			String name = null;
+			String description = null;
+			DependencyDescriptor parent = null;
+			Map<String, String> properties = new LinkedHashMap<>();
+			List<DependencyDescriptor> dependencies = new ArrayList<>();
+			List<DependencyDescriptor> dependencyManagement = new ArrayList<>();
+			while (nextChild(reader)) {
+				switch (reader.getName()) {
+				case "groupId":
+					groupId = text(reader);
+					break;
+				case "artifactId":
+					artifactId = text(reader);
+					break;
+				case "version":
+					version = text(reader);
+					break;
+				case "name":
+					name = text(reader);
+					break;
+				case "description":
+					description = text(reader);
+					break;
+				case "parent":
+					parent = dependency(reader, "pom");
+					break;
+				case "properties":
+					while (nextChild(reader))
+						properties.put(reader.getName(), text(reader));
+					break;
+				case "dependencies":
+					dependencies(reader, dependencies);
+					break;
+				case "dependencyManagement":
+					while (nextChild(reader)) {
+						if (reader.getName().equals("dependencies"))
+							dependencies(reader, dependencyManagement);
+						else
+							skip(reader);
+					}
+					break;
+				default:
+					skip(reader);
+					break;
+				}
+			}
+			if (groupId == null && parent != null)
+				groupId = parent.groupId;
+			if (version == null && parent != null)
+				version = parent.version;
+
+			/*
+			 * Anything still referring to a property after this must refer to one of the
+			 * parent, which is applied when the dependency management is resolved
+			 */
+			if (isProperty(groupId) || isProperty(artifactId) || isProperty(version) || hasProperty(parent)
+					|| hasProperty(dependencies) || hasProperty(dependencyManagement)) {
+				Properties props = new Properties();
+				props.putAll(properties);
+				MavenPropertyResolver resolver = new MavenPropertyResolver(props, groupId, artifactId, version, name,
+						description);
+				groupId = resolver.process(groupId);
+				artifactId = resolver.process(artifactId);
+				version = resolver.process(version);
+				if (parent != null)
+					parent = process(resolver, parent);
+				dependencies = process(resolver, dependencies);
+				dependencyManagement = process(resolver, dependencyManagement);
+			}
+			return new POMDescriptor(groupId, artifactId, version, name, description, parent, properties,
+					dependencies, dependencyManagement);
+		} catch (XmlPullParserException e) {
+			throw new IOException("Could not read POM.", e);
+		}
+	}
+
+	static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+		byte[] buf = new byte[8192];
+		int r;
+		while ((r = in.read(buf)) != -1)
+			out.write(buf, 0, r);
+		return out.toByteArray();
+	}
+
+	private static void dependencies(XmlPullParser reader, List<DependencyDescriptor> dependencies)
+			throws XmlPullParserException, IOException {
+		while (nextChild(reader)) {
+			if (reader.getName().equals("dependency"))
+				dependencies.add(dependency(reader, null));
+			else
+				skip(reader);
+		}
+	}
+
+	private static DependencyDescriptor dependency(XmlPullParser reader, String type)
+			throws XmlPullParserException, IOException {
+		String groupId = null;
+		String artifactId = null;
+		String version = null;
+		String scope = null;
+		String optional = null;
+		List<String> exclusions = new ArrayList<>();
+		while (nextChild(reader)) {
+			switch (reader.getName()) {
+			case "groupId":
+				groupId = text(reader);
+				break;
+			case "artifactId":
+				artifactId = text(reader);
+				break;
+			case "version":
+				version = text(reader);
+				break;
+			case "type":
+				type = text(reader);
+				break;
+			case "scope":
+				scope = text(reader);
+				break;
+			case "optional":
+				optional = text(reader);
+				break;
+			case "exclusions":
+				while (nextChild(reader)) {
+					if (reader.getName().equals("exclusion"))
+						exclusions.add(exclusion(reader));
+					else
+						skip(reader);
+				}
+				break;
+			default:
+				skip(reader);
+				break;
+			}
+		}
+		return new DependencyDescriptor(groupId, artifactId, version, type, scope,
+				optional != null && Boolean.parseBoolean(optional), exclusions);
+	}
+
+	private static String exclusion(XmlPullParser reader) throws XmlPullParserException, IOException {
+		String groupId = null;
+		String artifactId = null;
+		while (nextChild(reader)) {
+			if (reader.getName().equals("groupId"))
+				groupId = text(reader);
+			else if (reader.getName().equals("artifactId"))
+				artifactId = text(reader);
+			else
+				skip(reader);
+		}
+		return exclusion(groupId, artifactId);
+	}
+
+	private static String exclusion(String groupId, String artifactId) {
+		return (groupId == null ? "*" : groupId) + ":" + (artifactId == null ? "*" : artifactId);
+	}
+
+	private static List<DependencyDescriptor> process(PropertyResolver resolver,
+			List<DependencyDescriptor> dependencies) {
+		List<DependencyDescriptor> processed = new ArrayList<>(dependencies.size());
+		for (DependencyDescriptor dep : dependencies)
+			processed.add(process(resolver, dep));
+		return processed;
+	}
+
+	static DependencyDescriptor process(PropertyResolver resolver, DependencyDescriptor dep) {
+		if (!hasProperty(dep))
+			return dep;
+		return new DependencyDescriptor(resolver.process(dep.groupId), resolver.process(dep.artifactId),
+				resolver.process(dep.version), dep.type, dep.scope, dep.optional, dep.exclusions);
+	}
+
+	private static boolean hasProperty(DependencyDescriptor dep) {
+		return dep != null && (isProperty(dep.groupId) || isProperty(dep.artifactId) || isProperty(dep.version));
+	}
+
+	private static boolean hasProperty(List<DependencyDescriptor> dependencies) {
+		for (DependencyDescriptor dep : dependencies) {
+			if (hasProperty(dep))
+				return true;
+		}
+		return false;
+	}
+
+	static boolean isProperty(String text) {
+		return text != null && text.indexOf("${") != -1;
+	}
+
+	private static boolean nextChild(XmlPullParser reader) throws XmlPullParserException, IOException {
+		while (true) {
+			switch (reader.next()) {
+			case XmlPullParser.START_TAG:
+				return true;
+			case XmlPullParser.END_TAG:
+			case XmlPullParser.END_DOCUMENT:
+				return false;
+			default:
+				break;
+			}
+		}
+	}
+
+	private static void skip(XmlPullParser reader) throws XmlPullParserException, IOException {
+		while (nextChild(reader))
+			skip(reader);
+	}
+
+	private static String text(XmlPullParser reader) throws XmlPullParserException, IOException {
+		StringBuilder text = new StringBuilder();
+		int depth = 1;
+		while (depth > 0) {
+			switch (reader.next()) {
+			case XmlPullParser.START_TAG:
+				depth++;
+				break;
+			case XmlPullParser.END_TAG:
+				depth--;
+				break;
+			case XmlPullParser.END_DOCUMENT:
+				depth = 0;
+				break;
+			case XmlPullParser.TEXT:
+				if (depth == 1)
+					text.append(reader.getText());
+				break;
+			default:
+				break;
+			}
+		}
+		return text.toString().trim();
+	}
+}
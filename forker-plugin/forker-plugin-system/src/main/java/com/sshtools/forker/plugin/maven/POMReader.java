@@ -2,19 +2,25 @@ package com.sshtools.forker.plugin.maven;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
-import org.apache.maven.model.Dependency;
-import org.apache.maven.model.Model;
-import org.apache.maven.model.io.xpp3.MavenXpp3Reader;
-import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.apache.commons.io.FilenameUtils;
 
+import com.sshtools.forker.plugin.DefaultPluginDependencyTree;
+import com.sshtools.forker.plugin.DefaultPluginManager;
 import com.sshtools.forker.plugin.api.ConflictStrategy;
 import com.sshtools.forker.plugin.api.PluginArchive;
 import com.sshtools.forker.plugin.api.PluginComponentId;
 import com.sshtools.forker.plugin.api.PluginDependencyTree;
+import com.sshtools.forker.plugin.api.PluginManager;
 import com.sshtools.forker.plugin.api.PluginProgressMonitor;
+import com.sshtools.forker.plugin.api.PluginProgressMonitor.MessageType;
 import com.sshtools.forker.plugin.api.PluginResolveContext;
+import com.sshtools.forker.plugin.maven.DependencyManagement.Managed;
+import com.sshtools.forker.plugin.maven.POMDescriptor.DependencyDescriptor;
 
 public class POMReader {
 
@@ -40,109 +46,160 @@ public class POMReader {
 	}
 
 	public void readPOM(PluginArchive parent, InputStream inStream, PluginProgressMonitor monitor) throws IOException {
-		MavenXpp3Reader reader = new MavenXpp3Reader();
 		PluginResolveContext ctx = parent.getParent().getResolutionContext();
 		ConflictStrategy strategy = ctx.conflictStrategy();
 		if(strategy == null)
 			strategy = parent.getParent().getConflictStrategy();
 		
 		PluginDependencyTree depTree = ctx.getDependencyTree();
-		try (InputStreamReader in = new InputStreamReader(inStream)) {
-			try {
-				Model model = reader.read(in);
-				MavenPropertyResolver resolver = new MavenPropertyResolver(model);
-				String artifactId = resolver.process(model.getArtifactId());
-				
-				String groupId = resolver.process(model.getGroupId());
-				String version = resolver.process(model.getVersion());
-				parent.setName(model.getName());
-				parent.setDescription(model.getDescription());
-
-				if (groupId == null && model.getParent() != null)
-					groupId = resolver.process(model.getParent().getGroupId());
-
-				if (version == null && model.getParent() != null)
-					version = resolver.process(model.getParent().getVersion());
-
-				parent.setComponent(new PluginComponentId(groupId, artifactId, version));
-
-				if (resolveDependencies) {
-					for (Dependency dep : model.getDependencies()) {
-						/* Skip test dependencies for now */
-						if (!"test".equals(dep.getScope())) {
-
-							/* First see if we already have it */
-							String depGroupId = resolver.process(dep.getGroupId());
-							String depArtifactId = resolver.process(dep.getArtifactId());
-							String depVersion = resolver.process(dep.getVersion());
-							
-							if(depArtifactId.equals("log4j")) {
-								String x;
-								x = "";
-							}
-							if(PluginComponentId.isVariablePattern(depVersion)) {
-								depVersion = "";
-							}
+		PluginManager manager = parent.getParent();
+		POMDescriptor pom;
+		try (InputStream in = inStream) {
+			pom = manager instanceof DefaultPluginManager ? ((DefaultPluginManager) manager).getPOMCache().read(in)
+					: POMDescriptor.read(in);
+		}
 
-							PluginComponentId key = new PluginComponentId(depGroupId, depArtifactId, depVersion);
-							
-							/* If the dependency version is not valid at this point, it is likely due
-							 * to the version being specified as a property that is not resolvable.
-							 * 
-							 * Assume it to be any version
-							 */
-							if(!key.isValid()) {
-								key = key.withoutVersion();
-							}
-							
-							if (key.isValid()) {
+		parent.setName(pom.getName());
+		parent.setDescription(pom.getDescription());
+		parent.setComponent(new PluginComponentId(pom.getGroupId(), pom.getArtifactId(), pom.getVersion()));
+
+		if (resolveDependencies) {
+			/* Exclusions declared by the dependents of this POM also apply to its dependencies */
+			Set<String> inheritedExclusions = depTree instanceof DefaultPluginDependencyTree
+					? ((DefaultPluginDependencyTree) depTree).getExclusions(pom.getGroupId(), pom.getArtifactId())
+					: Collections.emptySet();
+			Managed managed = null;
+			for (DependencyDescriptor dep : pom.getDependencies()) {
+				String depGroupId = dep.getGroupId();
+				String depArtifactId = dep.getArtifactId();
+				String depVersion = dep.getVersion();
+				String depScope = dep.getScope();
+				Set<String> depExclusions = new LinkedHashSet<>(inheritedExclusions);
+				depExclusions.addAll(dep.getExclusions());
+
+				/*
+				 * Apply properties inherited from parents, and the version (and scope) from
+				 * dependency management, only fetching parents and BOMs when a dependency
+				 * has no usable version
+				 */
+				if (depVersion == null || depVersion.equals("") || POMDescriptor.isProperty(depGroupId)
+						|| POMDescriptor.isProperty(depArtifactId) || POMDescriptor.isProperty(depVersion)) {
+					if (managed == null)
+						managed = getDependencyManagement(manager).get(pom, monitor);
+					depGroupId = managed.process(depGroupId);
+					depArtifactId = managed.process(depArtifactId);
+					depVersion = managed.process(depVersion);
+					DependencyDescriptor managedDep = managed.get(depGroupId, depArtifactId);
+					if (managedDep != null) {
+						if (depVersion == null || depVersion.equals("") || POMDescriptor.isProperty(depVersion))
+							depVersion = managedDep.getVersion();
+						if (depScope == null)
+							depScope = managedDep.getScope();
+						depExclusions.addAll(managedDep.getExclusions());
+					}
+				}
 
-								PluginArchive mpa = depTree.get(key, PluginArchive.class);
-								if(mpa == null && key.hasVersion()) {
-									if(strategy == ConflictStrategy.USE_EARLIEST || strategy == ConflictStrategy.USE_LATEST)
-										mpa = depTree.get(key.withoutVersion(), PluginArchive.class);
+				if (ctx.isScopeExcluded(depScope)) {
+					if (monitor != null)
+						monitor.message(MessageType.DEBUG, String.format("Skipping %s:%s of %s, %s scope is excluded.",
+								depGroupId, depArtifactId, parent.getComponentId(), depScope));
+				} else if (isExcluded(inheritedExclusions, depGroupId, depArtifactId)) {
+					if (monitor != null)
+						monitor.message(MessageType.DEBUG, String.format("Skipping %s:%s of %s, it is excluded.",
+								depGroupId, depArtifactId, parent.getComponentId()));
+				} else {
+					/* Recorded even if empty, so a path without exclusions cancels those of others */
+					if (depTree instanceof DefaultPluginDependencyTree)
+						((DefaultPluginDependencyTree) depTree).addExclusions(depGroupId, depArtifactId,
+								depExclusions);
+
+					/* First see if we already have it */
+					if(PluginComponentId.isVariablePattern(depVersion)) {
+						depVersion = "";
+					}
+
+					PluginComponentId key = new PluginComponentId(depGroupId, depArtifactId, depVersion);
+					
+					/* If the dependency version is not valid at this point, it is likely due
+					 * to the version being specified as a property that is not resolvable.
+					 * 
+					 * Assume it to be any version
+					 */
+					if(!key.isValid()) {
+						key = key.withoutVersion();
+					}
+					
+					if (key.isValid()) {
+
+						PluginArchive mpa = depTree.get(key, PluginArchive.class);
+						if(mpa == null && key.hasVersion()) {
+							if(strategy == ConflictStrategy.USE_EARLIEST || strategy == ConflictStrategy.USE_LATEST)
+								mpa = depTree.get(key.withoutVersion(), PluginArchive.class);
+						}
+						
+						if (mpa == null) {
+							if (embedded) {
+								try {
+									mpa = new MavenJarArchive(parent,
+											new PluginComponentId(depGroupId, depArtifactId, depVersion)
+													.asOptional(dep.isOptional()), monitor);
 								}
-								
-								if (mpa == null) {
-									if (embedded) {
-										try {
-											mpa = new MavenJarArchive(parent,
-													new PluginComponentId(depGroupId, depArtifactId, depVersion)
-															.asOptional(dep.isOptional()), monitor);
-										}
-										catch(IllegalArgumentException iae) {
-											// Nothing can be done
-										}
-									}
-									else {
-										mpa = new MavenJarArchive(parent.getParent(),
-												new PluginComponentId(depGroupId, depArtifactId, depVersion)
-														.asOptional(dep.isOptional()));
-									}
-									
-									if(mpa != null) {
-										parent.addDependency(mpa.getComponentId());
-										depTree.add(mpa, monitor);
-									}
-								} else {
-									if(!mpa.getComponentId().isOptional() && dep.isOptional()) {
-										ctx.getDependencyTree().remove(mpa);
-										mpa.setComponent(mpa.getComponentId().asOptional(true));
-										ctx.getDependencyTree().add(mpa, monitor);
-									}
-									parent.addDependency(mpa.getComponentId());
+								catch(IllegalArgumentException iae) {
+									// Nothing can be done
 								}
-								
-								if (parent != null && mpa != null)
-									mpa.addDependent(parent.getComponentId());
 							}
+							else {
+								mpa = new MavenJarArchive(parent.getParent(),
+										new PluginComponentId(depGroupId, depArtifactId, depVersion)
+												.asOptional(dep.isOptional()));
+							}
+							
+							if(mpa != null) {
+								parent.addDependency(mpa.getComponentId());
+								depTree.add(mpa, monitor);
+							}
+						} else {
+							if(!mpa.getComponentId().isOptional() && dep.isOptional()) {
+								ctx.getDependencyTree().remove(mpa);
+								mpa.setComponent(mpa.getComponentId().asOptional(true));
+								ctx.getDependencyTree().add(mpa, monitor);
+							}
+							parent.addDependency(mpa.getComponentId());
 						}
+						
+						if (parent != null && mpa != null)
+							mpa.addDependent(parent.getComponentId());
 					}
 				}
-				return;
-			} catch (XmlPullParserException e) {
-				throw new IOException("Could not read POM.", e);
 			}
 		}
 	}
+
+	/**
+	 * Get if an artifact matches any exclusion. Exclusions are
+	 * <code>groupId:artifactId</code>, and either part may contain <code>*</code>
+	 * wildcards.
+	 *
+	 * @param exclusions exclusions
+	 * @param groupId    group ID
+	 * @param artifactId artifact ID
+	 * @return excluded
+	 */
+	static boolean isExcluded(Collection<String> exclusions, String groupId, String artifactId) {
+		for (String exclusion : exclusions) {
+			int idx = exclusion.indexOf(':');
+			String excludedGroupId = idx == -1 ? exclusion : exclusion.substring(0, idx);
+			String excludedArtifactId = idx == -1 ? "*" : exclusion.substring(idx + 1);
+			if (FilenameUtils.wildcardMatch(groupId, excludedGroupId)
+					&& FilenameUtils.wildcardMatch(artifactId, excludedArtifactId))
+				return true;
+		}
+		return false;
+	}
+
+	private static DependencyManagement getDependencyManagement(PluginManager manager) {
+		if (manager instanceof DefaultPluginManager)
+			return ((DefaultPluginManager) manager).getDependencyManagement();
+		return new DependencyManagement(manager);
+	}
 }
@@ -6,8 +6,6 @@ import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 
 import org.apache.commons.lang3.StringUtils;
@@ -15,6 +13,7 @@ import org.apache.commons.lang3.StringUtils;
 import com.sshtools.forker.plugin.AbstractArchiveWithDependencies;
 import com.sshtools.forker.plugin.HaltResolutionException;
 import com.sshtools.forker.plugin.JarArchive;
+import com.sshtools.forker.plugin.JarMetadata;
 import com.sshtools.forker.plugin.ResolutionRetryException;
 import com.sshtools.forker.plugin.api.PluginComponentId;
 import com.sshtools.forker.plugin.api.PluginDependencyTree;
@@ -104,11 +103,9 @@ public class BundleJarArchive extends AbstractArchiveWithDependencies {
 
 			File file = new File(getArchive().toURI().toURL().getPath());
 
-			try (JarFile jf = new JarFile(file)) {
-
-				JarEntry manifest = jf.getJarEntry("META-INF/MANIFEST.MF");
-				if (manifest != null) {
-					Manifest mf = new Manifest(jf.getInputStream(manifest));
+			try {
+				Manifest mf = JarMetadata.get(getManager(), file).getManifest();
+				if (mf != null) {
 					Attributes attr = mf.getMainAttributes();
 					boolean isBundle = false;
 
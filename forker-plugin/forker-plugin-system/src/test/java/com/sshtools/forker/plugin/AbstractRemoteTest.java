@@ -0,0 +1,226 @@
+package com.sshtools.forker.plugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sshtools.forker.plugin.api.InstallMode;
+import com.sshtools.forker.plugin.api.PluginArchive;
+import com.sshtools.forker.plugin.api.PluginComponentId;
+import com.sshtools.forker.plugin.api.PluginProgressMonitor;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class AbstractRemoteTest {
+
+	private final static int SIZE = 256 * 1024;
+
+	private HttpServer server;
+	private ExecutorService executor;
+	private File local;
+	private TestRemote remote;
+	private byte[] content;
+	private final List<Headers> requests = new CopyOnWriteArrayList<>();
+
+	/* How the server behaves */
+	private volatile String etag = "\"v1\"";
+	private volatile int cutAfter = -1;
+	private volatile boolean refuseRanges;
+
+	@Before
+	public void setUp() throws IOException {
+		content = new byte[SIZE];
+		new Random(0).nextBytes(content);
+		local = Files.createTempDirectory("sps-test").toFile();
+
+		executor = Executors.newCachedThreadPool();
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.setExecutor(executor);
+		server.createContext("/", this::serve);
+		server.start();
+
+		DefaultPluginManager manager = new DefaultPluginManager();
+		manager.setLocal(local);
+		manager.setInstallMode(InstallMode.COPY);
+		remote = new TestRemote();
+		remote.init(manager);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		server.stop(0);
+		executor.shutdownNow();
+		FileUtils.deleteDirectory(local);
+	}
+
+	@Test
+	public void testResumeAfterConnectionDrops() throws Exception {
+		cutAfter = SIZE / 2;
+		File out = new File(local, "test.jar");
+
+		assertTrue(remote.download(null, "test", url(), out, sha1(content)));
+
+		assertArrayEquals(content, Files.readAllBytes(out.toPath()));
+		assertEquals(2, requests.size());
+		assertNull(requests.get(0).getFirst("Range"));
+		assertEquals("bytes=" + (SIZE / 2) + "-", requests.get(1).getFirst("Range"));
+		assertEquals(etag, requests.get(1).getFirst("If-Range"));
+		assertFalse(part(out).exists());
+		assertFalse(partValidator(out).exists());
+	}
+
+	@Test
+	public void testResumeEarlierPartialDownload() throws Exception {
+		File out = new File(local, "test.jar");
+		writePart(out, SIZE / 4, etag);
+
+		assertTrue(remote.download(null, "test", url(), out, sha1(content)));
+
+		assertArrayEquals(content, Files.readAllBytes(out.toPath()));
+		assertEquals(1, requests.size());
+		assertEquals("bytes=" + (SIZE / 4) + "-", requests.get(0).getFirst("Range"));
+		assertEquals(etag, requests.get(0).getFirst("If-Range"));
+	}
+
+	@Test
+	public void testRestartWhenRangeNotSatisfiable() throws Exception {
+		refuseRanges = true;
+		File out = new File(local, "test.jar");
+		writePart(out, SIZE / 4, etag);
+
+		assertTrue(remote.download(null, "test", url(), out, sha1(content)));
+
+		assertArrayEquals(content, Files.readAllBytes(out.toPath()));
+		assertEquals(2, requests.size());
+		assertEquals("bytes=" + (SIZE / 4) + "-", requests.get(0).getFirst("Range"));
+		assertNull(requests.get(1).getFirst("Range"));
+		assertFalse(part(out).exists());
+	}
+
+	@Test
+	public void testRestartWhenContentChanged() throws Exception {
+		File out = new File(local, "test.jar");
+		writePart(out, SIZE / 4, "\"v0\"");
+		/* What was downloaded before is not the start of the current content */
+		byte[] stale = new byte[SIZE / 4];
+		new Random(1).nextBytes(stale);
+		Files.write(part(out).toPath(), stale);
+
+		assertTrue(remote.download(null, "test", url(), out, sha1(content)));
+
+		assertArrayEquals(content, Files.readAllBytes(out.toPath()));
+		assertEquals(1, requests.size());
+		assertEquals("\"v0\"", requests.get(0).getFirst("If-Range"));
+		assertFalse(part(out).exists());
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		try {
+			Headers headers = exchange.getRequestHeaders();
+			requests.add(headers);
+			String range = headers.getFirst("Range");
+			String ifRange = headers.getFirst("If-Range");
+			int start = 0;
+			if (range != null) {
+				if (refuseRanges) {
+					exchange.sendResponseHeaders(416, -1);
+					return;
+				}
+				/* Only honoured if the content has not changed */
+				if (ifRange == null || ifRange.equals(etag))
+					start = Integer.parseInt(range.substring(6, range.length() - 1));
+			}
+			exchange.getResponseHeaders().set("ETag", etag);
+			if (start > 0) {
+				exchange.getResponseHeaders().set("Content-Range",
+						"bytes " + start + "-" + (SIZE - 1) + "/" + SIZE);
+				exchange.sendResponseHeaders(206, SIZE - start);
+			} else
+				exchange.sendResponseHeaders(200, SIZE);
+
+			OutputStream out = exchange.getResponseBody();
+			int cut = cutAfter;
+			if (cut != -1) {
+				/* Drop the connection part way through the content */
+				cutAfter = -1;
+				out.write(content, start, cut);
+				out.flush();
+			} else
+				out.write(content, start, SIZE - start);
+		} finally {
+			/* If not all of the content was written, this drops the connection */
+			exchange.close();
+		}
+	}
+
+	private URL url() throws IOException {
+		return new URL("http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+				+ server.getAddress().getPort() + "/test.jar");
+	}
+
+	private void writePart(File out, int length, String validator) throws IOException {
+		byte[] b = new byte[length];
+		System.arraycopy(content, 0, b, 0, length);
+		Files.write(part(out).toPath(), b);
+		Files.write(partValidator(out).toPath(), validator.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static File part(File out) {
+		return new File(out.getParentFile(), out.getName() + AbstractRemote.PART_SUFFIX);
+	}
+
+	private static File partValidator(File out) {
+		return new File(out.getParentFile(), out.getName() + AbstractRemote.PART_SUFFIX + ".id");
+	}
+
+	private static String sha1(byte[] b) throws Exception {
+		return Hashing.bytesToHex(MessageDigest.getInstance(Hashing.SHA1).digest(b));
+	}
+
+	private final static class TestRemote extends AbstractRemote {
+
+		TestRemote() {
+			super("test");
+		}
+
+		@Override
+		public boolean isLocal() {
+			return false;
+		}
+
+		@Override
+		protected URL doRetrieve(PluginProgressMonitor monitor, PluginComponentId archive) throws IOException {
+			return null;
+		}
+
+		@Override
+		protected Set<PluginArchive> doList(PluginProgressMonitor progress) throws IOException {
+			return Collections.emptySet();
+		}
+	}
+}
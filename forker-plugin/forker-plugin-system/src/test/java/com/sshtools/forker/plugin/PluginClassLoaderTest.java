@@ -0,0 +1,182 @@
+package com.sshtools.forker.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sshtools.forker.plugin.api.PluginArchive;
+import com.sshtools.forker.plugin.api.PluginComponentId;
+
+public class PluginClassLoaderTest {
+
+	/* Archives in the chain, each depending on the one before */
+	private final static int DEPTH = 4;
+	private final static int CLASSES = 25;
+	private final static int THREADS = 16;
+	private final static int ROUNDS = 5;
+
+	private File local;
+
+	@Before
+	public void setUp() throws IOException {
+		local = Files.createTempDirectory("sps-test").toFile();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(local);
+	}
+
+	@Test
+	public void testConcurrentLoadingAcrossChain() throws Exception {
+		for (int round = 0; round < ROUNDS; round++) {
+			List<PluginClassLoader> loaders = createChain(round);
+			Map<String, Set<Class<?>>> loaded = new ConcurrentHashMap<>();
+			CountDownLatch start = new CountDownLatch(1);
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (int t = 0; t < THREADS; t++) {
+				/* Every thread starts from a different loader and loads every class it can see */
+				PluginClassLoader loader = loaders.get(t % DEPTH);
+				int level = t % DEPTH;
+				int offset = t;
+				tasks.add(() -> {
+					start.await();
+					for (int i = 0; i < CLASSES * (level + 1); i++) {
+						int idx = (i + offset) % (CLASSES * (level + 1));
+						String name = className(idx / CLASSES, idx % CLASSES);
+						loaded.computeIfAbsent(name, k -> Collections.newSetFromMap(new ConcurrentHashMap<>()))
+								.add(loader.loadClass(name));
+					}
+					return null;
+				});
+			}
+
+			ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+			try {
+				List<Future<Void>> futures = new ArrayList<>();
+				for (Callable<Void> task : tasks)
+					futures.add(pool.submit(task));
+				start.countDown();
+				for (Future<Void> future : futures) {
+					try {
+						future.get(30, TimeUnit.SECONDS);
+					} catch (ExecutionException ee) {
+						throw new AssertionError("Failed to load class.", ee.getCause());
+					} catch (TimeoutException te) {
+						fail("Class loading did not complete, loaders may be deadlocked.");
+					}
+				}
+			} finally {
+				pool.shutdownNow();
+			}
+
+			assertEquals(DEPTH * CLASSES, loaded.size());
+			for (int level = 0; level < DEPTH; level++) {
+				for (int i = 0; i < CLASSES; i++) {
+					Set<Class<?>> classes = loaded.get(className(level, i));
+					assertEquals("One class for " + className(level, i), 1, classes.size());
+					Class<?> clazz = classes.iterator().next();
+					assertSame(loaders.get(level), clazz.getClassLoader());
+					if (level > 0)
+						assertSame(loaded.get(className(level - 1, i)).iterator().next(), clazz.getSuperclass());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create a chain of archives, each containing classes that extend those of
+	 * the same name in the archive before, so defining a class loads its super
+	 * class through the other loaders in the chain.
+	 */
+	private List<PluginClassLoader> createChain(int round) throws IOException {
+		DefaultPluginManager manager = new DefaultPluginManager();
+		manager.setLocal(local);
+		List<PluginClassLoader> loaders = new ArrayList<>();
+		PluginArchive previous = null;
+		for (int level = 0; level < DEPTH; level++) {
+			File jar = new File(local, "chain" + round + "-" + level + ".jar");
+			try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+				for (int i = 0; i < CLASSES; i++) {
+					out.putNextEntry(new JarEntry(className(level, i).replace('.', '/') + ".class"));
+					out.write(classBytes(className(level, i),
+							level == 0 ? "java.lang.Object" : className(level - 1, i)));
+					out.closeEntry();
+				}
+			}
+			DefaultArchive archive = new DefaultArchive(manager, jar.toURI().toURL(),
+					new PluginComponentId("com.sshtools.test", "chain" + level, "1.0." + round));
+			if (previous != null)
+				archive.addDependency(previous.getComponentId());
+			manager.getResolutionContext().getDependencyTree().add(archive, null);
+			ClassLoader loader = archive.getClassLoader();
+			assertTrue(loader instanceof PluginClassLoader);
+			loaders.add((PluginClassLoader) loader);
+			previous = archive;
+		}
+		return loaders;
+	}
+
+	private static String className(int level, int index) {
+		return "chain.l" + level + ".C" + index;
+	}
+
+	/**
+	 * Generate the bytecode of an empty class. It has no constructor, which is
+	 * fine as it is only ever loaded.
+	 */
+	private static byte[] classBytes(String name, String superName) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(52);
+			out.writeShort(5);
+			out.writeByte(1);
+			out.writeUTF(name.replace('.', '/'));
+			out.writeByte(7);
+			out.writeShort(1);
+			out.writeByte(1);
+			out.writeUTF(superName.replace('.', '/'));
+			out.writeByte(7);
+			out.writeShort(3);
+			out.writeShort(0x0021);
+			out.writeShort(2);
+			out.writeShort(4);
+			out.writeShort(0);
+			out.writeShort(0);
+			out.writeShort(0);
+			out.writeShort(0);
+		}
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,187 @@
+package com.sshtools.forker.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sshtools.forker.plugin.RemoteTransport.Response;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class URLConnectionTransportTest {
+
+	private final static String METADATA = "<metadata><versioning><release>1.0</release></versioning></metadata>";
+
+	private HttpServer server;
+	private ExecutorService executor;
+	private URLConnectionTransport transport;
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final List<String> acceptEncodings = new CopyOnWriteArrayList<>();
+	private final List<Integer> clientPorts = new CopyOnWriteArrayList<>();
+
+	@Before
+	public void setUp() throws IOException {
+		executor = Executors.newCachedThreadPool();
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.setExecutor(executor);
+		server.createContext("/metadata.xml", this::serveMetadata);
+		server.createContext("/missing.jar", this::serveMissing);
+		server.createContext("/slow.jar", this::serveSlow);
+		server.start();
+		transport = new URLConnectionTransport();
+	}
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testTimeoutsAreApplied() throws Exception {
+		transport.setConnectTimeout(1234);
+		transport.setReadTimeout(5678);
+		URLConnection[] opened = new URLConnection[1];
+		URL url = new URL(null, url("/metadata.xml").toExternalForm(), new URLStreamHandler() {
+			@Override
+			protected URLConnection openConnection(URL u) throws IOException {
+				opened[0] = new URL(u.toExternalForm()).openConnection();
+				return opened[0];
+			}
+		});
+
+		try (Response response = transport.get(url, null, true)) {
+			assertEquals(1234, opened[0].getConnectTimeout());
+			assertEquals(5678, opened[0].getReadTimeout());
+			assertEquals(200, response.getStatus());
+		}
+	}
+
+	@Test
+	public void testReadTimeout() throws Exception {
+		transport.setReadTimeout(500);
+		long started = System.currentTimeMillis();
+		try (Response response = transport.get(url("/slow.jar"), null, false)) {
+			response.getStatus();
+			fail("Expected the read to time out.");
+		} catch (SocketTimeoutException ste) {
+			assertTrue(System.currentTimeMillis() - started < 10000);
+		}
+	}
+
+	@Test
+	public void testMetadataIsCompressed() throws Exception {
+		try (Response response = transport.get(url("/metadata.xml"), null, true)) {
+			assertEquals(200, response.getStatus());
+			assertEquals("gzip", response.getHeader("Content-Encoding"));
+			assertEquals(-1, response.getContentLength());
+			assertEquals(METADATA, read(response.getInputStream()));
+		}
+		assertEquals("gzip", acceptEncodings.get(0));
+	}
+
+	@Test
+	public void testArchivesAreNotCompressed() throws Exception {
+		try (Response response = transport.get(url("/metadata.xml"), null, false)) {
+			assertEquals(200, response.getStatus());
+			assertNull(response.getHeader("Content-Encoding"));
+			assertEquals(METADATA.length(), response.getContentLength());
+			assertEquals(METADATA, read(response.getInputStream()));
+		}
+		assertNull(acceptEncodings.get(0));
+	}
+
+	@Test
+	public void testCloseDrainsUnreadResponse() throws Exception {
+		try (Response response = transport.get(url("/missing.jar"), null, false)) {
+			assertEquals(404, response.getStatus());
+		}
+		try (Response response = transport.get(url("/metadata.xml"), null, false)) {
+			assertEquals(METADATA, read(response.getInputStream()));
+		}
+
+		/* The error body was drained on close, so the connection was reused */
+		assertEquals(2, clientPorts.size());
+		assertEquals(clientPorts.get(0), clientPorts.get(1));
+	}
+
+	private void serveMetadata(HttpExchange exchange) throws IOException {
+		try {
+			clientPorts.add(exchange.getRemoteAddress().getPort());
+			String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+			acceptEncodings.add(acceptEncoding);
+			byte[] body = METADATA.getBytes(StandardCharsets.UTF_8);
+			if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				try (OutputStream out = new GZIPOutputStream(bytes)) {
+					out.write(body);
+				}
+				body = bytes.toByteArray();
+				exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+			}
+			exchange.sendResponseHeaders(200, body.length);
+			exchange.getResponseBody().write(body);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void serveMissing(HttpExchange exchange) throws IOException {
+		try {
+			clientPorts.add(exchange.getRemoteAddress().getPort());
+			byte[] body = "<html><body>Not found</body></html>".getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(404, body.length);
+			exchange.getResponseBody().write(body);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void serveSlow(HttpExchange exchange) throws IOException {
+		try {
+			release.await();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private URL url(String path) throws IOException {
+		return new URL("http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+				+ server.getAddress().getPort() + path);
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		int r;
+		while ((r = in.read(buf)) != -1)
+			out.write(buf, 0, r);
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+}